@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager.benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.monitor.logging.DefaultLog;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.packager.Wiki;
+import org.xwiki.contrib.packager.WikiHelper;
+import org.xwiki.contrib.packager.WikiSetupScheduler;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.platform.wiki.creationjob.WikiCreationRequest;
+import org.xwiki.tool.utils.OldCoreHelper;
+
+/**
+ * Measures how fast subwikis are created in an embedded XWiki instance backed by an in-memory H2 database, serially
+ * and in parallel. Each iteration starts a new instance on an empty database so that the iterations don't measure
+ * the creation of wikis in a database growing with the wikis of the previous iterations.
+ * <p>
+ * Run with {@code mvn -f benchmarks/pom.xml package && java -jar benchmarks/target/benchmarks.jar}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class WikiCreationBenchmark
+{
+    @Param({ "1", "8", "64" })
+    private int wikiCount;
+
+    @Param({ "1", "4", "16" })
+    private int maxConcurrentWikis;
+
+    private final AtomicInteger wikiCounter = new AtomicInteger();
+
+    private final AtomicInteger databaseCounter = new AtomicInteger();
+
+    private File hibernateConfig;
+
+    private WikiHelper wikiHelper;
+
+    private OldCoreHelper oldCoreHelper;
+
+    private ExecutorService waitingExecutor;
+
+    /**
+     * Boot the embedded XWiki instance on a new empty database.
+     *
+     * @throws Exception if the instance cannot be started
+     */
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception
+    {
+        hibernateConfig = File.createTempFile("hibernate", ".cfg.xml");
+        try (InputStream stream = getClass().getResourceAsStream("/hibernate.cfg.xml")) {
+            Files.copy(stream, hibernateConfig.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // Each in-memory database lives as long as the JVM, so each iteration uses a new one
+        String configuration = new String(Files.readAllBytes(hibernateConfig.toPath()), StandardCharsets.UTF_8)
+            .replace("jdbc:h2:mem:xwiki;", String.format("jdbc:h2:mem:xwiki%d;", databaseCounter.incrementAndGet()));
+        Files.write(hibernateConfig.toPath(), configuration.getBytes(StandardCharsets.UTF_8));
+
+        wikiHelper = WikiHelper.create(hibernateConfig);
+        oldCoreHelper = OldCoreHelper.create(wikiHelper.getComponentManager(), hibernateConfig);
+        wikiHelper.nukeListeners();
+
+        waitingExecutor = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Stop the embedded XWiki instance.
+     *
+     * @throws Exception if the instance cannot be stopped
+     */
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception
+    {
+        waitingExecutor.shutdownNow();
+        oldCoreHelper.close();
+        wikiHelper.close();
+        hibernateConfig.delete();
+    }
+
+    /**
+     * @return the wikis which could not be created
+     * @throws InterruptedException if interrupted while waiting for the wiki creation jobs
+     */
+    @Benchmark
+    public List<String> createWikis() throws InterruptedException
+    {
+        List<Wiki> wikis = new ArrayList<>(wikiCount);
+        for (int i = 0; i < wikiCount; i++) {
+            Wiki wiki = new Wiki();
+            wiki.setId("benchmark" + wikiCounter.incrementAndGet());
+            wiki.setPrettyName(wiki.getId());
+            wikis.add(wiki);
+        }
+
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(this::createWiki, maxConcurrentWikis, 0, 0,
+            new DefaultLog(new ConsoleLogger(Logger.LEVEL_ERROR, "benchmark")));
+
+        return scheduler.run(wikis);
+    }
+
+    private CompletableFuture<Void> createWiki(Wiki wiki)
+    {
+        WikiCreationRequest request = new WikiCreationRequest();
+        request.setId(wiki.getId());
+        request.setWikiId(wiki.getId());
+        request.setPrettyName(wiki.getPrettyName());
+        request.setOwnerId(wiki.getOwner());
+        request.setMembershipType(wiki.getMembership());
+        request.setUserScope(wiki.getUserScope());
+        request.setMembers(Collections.<String>emptyList());
+        request.setAlias(wiki.getId());
+        request.setFailOnExist(false);
+
+        try {
+            Job job = wikiHelper.createWiki(request);
+
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    job.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, waitingExecutor);
+        } catch (JobException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.monitor.logging.DefaultLog;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.packager.Wiki;
+import org.xwiki.contrib.packager.WikiSetupScheduler;
+
+/**
+ * Measures the time needed by {@link WikiSetupScheduler} to set up a farm of wikis whose setup takes a fixed time,
+ * to compare serial and parallel scheduling without the cost of an actual XWiki instance.
+ * <p>
+ * Run with {@code mvn -f benchmarks/pom.xml package && java -jar benchmarks/target/benchmarks.jar}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class WikiSetupSchedulerBenchmark
+{
+    @Param({ "1", "2", "4", "8", "16", "32", "64" })
+    private int wikiCount;
+
+    @Param({ "1", "4", "16" })
+    private int maxConcurrentWikis;
+
+    /**
+     * The simulated duration of the setup of each wiki, in milliseconds.
+     */
+    @Param({ "10" })
+    private long wikiSetupTime;
+
+    private List<Wiki> wikis;
+
+    private ScheduledExecutorService jobExecutor;
+
+    /**
+     * Create the wikis to schedule.
+     */
+    @Setup
+    public void setUp()
+    {
+        wikis = new ArrayList<>();
+        wikis.add(new Wiki());
+        for (int i = 1; i < wikiCount; i++) {
+            Wiki wiki = new Wiki();
+            wiki.setId("wiki" + i);
+            wikis.add(wiki);
+        }
+
+        jobExecutor = Executors.newScheduledThreadPool(maxConcurrentWikis);
+    }
+
+    /**
+     * Stop the simulated jobs.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        jobExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the wikis which could not be set up
+     * @throws InterruptedException if interrupted while waiting for the simulated jobs
+     */
+    @Benchmark
+    public List<String> schedule() throws InterruptedException
+    {
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> {
+            CompletableFuture<Void> job = new CompletableFuture<>();
+            jobExecutor.schedule(() -> job.complete(null), wikiSetupTime, TimeUnit.MILLISECONDS);
+
+            return job;
+        }, maxConcurrentWikis, 0, 0, new DefaultLog(new ConsoleLogger(Logger.LEVEL_ERROR, "benchmark")));
+
+        return scheduler.run(wikis);
+    }
+}
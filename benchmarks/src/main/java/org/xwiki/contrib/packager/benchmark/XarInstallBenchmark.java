@@ -0,0 +1,248 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.packager.Wiki;
+import org.xwiki.contrib.packager.WikiHelper;
+import org.xwiki.extension.AbstractExtension;
+import org.xwiki.extension.ExtensionFile;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.job.InstallRequest;
+import org.xwiki.extension.repository.LocalExtensionRepository;
+import org.xwiki.tool.utils.OldCoreHelper;
+
+/**
+ * Measures the latency of the install of a XAR extension in a new subwiki, which is what most of the setup time of a
+ * wiki is spent on. The extension is a synthetic XAR built by the benchmark and stored in the local extension
+ * repository, so that neither the resolution nor the download of the extension are measured.
+ * <p>
+ * Run with {@code mvn -f benchmarks/pom.xml package && java -jar benchmarks/target/benchmarks.jar XarInstall}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class XarInstallBenchmark
+{
+    private static final String SPACE = "Benchmark";
+
+    @Param({ "10", "100", "1000" })
+    private int documentCount;
+
+    /**
+     * The number of characters of the content of each document.
+     */
+    @Param({ "1000" })
+    private int contentSize;
+
+    private final AtomicInteger wikiCounter = new AtomicInteger();
+
+    private final ExtensionId extensionId = new ExtensionId("org.xwiki.contrib:benchmark-xar", "1.0");
+
+    private File hibernateConfig;
+
+    private File xarFile;
+
+    private WikiHelper wikiHelper;
+
+    private OldCoreHelper oldCoreHelper;
+
+    private Wiki wiki;
+
+    /**
+     * A XAR extension stored in the local extension repository without being resolved from a remote repository.
+     */
+    private static final class SyntheticXarExtension extends AbstractExtension
+    {
+        SyntheticXarExtension(ExtensionId id, File file)
+        {
+            super(null, id, "xar");
+
+            setName("Benchmark XAR");
+            setFile(new ExtensionFile()
+            {
+                @Override
+                public long getLength()
+                {
+                    return file.length();
+                }
+
+                @Override
+                public InputStream openStream() throws IOException
+                {
+                    return new FileInputStream(file);
+                }
+            });
+        }
+    }
+
+    /**
+     * Boot the embedded XWiki instance and store the XAR extension in its local extension repository.
+     *
+     * @throws Exception if the instance cannot be started
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        hibernateConfig = File.createTempFile("hibernate", ".cfg.xml");
+        try (InputStream stream = getClass().getResourceAsStream("/hibernate.cfg.xml")) {
+            Files.copy(stream, hibernateConfig.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        wikiHelper = WikiHelper.create(hibernateConfig);
+        oldCoreHelper = OldCoreHelper.create(wikiHelper.getComponentManager(), hibernateConfig);
+        wikiHelper.nukeListeners();
+
+        xarFile = File.createTempFile("benchmark", ".xar");
+        writeXar(xarFile);
+        wikiHelper.getComponentManager().<LocalExtensionRepository>getInstance(LocalExtensionRepository.class)
+            .storeExtension(new SyntheticXarExtension(extensionId, xarFile));
+    }
+
+    /**
+     * Stop the embedded XWiki instance.
+     *
+     * @throws Exception if the instance cannot be stopped
+     */
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        oldCoreHelper.close();
+        wikiHelper.close();
+        hibernateConfig.delete();
+        xarFile.delete();
+    }
+
+    /**
+     * Create the subwiki in which the extension is installed, the extension being installed only once per wiki.
+     *
+     * @throws Exception if the wiki cannot be created
+     */
+    @Setup(Level.Invocation)
+    public void createWiki() throws Exception
+    {
+        wikiHelper.ensureExecutionContext();
+
+        wiki = new Wiki();
+        wiki.setId("xar" + wikiCounter.incrementAndGet());
+        wiki.setPrettyName(wiki.getId());
+        wikiHelper.createWiki(wiki, null);
+    }
+
+    /**
+     * @throws Exception if the extension cannot be installed
+     */
+    @Benchmark
+    public void installXar() throws Exception
+    {
+        InstallRequest installRequest = wikiHelper.createInstallRequest(wiki);
+        installRequest.setVerbose(false);
+        installRequest.addExtension(extensionId);
+        installRequest.addNamespace(String.format("wiki:%s", wiki.getId()));
+
+        wikiHelper.install(installRequest);
+    }
+
+    private void writeXar(File file) throws IOException
+    {
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file.toPath()))) {
+            StringBuilder packageXml = new StringBuilder();
+            packageXml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<package>\n  <infos>\n");
+            packageXml.append("    <name>Benchmark XAR</name>\n    <version>").append(extensionId.getVersion())
+                .append("</version>\n");
+            packageXml.append("    <backupPack>false</backupPack>\n    <preserveVersion>false</preserveVersion>\n");
+            packageXml.append("  </infos>\n  <files>\n");
+            for (int i = 0; i < documentCount; i++) {
+                packageXml.append("    <file defaultAction=\"0\" language=\"\">").append(SPACE).append(".Page")
+                    .append(i).append("</file>\n");
+            }
+            packageXml.append("  </files>\n</package>\n");
+            writeEntry(zip, "package.xml", packageXml.toString());
+
+            StringBuilder content = new StringBuilder(contentSize);
+            while (content.length() < contentSize) {
+                content.append("Lorem ipsum dolor sit amet. ");
+            }
+            content.setLength(contentSize);
+
+            for (int i = 0; i < documentCount; i++) {
+                writeEntry(zip, String.format("%s/Page%d.xml", SPACE, i), getDocument("Page" + i, content));
+            }
+        }
+    }
+
+    private String getDocument(String name, CharSequence content)
+    {
+        StringBuilder document = new StringBuilder();
+        document.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        document.append("<xwikidoc version=\"1.3\" reference=\"").append(SPACE).append('.').append(name)
+            .append("\" locale=\"\">\n");
+        document.append("  <web>").append(SPACE).append("</web>\n");
+        document.append("  <name>").append(name).append("</name>\n");
+        document.append("  <language/>\n  <defaultLanguage/>\n  <translation>0</translation>\n");
+        document.append("  <creator>xwiki:XWiki.superadmin</creator>\n");
+        document.append("  <author>xwiki:XWiki.superadmin</author>\n");
+        document.append("  <contentAuthor>xwiki:XWiki.superadmin</contentAuthor>\n");
+        document.append("  <version>1.1</version>\n  <title>").append(name).append("</title>\n");
+        document.append("  <comment/>\n  <minorEdit>false</minorEdit>\n  <syntaxId>xwiki/2.1</syntaxId>\n");
+        document.append("  <hidden>false</hidden>\n");
+        document.append("  <content>").append(content).append("</content>\n");
+        document.append("</xwikidoc>\n");
+
+        return document.toString();
+    }
+
+    private void writeEntry(ZipOutputStream zip, String name, String content) throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.xwiki.tool.extension.util.ExtensionArtifact;
+import org.xwiki.tool.utils.AbstractOldCoreMojo;
+
+/**
+ * Base class of the goals working on the configured wikis: reads the wikis from the POM, the extension sets and the
+ * manifest, and gives access to the started XWiki instance.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public abstract class AbstractWikiMojo extends AbstractOldCoreMojo
+{
+    @Parameter(property = "wikis")
+    protected List<Wiki> wikis;
+
+    /**
+     * The extension sets which can be referenced by id by the wikis instead of listing the same extensions again.
+     */
+    @Parameter
+    protected List<ExtensionSet> extensionSets;
+
+    /**
+     * A CSV file listing more wikis to set up on top of {@link #wikis}, see {@link WikiManifest}.
+     */
+    @Parameter(property = "wikiManifest")
+    protected File wikiManifest;
+
+    /**
+     * The install plans resolved by the lock goal. When the file exists, the wikis whose configuration did not change
+     * since they were locked are set up by the wiki goal with the exact extensions of their plan, without resolving
+     * them.
+     */
+    @Parameter(property = "lockFile", defaultValue = "${basedir}/wiki-packager.lock")
+    protected File lockFile;
+
+    protected WikiHelper wikiHelper;
+
+    @Override
+    protected void before() throws MojoExecutionException
+    {
+        super.before();
+
+        this.wikiHelper =
+                WikiHelper.create(this.extensionHelper.getComponentManager(), hibernateConfig);
+    }
+
+    /**
+     * Add the extensions of the referenced extension sets to the configured wikis, and the wikis of the manifest.
+     *
+     * @param streamManifest true to read the wikis of the manifest lazily while setting them up, see
+     *     {@link #openManifest()}, instead of adding them to {@link #wikis}
+     * @throws MojoExecutionException if the wikis are invalid
+     */
+    protected void loadWikis(boolean streamManifest) throws MojoExecutionException
+    {
+        if (wikis == null) {
+            wikis = new ArrayList<>();
+        }
+
+        Map<String, ExtensionSet> sets = getExtensionSets();
+        for (Wiki wiki : wikis) {
+            ExtensionSet.apply(wiki, sets);
+        }
+
+        if (wikiManifest != null && !streamManifest) {
+            WikiManifest manifest = openManifest();
+            try {
+                wikis.addAll(manifest.readAll());
+            } finally {
+                closeManifest(manifest);
+            }
+            getLog().info(String.format("Loaded %d wikis in total from the POM and [%s]", wikis.size(), wikiManifest));
+        }
+    }
+
+    /**
+     * @return the manifest, whose wikis can depend on the configured wikis
+     * @throws MojoExecutionException if the manifest cannot be opened
+     */
+    protected WikiManifest openManifest() throws MojoExecutionException
+    {
+        return WikiManifest.open(wikiManifest, getExtensionSets(), getWikiIds());
+    }
+
+    /**
+     * Report the invalid wikis of the manifest without keeping its wikis.
+     *
+     * @return the number of wikis in the manifest
+     * @throws MojoExecutionException if the manifest cannot be read or is invalid
+     */
+    protected int checkManifest() throws MojoExecutionException
+    {
+        return WikiManifest.check(wikiManifest, getExtensionSets(), getWikiIds());
+    }
+
+    /**
+     * @param manifest the manifest to close, the failure to close it being only logged
+     */
+    protected void closeManifest(WikiManifest manifest)
+    {
+        try {
+            manifest.close();
+        } catch (IOException e) {
+            getLog().warn(String.format("Failed to close wiki manifest [%s]", wikiManifest), e);
+        }
+    }
+
+    private Map<String, ExtensionSet> getExtensionSets() throws MojoExecutionException
+    {
+        Map<String, ExtensionSet> sets = new HashMap<>();
+        if (extensionSets != null) {
+            for (ExtensionSet extensionSet : extensionSets) {
+                if (sets.put(extensionSet.getId(), extensionSet) != null) {
+                    throw new MojoExecutionException(
+                        String.format("Extension set [%s] is defined twice", extensionSet.getId()));
+                }
+            }
+        }
+
+        return sets;
+    }
+
+    private List<String> getWikiIds()
+    {
+        return wikis.stream().map(Wiki::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * @param wiki the wiki
+     * @return the version of each extension to install in the wiki indexed by extension id, the versions missing
+     *     from the wiki configuration being taken from the project dependencies
+     */
+    protected Map<String, String> getExtensionVersions(Wiki wiki)
+    {
+        Map<String, String> versions = new LinkedHashMap<>();
+
+        for (ExtensionArtifact artifact : wiki.getExtensions()) {
+            String version = artifact.getVersion();
+            if (version == null) {
+                version = getProjectDependencyVersion(artifact);
+            }
+
+            versions.put(String.format("%s:%s", artifact.getGroupId(), artifact.getArtifactId()), version);
+        }
+
+        return versions;
+    }
+
+    private String getProjectDependencyVersion(ExtensionArtifact artifact)
+    {
+        List<Dependency> dependencies = new ArrayList<>(project.getDependencies());
+        if (project.getDependencyManagement() != null) {
+            dependencies.addAll(project.getDependencyManagement().getDependencies());
+        }
+
+        for (Dependency dependency : dependencies) {
+            if (dependency.getGroupId().equals(artifact.getGroupId())
+                && dependency.getArtifactId().equals(artifact.getArtifactId())) {
+                return dependency.getVersion();
+            }
+        }
+
+        return null;
+    }
+}
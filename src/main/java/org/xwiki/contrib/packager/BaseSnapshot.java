@@ -0,0 +1,362 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.xwiki.extension.ExtensionId;
+
+/**
+ * Compressed snapshot of the database and the permanent directory of the instance once the main wiki is set up.
+ * <p>
+ * The main wiki is usually the same in every build, so instead of installing its extensions again, a build starting
+ * from scratch restores the snapshot before the instance starts and only installs the extensions of the main wiki
+ * which changed since the snapshot was exported. The SHA-256 checksum of the snapshot is written next to it and
+ * checked before restoring it. Only local file databases can be snapshotted. The entries of the snapshot are relative
+ * so that it can be restored in another permanent directory and database location, for example by another checkout
+ * of the project.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class BaseSnapshot
+{
+    private static final String METADATA_ENTRY = "snapshot.properties";
+
+    private static final String PERMANENT_PREFIX = "permanent/";
+
+    private static final String DATABASE_PREFIX = "database/";
+
+    private static final String DATABASE_PROPERTY = "database";
+
+    private static final String EXTENSION_PREFIX = "extension.";
+
+    private static final String LOCK_EXTENSION = ".lck";
+
+    private final File file;
+
+    private final Log log;
+
+    /**
+     * @param file the snapshot file
+     * @param log the log in which the snapshot operations are reported
+     */
+    public BaseSnapshot(File file, Log log)
+    {
+        this.file = file;
+        this.log = log;
+    }
+
+    /**
+     * Restore the snapshot, if any, when the instance was not set up yet. Must be called before the instance starts.
+     *
+     * @param permanentDirectory the permanent directory of the instance
+     * @param database the database of the instance
+     * @return the version of each extension of the main wiki when the snapshot was exported, indexed by extension id,
+     *     null if the snapshot was not restored
+     * @throws MojoExecutionException if the snapshot cannot be read or restored
+     */
+    public Map<String, String> restore(File permanentDirectory, HibernateDatabase database)
+        throws MojoExecutionException
+    {
+        File databaseFile = database.getFile();
+        if (databaseFile == null) {
+            log.warn(String.format("Database [%s] is not a file database, not restoring base snapshot [%s]",
+                database.getUrl(), file));
+
+            return null;
+        }
+        databaseFile = databaseFile.getAbsoluteFile();
+
+        if (!file.exists()) {
+            log.info(String.format("No base snapshot found at [%s], the main wiki will be set up from scratch", file));
+
+            return null;
+        }
+
+        File checksumFile = getChecksumFile();
+        try {
+            String expectedChecksum = checksumFile.exists()
+                ? new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.UTF_8).trim() : null;
+            if (!Checksums.checksum(file.toPath()).equals(expectedChecksum)) {
+                log.warn(String.format("The checksum of base snapshot [%s] doesn't match, ignoring it", file));
+
+                return null;
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to check base snapshot [%s]", file), e);
+        }
+
+        long startTime = System.currentTimeMillis();
+        try (ZipFile zip = new ZipFile(file)) {
+            ZipEntry metadataEntry = zip.getEntry(METADATA_ENTRY);
+            if (metadataEntry == null) {
+                throw new MojoExecutionException(String.format("Invalid base snapshot [%s]", file));
+            }
+            Properties metadata = new Properties();
+            try (InputStream stream = zip.getInputStream(metadataEntry)) {
+                metadata.load(stream);
+            }
+
+            // The database files are named after the database, which might have changed since the export
+            String snapshotDatabaseName = new File(metadata.getProperty(DATABASE_PROPERTY)).getName();
+            if (!isEmpty(permanentDirectory) || !getDatabaseFiles(databaseFile).isEmpty()) {
+                log.info("The instance was already set up by a previous build, not restoring the base snapshot");
+
+                return null;
+            }
+
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().startsWith(PERMANENT_PREFIX)) {
+                    restoreEntry(zip, entry, permanentDirectory, entry.getName().substring(PERMANENT_PREFIX.length()));
+                } else if (entry.getName().startsWith(DATABASE_PREFIX)) {
+                    String name = entry.getName().substring(DATABASE_PREFIX.length());
+                    if (name.startsWith(snapshotDatabaseName + '.')) {
+                        name = databaseFile.getName() + name.substring(snapshotDatabaseName.length());
+                    }
+                    restoreEntry(zip, entry, databaseFile.getParentFile(), name);
+                }
+            }
+
+            Map<String, String> extensions = new LinkedHashMap<>();
+            for (String key : metadata.stringPropertyNames()) {
+                if (key.startsWith(EXTENSION_PREFIX)) {
+                    String version = metadata.getProperty(key);
+                    extensions.put(key.substring(EXTENSION_PREFIX.length()), version.isEmpty() ? null : version);
+                }
+            }
+
+            log.info(String.format("Restored base snapshot [%s] in %d ms", file,
+                System.currentTimeMillis() - startTime));
+
+            return extensions;
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to restore base snapshot [%s]", file), e);
+        }
+    }
+
+    /**
+     * @param baseExtensions the version of each extension of the main wiki when the snapshot was exported, see
+     *     {@link #restore(File, HibernateDatabase)}
+     * @param extensions the version of each extension configured on the main wiki, indexed by extension id
+     * @return the extensions of the main wiki which were added or upgraded since the snapshot was exported
+     */
+    public List<ExtensionId> getChangedExtensions(Map<String, String> baseExtensions, Map<String, String> extensions)
+    {
+        List<ExtensionId> changedExtensions = new ArrayList<>();
+        for (Map.Entry<String, String> extension : extensions.entrySet()) {
+            if (!baseExtensions.containsKey(extension.getKey())
+                || !Objects.equals(extension.getValue(), baseExtensions.get(extension.getKey()))) {
+                if (extension.getValue() != null) {
+                    changedExtensions.add(new ExtensionId(extension.getKey(), extension.getValue()));
+                } else {
+                    log.warn(String.format("The version of extension [%s] is unknown, it cannot be updated from the "
+                        + "base snapshot", extension.getKey()));
+                }
+            }
+        }
+        for (String baseExtension : baseExtensions.keySet()) {
+            if (!extensions.containsKey(baseExtension)) {
+                log.warn(String.format("Extension [%s] is not configured anymore but it's still installed by the base "
+                    + "snapshot", baseExtension));
+            }
+        }
+
+        return changedExtensions;
+    }
+
+    /**
+     * Export the snapshot of the instance, which should not be modified in the meantime.
+     *
+     * @param permanentDirectory the permanent directory of the instance
+     * @param database the database of the instance
+     * @param extensions the version of each extension of the main wiki, indexed by extension id
+     * @throws MojoExecutionException if the database is not a file database or if the snapshot cannot be written
+     */
+    public void export(File permanentDirectory, HibernateDatabase database, Map<String, String> extensions)
+        throws MojoExecutionException
+    {
+        File databaseFile = database.getFile();
+        if (databaseFile == null) {
+            throw new MojoExecutionException(
+                String.format("Database [%s] is not a file database and cannot be snapshotted", database.getUrl()));
+        }
+
+        // Write everything the database keeps in memory or in its log to its data files
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CHECKPOINT");
+        } catch (SQLException e) {
+            throw new MojoExecutionException(String.format("Failed to checkpoint database [%s]", database.getUrl()),
+                e);
+        }
+
+        exportFiles(permanentDirectory, databaseFile, extensions);
+    }
+
+    /**
+     * Export the snapshot of the files of an instance whose database was checkpointed.
+     *
+     * @param permanentDirectory the permanent directory of the instance
+     * @param database the file of the database, without the extension of its data files
+     * @param extensions the version of each extension of the main wiki, indexed by extension id
+     * @throws MojoExecutionException if the snapshot cannot be written
+     */
+    void exportFiles(File permanentDirectory, File database, Map<String, String> extensions)
+        throws MojoExecutionException
+    {
+        File databaseFile = database.getAbsoluteFile();
+        Path permanentPath = permanentDirectory.getAbsoluteFile().toPath();
+
+        Properties metadata = new Properties();
+        metadata.setProperty(DATABASE_PROPERTY, databaseFile.getName());
+        for (Map.Entry<String, String> extension : extensions.entrySet()) {
+            metadata.setProperty(EXTENSION_PREFIX + extension.getKey(),
+                extension.getValue() != null ? extension.getValue() : "");
+        }
+
+        long startTime = System.currentTimeMillis();
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        MessageDigest digest = Checksums.newDigest();
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+
+            List<Path> databaseFiles = getDatabaseFiles(databaseFile);
+            try (ZipOutputStream zip =
+                new ZipOutputStream(new DigestOutputStream(Files.newOutputStream(temporaryFile.toPath()), digest))) {
+                zip.putNextEntry(new ZipEntry(METADATA_ENTRY));
+                metadata.store(zip, "Wiki packager base snapshot");
+                zip.closeEntry();
+
+                for (Path path : getFiles(permanentPath)) {
+                    // The database files are stored apart since the database is not always in the permanent directory
+                    if (!databaseFiles.contains(path) && !path.toString().endsWith(LOCK_EXTENSION)) {
+                        addEntry(zip, path, PERMANENT_PREFIX + relativize(permanentPath, path));
+                    }
+                }
+                for (Path path : databaseFiles) {
+                    addEntry(zip, path, DATABASE_PREFIX + path.getFileName());
+                }
+            }
+
+            // Only replace the previous snapshot once the new one is complete
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.write(getChecksumFile().toPath(), Checksums.toHex(digest.digest()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to export base snapshot [%s]", file), e);
+        }
+
+        log.info(String.format("Exported base snapshot [%s] (%d KB) in %d ms", file, file.length() / 1024,
+            System.currentTimeMillis() - startTime));
+    }
+
+    private File getChecksumFile()
+    {
+        return new File(file.getPath() + ".sha256");
+    }
+
+    /**
+     * @return the files of the database, whose names are the name of the database followed by an extension
+     */
+    private List<Path> getDatabaseFiles(File database)
+    {
+        String prefix = database.getName() + '.';
+        File[] databaseFiles = database.getAbsoluteFile().getParentFile().listFiles(
+            child -> child.isFile() && child.getName().startsWith(prefix) && !child.getName().endsWith(LOCK_EXTENSION));
+
+        List<Path> files = new ArrayList<>();
+        if (databaseFiles != null) {
+            for (File databaseFile : databaseFiles) {
+                files.add(databaseFile.toPath());
+            }
+        }
+
+        return files;
+    }
+
+    private List<Path> getFiles(Path directory) throws IOException
+    {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private boolean isEmpty(File directory)
+    {
+        String[] files = directory.list();
+
+        return files == null || files.length == 0;
+    }
+
+    private void addEntry(ZipOutputStream zip, Path path, String name) throws IOException
+    {
+        zip.putNextEntry(new ZipEntry(name));
+        Files.copy(path, zip);
+        zip.closeEntry();
+    }
+
+    private void restoreEntry(ZipFile zip, ZipEntry entry, File directory, String name) throws IOException
+    {
+        File target = new File(directory, name);
+        if (!target.getCanonicalPath().startsWith(directory.getCanonicalPath() + File.separator)) {
+            throw new IOException(String.format("Invalid entry [%s] in base snapshot", entry.getName()));
+        }
+
+        target.getParentFile().mkdirs();
+        try (InputStream stream = zip.getInputStream(entry)) {
+            Files.copy(stream, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private String relativize(Path directory, Path path)
+    {
+        return directory.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Tunes the XWiki instance for importing a large number of documents: the store batches the JDBC statements of each
+ * document save and the listeners computing data which is not needed in a packaged database are suspended.
+ * <p>
+ * The data maintained by the suspended listeners (activity stream, watchlist, search index) is rebuilt by XWiki
+ * itself when needed, the search index for example being synchronized with the database when the instance starts.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class BulkPackagingMode
+{
+    /**
+     * The names of the listeners suspended in bulk mode, see {@link PackagingListeners}.
+     */
+    public static final List<String> SUSPENDED_LISTENERS =
+        Arrays.asList("solr.update", "activitystream", "AutomaticWatchModeListener", "RecordableEventListener");
+
+    private static final Map<String, String> HIBERNATE_PROPERTIES = new LinkedHashMap<>();
+
+    static {
+        HIBERNATE_PROPERTIES.put("hibernate.jdbc.batch_size", "100");
+        HIBERNATE_PROPERTIES.put("hibernate.order_inserts", "true");
+        HIBERNATE_PROPERTIES.put("hibernate.order_updates", "true");
+    }
+
+    /**
+     * Enable JDBC batching in the Hibernate store by writing a copy of its configuration, the properties already set in
+     * the configuration being kept. The copy has to be used when initializing the store.
+     *
+     * @param database the database configured for the instance
+     * @param directory the directory in which the tuned configuration is written
+     * @return the database configured in the tuned configuration
+     * @throws MojoExecutionException if the tuned configuration cannot be written
+     */
+    public HibernateDatabase configureStore(HibernateDatabase database, File directory) throws MojoExecutionException
+    {
+        return database.configure(HIBERNATE_PROPERTIES, directory);
+    }
+}
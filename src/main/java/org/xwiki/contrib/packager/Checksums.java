@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 checksums used to identify the cached files, the snapshots and the wiki configurations.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class Checksums
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Checksums()
+    {
+        // Utility class
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available in every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param bytes the bytes to checksum
+     * @return the hexadecimal SHA-256 checksum of the bytes
+     */
+    static String checksum(byte[] bytes)
+    {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    /**
+     * @param value the string to checksum
+     * @return the hexadecimal SHA-256 checksum of the UTF-8 encoding of the string
+     */
+    static String checksum(String value)
+    {
+        return checksum(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param path the file to checksum
+     * @return the hexadecimal SHA-256 checksum of the file content
+     * @throws IOException if the file cannot be read
+     */
+    static String checksum(Path path) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream stream = new DigestInputStream(Files.newInputStream(path), digest)) {
+            while (stream.read(buffer) != -1) {
+                // Only read the stream to update the digest
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param bytes the bytes to encode, typically a digest
+     * @return the lower case hexadecimal encoding of the bytes
+     */
+    static String toHex(byte[] bytes)
+    {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Counts the documents saved in a wiki while its extensions are installed and flushes the document cache every time a
+ * given number of documents has been saved, so that the memory used by the import does not depend on the size of the
+ * imported packages.
+ * <p>
+ * This does not batch the writes of the store: the documents are still saved one by one. The document cache is shared
+ * by all the wikis of the instance, so flushing it also evicts the documents of the wikis set up in parallel, which
+ * are then loaded again from the database when needed.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class DocumentCacheFlushListener implements EventListener
+{
+    private final String wikiId;
+
+    private final int flushInterval;
+
+    private final WikiHelper wikiHelper;
+
+    private final AtomicLong documentCount = new AtomicLong();
+
+    /**
+     * @param wikiId the id of the wiki in which documents are imported
+     * @param flushInterval the number of documents after which the document cache is flushed
+     * @param wikiHelper the helper used to flush the document cache
+     */
+    public DocumentCacheFlushListener(String wikiId, int flushInterval, WikiHelper wikiHelper)
+    {
+        this.wikiId = wikiId;
+        this.flushInterval = flushInterval;
+        this.wikiHelper = wikiHelper;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "DocumentCacheFlushListener-" + wikiId;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        DocumentModelBridge document = (DocumentModelBridge) source;
+
+        if (wikiId.equals(document.getDocumentReference().getWikiReference().getName())
+            && documentCount.incrementAndGet() % flushInterval == 0) {
+            wikiHelper.flushDocumentCache();
+        }
+    }
+
+    /**
+     * @return the number of documents saved in the wiki so far
+     */
+    public long getDocumentCount()
+    {
+        return documentCount.get();
+    }
+}
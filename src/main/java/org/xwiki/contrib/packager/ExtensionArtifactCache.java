@@ -0,0 +1,387 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Content-addressed cache of the local extension repository, shared by the builds running on the same machine.
+ * <p>
+ * At the end of a build, every file of the local extension repository is stored in the cache under its SHA-256
+ * checksum and the list of files is recorded for the project. Since each extension is stored in its own
+ * {@code <id>/<version>} directory of the repository, this also keys the cache by extension id and version. When the
+ * local extension repository of the project is missing at the start of the next build (typically after a clean), it
+ * is restored from the cache before the instance starts, so that the extensions are found locally instead of being
+ * resolved and copied again. The extension files are hard linked when possible while the descriptors, which are
+ * modified when an extension is installed, are copied. The descriptors are cached without their {@code installed.*}
+ * properties, so that the restored extensions are not seen as installed in a database which does not contain them.
+ * <p>
+ * The cache is bounded, the least recently used files being evicted first.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class ExtensionArtifactCache
+{
+    private static final String DESCRIPTOR_EXTENSION = ".xed";
+
+    private static final String REPOSITORY_PROPERTY = "repository";
+
+    private static final String FILE_PREFIX = "file.";
+
+    private static final String INSTALLED_PROPERTY_PREFIX = "installed.";
+
+    private final File objectsDirectory;
+
+    private final File projectsDirectory;
+
+    private final long maxSize;
+
+    private final Log log;
+
+    /**
+     * @param directory the directory of the cache
+     * @param maxSize the maximum size of the cache in bytes
+     * @param log the logger to use
+     */
+    public ExtensionArtifactCache(File directory, long maxSize, Log log)
+    {
+        this.objectsDirectory = new File(directory, "objects");
+        this.projectsDirectory = new File(directory, "projects");
+        this.maxSize = maxSize;
+        this.log = log;
+    }
+
+    /**
+     * Restore the local extension repository last stored for the project, unless it already exists.
+     *
+     * @param projectKey the key identifying the project
+     * @throws MojoExecutionException if the repository cannot be restored
+     */
+    public void restore(String projectKey) throws MojoExecutionException
+    {
+        Properties project = loadProject(projectKey);
+        String repositoryPath = project.getProperty(REPOSITORY_PROPERTY);
+        if (repositoryPath == null) {
+            return;
+        }
+
+        File repository = new File(repositoryPath);
+        String[] existingFiles = repository.list();
+        if (existingFiles != null && existingFiles.length > 0) {
+            return;
+        }
+
+        // Restore each extension directory as a whole, a descriptor without its file would be an invalid extension
+        Map<String, Map<String, String>> extensions = new LinkedHashMap<>();
+        for (String key : project.stringPropertyNames()) {
+            if (key.startsWith(FILE_PREFIX)) {
+                String path = key.substring(FILE_PREFIX.length());
+                String parent = path.lastIndexOf('/') > 0 ? path.substring(0, path.lastIndexOf('/')) : "";
+                extensions.computeIfAbsent(parent, p -> new LinkedHashMap<>()).put(path, project.getProperty(key));
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        int restoredCount = 0;
+        try {
+            for (Map<String, String> files : extensions.values()) {
+                if (files.values().stream().allMatch(checksum -> getObject(checksum).exists())) {
+                    for (Map.Entry<String, String> file : files.entrySet()) {
+                        restoreFile(getObject(file.getValue()), new File(repository, file.getKey()));
+                    }
+                    restoredCount++;
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                String.format("Failed to restore the local extension repository [%s]", repository), e);
+        }
+
+        log.info(String.format("Restored %d of %d extensions from the extension cache in %d ms", restoredCount,
+            extensions.size(), System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Store the files of the local extension repository of the project and evict the least recently used files if
+     * the cache is too big.
+     *
+     * @param projectKey the key identifying the project
+     * @param repository the local extension repository of the project
+     * @throws MojoExecutionException if the repository cannot be stored
+     */
+    public void store(String projectKey, File repository) throws MojoExecutionException
+    {
+        if (!repository.isDirectory()) {
+            return;
+        }
+
+        Properties project = new Properties();
+        project.setProperty(REPOSITORY_PROPERTY, repository.getAbsolutePath());
+        Properties previousProject = loadProject(projectKey);
+
+        try (Stream<Path> paths = Files.walk(repository.toPath())) {
+            objectsDirectory.mkdirs();
+            for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                String relativePath = repository.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+                String checksum = storeFile(path, previousProject.getProperty(FILE_PREFIX + relativePath));
+                project.setProperty(FILE_PREFIX + relativePath, checksum);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                String.format("Failed to store the local extension repository [%s] in the cache", repository), e);
+        }
+
+        saveProject(projectKey, project);
+        evict();
+    }
+
+    private String storeFile(Path path, String previousChecksum) throws IOException
+    {
+        if (isDescriptor(path.toFile())) {
+            return storeDescriptor(path);
+        }
+
+        // A file restored as a link to the cache is already stored
+        if (previousChecksum != null) {
+            File object = getObject(previousChecksum);
+            if (object.exists() && Files.isSameFile(path, object.toPath())) {
+                touch(object);
+
+                return previousChecksum;
+            }
+        }
+
+        String checksum = Checksums.checksum(path);
+        File object = getObject(checksum);
+        if (object.exists()) {
+            touch(object);
+        } else {
+            Path temporaryFile = Files.createTempFile(objectsDirectory.toPath(), checksum, ".tmp");
+            Files.copy(path, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryFile, object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        return checksum;
+    }
+
+    private String storeDescriptor(Path path) throws IOException
+    {
+        byte[] content = removeInstallState(Files.readAllBytes(path));
+        String checksum = Checksums.checksum(content);
+        File object = getObject(checksum);
+        if (object.exists()) {
+            touch(object);
+        } else {
+            Path temporaryFile = Files.createTempFile(objectsDirectory.toPath(), checksum, ".tmp");
+            Files.write(temporaryFile, content);
+            Files.move(temporaryFile, object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        return checksum;
+    }
+
+    /**
+     * @param descriptor the content of an extension descriptor
+     * @return the descriptor without the {@code installed.*} properties added when the extension is installed
+     * @throws IOException if the descriptor cannot be parsed
+     */
+    static byte[] removeInstallState(byte[] descriptor) throws IOException
+    {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(descriptor));
+
+            boolean modified = false;
+            NodeList propertiesElements = document.getDocumentElement().getElementsByTagName("properties");
+            for (int i = 0; i < propertiesElements.getLength(); i++) {
+                Node property = propertiesElements.item(i).getFirstChild();
+                while (property != null) {
+                    Node nextProperty = property.getNextSibling();
+                    if (property.getNodeType() == Node.ELEMENT_NODE
+                        && property.getNodeName().startsWith(INSTALLED_PROPERTY_PREFIX)) {
+                        property.getParentNode().removeChild(property);
+                        modified = true;
+                    }
+                    property = nextProperty;
+                }
+            }
+            if (!modified) {
+                return descriptor;
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            TransformerFactory.newInstance().newTransformer()
+                .transform(new DOMSource(document), new StreamResult(output));
+
+            return output.toByteArray();
+        } catch (ParserConfigurationException | SAXException | TransformerException e) {
+            throw new IOException("Failed to remove the install state of an extension descriptor", e);
+        }
+    }
+
+    /**
+     * @param object the cached file
+     * @param file the file to restore in the local extension repository
+     * @throws IOException if the file cannot be restored
+     */
+    void restoreFile(File object, File file) throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        if (isDescriptor(file)) {
+            // The descriptors stored by previous versions of the cache might contain the install state
+            Files.write(file.toPath(), removeInstallState(Files.readAllBytes(object.toPath())));
+        } else {
+            try {
+                Files.createLink(file.toPath(), object.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                // Typically when the cache is on another file system
+                Files.copy(object.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        touch(object);
+    }
+
+    /**
+     * Delete the least recently used files until the cache fits in its maximum size.
+     */
+    private void evict()
+    {
+        File[] objects = objectsDirectory.listFiles();
+        if (objects == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File object : objects) {
+            size += object.length();
+        }
+
+        List<File> sortedObjects = new ArrayList<>(Arrays.asList(objects));
+        sortedObjects.sort(Comparator.comparingLong(File::lastModified));
+
+        int evictedCount = 0;
+        for (File object : sortedObjects) {
+            if (size <= maxSize) {
+                break;
+            }
+
+            long length = object.length();
+            if (object.delete()) {
+                size -= length;
+                evictedCount++;
+            }
+        }
+
+        if (evictedCount > 0) {
+            log.info(String.format("Evicted %d files from the extension cache", evictedCount));
+        }
+    }
+
+    private Properties loadProject(String projectKey) throws MojoExecutionException
+    {
+        Properties project = new Properties();
+        File file = getProjectFile(projectKey);
+
+        if (file.exists()) {
+            try (InputStream stream = Files.newInputStream(file.toPath())) {
+                project.load(stream);
+            } catch (IOException e) {
+                throw new MojoExecutionException(String.format("Failed to read the extension cache index [%s]", file),
+                    e);
+            }
+        }
+
+        return project;
+    }
+
+    private void saveProject(String projectKey, Properties project) throws MojoExecutionException
+    {
+        File file = getProjectFile(projectKey);
+
+        try {
+            projectsDirectory.mkdirs();
+
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temporaryFile.toPath())) {
+                project.store(stream, projectKey);
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to write the extension cache index [%s]", file),
+                e);
+        }
+    }
+
+    private File getProjectFile(String projectKey)
+    {
+        return new File(projectsDirectory, Checksums.checksum(projectKey) + ".properties");
+    }
+
+    private File getObject(String checksum)
+    {
+        return new File(objectsDirectory, checksum);
+    }
+
+    private boolean isDescriptor(File file)
+    {
+        return file.getName().endsWith(DESCRIPTOR_EXTENSION);
+    }
+
+    private void touch(File object)
+    {
+        // The modification date of the objects is used as access date for the eviction
+        object.setLastModified(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.xwiki.tool.extension.util.ExtensionArtifact;
+
+/**
+ * A named set of extensions shared by several wikis, which reference it by id in {@link Wiki#getExtensionSets()}
+ * instead of listing the same extensions again.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class ExtensionSet
+{
+    private String id;
+
+    private List<ExtensionArtifact> extensions = Collections.emptyList();
+
+    /**
+     * @return the id of the set
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @param id the id of the set
+     */
+    public void setId(String id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * @return the extensions of the set
+     */
+    public List<ExtensionArtifact> getExtensions()
+    {
+        return extensions;
+    }
+
+    /**
+     * @param extensions the extensions of the set
+     */
+    public void setExtensions(List<ExtensionArtifact> extensions)
+    {
+        this.extensions = extensions;
+    }
+
+    /**
+     * Add the extensions of the sets referenced by the given wiki to its extensions. A wiki which only references one
+     * set shares the list of extensions of the set.
+     *
+     * @param wiki the wiki
+     * @param extensionSets the extension sets indexed by id
+     * @throws MojoExecutionException if the wiki references an unknown set
+     */
+    public static void apply(Wiki wiki, Map<String, ExtensionSet> extensionSets) throws MojoExecutionException
+    {
+        List<ExtensionArtifact> extensions = wiki.getExtensions();
+        for (String setId : wiki.getExtensionSets()) {
+            ExtensionSet extensionSet = extensionSets.get(setId);
+            if (extensionSet == null) {
+                throw new MojoExecutionException(
+                    String.format("Wiki [%s] references unknown extension set [%s]", wiki.getId(), setId));
+            }
+
+            if (extensions.isEmpty()) {
+                extensions = extensionSet.getExtensions();
+            } else {
+                extensions = new ArrayList<>(extensions);
+                extensions.addAll(extensionSet.getExtensions());
+            }
+        }
+
+        wiki.setExtensions(extensions);
+        // The sets are now part of the extensions of the wiki
+        wiki.setExtensionSets(Collections.<String>emptyList());
+    }
+}
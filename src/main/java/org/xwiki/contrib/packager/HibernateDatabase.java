@@ -0,0 +1,231 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * The database configured in a Hibernate configuration file, used to give each shard its own database, to merge the
+ * shards back in the packaged database, to snapshot the database and to tune the store.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class HibernateDatabase
+{
+    private static final String URL_PROPERTY = "connection.url";
+
+    private static final String PERMANENT_DIRECTORY = "${environment.permanentDirectory}";
+
+    private static final String SESSION_FACTORY_END = "</session-factory>";
+
+    /**
+     * The file databases which can be relocated, the path of the database following the prefix.
+     */
+    private static final Pattern FILE_URL = Pattern.compile("^(jdbc:hsqldb:file:|jdbc:h2:file:|jdbc:h2:)([^;]+)(.*)$");
+
+    private final File configuration;
+
+    private final String content;
+
+    private final File permanentDirectory;
+
+    private HibernateDatabase(File configuration, String content, File permanentDirectory)
+    {
+        this.configuration = configuration;
+        this.content = content;
+        this.permanentDirectory = permanentDirectory;
+    }
+
+    /**
+     * @param configuration the Hibernate configuration file
+     * @param permanentDirectory the permanent directory of the instance, which can be used in the database URL
+     * @return the database configured in the file
+     * @throws MojoExecutionException if the file cannot be read
+     */
+    public static HibernateDatabase load(File configuration, File permanentDirectory) throws MojoExecutionException
+    {
+        try {
+            return new HibernateDatabase(configuration,
+                new String(Files.readAllBytes(configuration.toPath()), StandardCharsets.UTF_8), permanentDirectory);
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                String.format("Failed to read Hibernate configuration [%s]", configuration), e);
+        }
+    }
+
+    /**
+     * @return the Hibernate configuration file
+     */
+    public File getConfiguration()
+    {
+        return configuration;
+    }
+
+    /**
+     * @return the JDBC URL of the database
+     */
+    public String getUrl()
+    {
+        return getProperty(URL_PROPERTY).replace(PERMANENT_DIRECTORY, permanentDirectory.getAbsolutePath());
+    }
+
+    /**
+     * @return the path of the database files, without their extension, null if the database is not stored in local
+     *     files
+     */
+    public File getFile()
+    {
+        Matcher matcher = FILE_URL.matcher(getUrl());
+
+        return isFileDatabase(matcher) ? new File(matcher.group(2)) : null;
+    }
+
+    /**
+     * Write a copy of the configuration using a database located in the given directory, the rest of the
+     * configuration being kept.
+     *
+     * @param directory the directory in which the new database is created
+     * @return the database configured in the copy
+     * @throws MojoExecutionException if the database is not a file database or if the copy cannot be written
+     */
+    public HibernateDatabase relocate(File directory) throws MojoExecutionException
+    {
+        Matcher matcher = FILE_URL.matcher(getUrl());
+        if (!isFileDatabase(matcher)) {
+            throw new MojoExecutionException(
+                String.format("Database [%s] is not a file database and cannot be sharded", getUrl()));
+        }
+
+        String url = matcher.group(1) + new File(directory, new File(matcher.group(2)).getName()).getAbsolutePath()
+            + matcher.group(3);
+        String relocatedContent = getPropertyPattern(URL_PROPERTY).matcher(content)
+            .replaceFirst("$1" + Matcher.quoteReplacement(escape(url)) + "$3");
+
+        return write(directory, relocatedContent);
+    }
+
+    /**
+     * Write a copy of the configuration with additional Hibernate properties, the properties already set in the
+     * configuration being kept.
+     *
+     * @param properties the properties to add, with their {@code hibernate.} prefix
+     * @param directory the directory in which the copy is written
+     * @return the database configured in the copy
+     * @throws MojoExecutionException if the copy cannot be written
+     */
+    public HibernateDatabase configure(Map<String, String> properties, File directory) throws MojoExecutionException
+    {
+        StringBuilder addedProperties = new StringBuilder();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (getProperty(property.getKey().replaceFirst("^hibernate\\.", "")) == null) {
+                addedProperties.append(String.format("    <property name=\"%s\">%s</property>%n", property.getKey(),
+                    escape(property.getValue())));
+            }
+        }
+
+        int end = content.lastIndexOf(SESSION_FACTORY_END);
+        if (end < 0) {
+            throw new MojoExecutionException(
+                String.format("Hibernate configuration [%s] has no session factory", configuration));
+        }
+
+        // Insert the properties before the line closing the session factory, when it's on its own line
+        int insert = content.lastIndexOf('\n', end) + 1;
+        if (!content.substring(insert, end).trim().isEmpty()) {
+            insert = end;
+        }
+
+        return write(directory, content.substring(0, insert) + addedProperties + content.substring(insert));
+    }
+
+    /**
+     * @return a new connection to the database
+     * @throws SQLException if the connection fails
+     */
+    public Connection getConnection() throws SQLException
+    {
+        String driver = getProperty("connection.driver_class");
+        if (driver != null) {
+            try {
+                Class.forName(driver, true, getClass().getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new SQLException(String.format("Failed to load JDBC driver [%s]", driver), e);
+            }
+        }
+
+        return DriverManager.getConnection(getUrl(), getProperty("connection.username"),
+            getProperty("connection.password"));
+    }
+
+    private HibernateDatabase write(File directory, String newContent) throws MojoExecutionException
+    {
+        File newConfiguration = new File(directory, configuration.getName());
+
+        try {
+            directory.mkdirs();
+            Files.write(newConfiguration.toPath(), newContent.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                String.format("Failed to write Hibernate configuration [%s]", newConfiguration), e);
+        }
+
+        return new HibernateDatabase(newConfiguration, newContent, permanentDirectory);
+    }
+
+    private boolean isFileDatabase(Matcher matcher)
+    {
+        return matcher.matches() && !matcher.group(2).startsWith("mem:") && !matcher.group(2).startsWith("tcp:");
+    }
+
+    private String getProperty(String name)
+    {
+        Matcher matcher = getPropertyPattern(name).matcher(content);
+
+        return matcher.find() ? unescape(matcher.group(2).trim()) : null;
+    }
+
+    private Pattern getPropertyPattern(String name)
+    {
+        return Pattern.compile(
+            "(<property\\s+name=\"(?:hibernate\\.)?" + Pattern.quote(name) + "\"\\s*>)([^<]*)(</property>)");
+    }
+
+    private String escape(String value)
+    {
+        return value.replace("&", "&amp;").replace("<", "&lt;");
+    }
+
+    private String unescape(String value)
+    {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+    }
+}
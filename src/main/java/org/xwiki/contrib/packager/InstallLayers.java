@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.extension.job.plan.ExtensionPlanAction;
+import org.xwiki.extension.job.plan.ExtensionPlanNode;
+
+/**
+ * Splits an install plan into layers of extensions which do not depend on each other: the first layer only contains
+ * extensions without dependencies to install and each following layer only depends on the previous ones, so that the
+ * extensions of a layer can be installed concurrently.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class InstallLayers
+{
+    private InstallLayers()
+    {
+    }
+
+    /**
+     * @param tree the install plan tree
+     * @return the actions to apply, by layer
+     */
+    public static List<List<ExtensionPlanAction>> split(Collection<ExtensionPlanNode> tree)
+    {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        Map<String, ExtensionPlanAction> actions = new LinkedHashMap<>();
+        for (ExtensionPlanNode node : tree) {
+            computeDepth(node, depths, actions);
+        }
+
+        List<List<ExtensionPlanAction>> layers = new ArrayList<>();
+        for (Map.Entry<String, ExtensionPlanAction> action : actions.entrySet()) {
+            int depth = depths.get(action.getKey());
+            while (layers.size() <= depth) {
+                layers.add(new ArrayList<>());
+            }
+            layers.get(depth).add(action.getValue());
+        }
+        layers.removeIf(List::isEmpty);
+
+        return layers;
+    }
+
+    /**
+     * @return the layer of the node, one more than the highest layer of its dependencies, -1 if nothing has to be
+     *     installed for the node and its dependencies
+     */
+    private static int computeDepth(ExtensionPlanNode node, Map<String, Integer> depths,
+        Map<String, ExtensionPlanAction> actions)
+    {
+        int depth = -1;
+        for (ExtensionPlanNode child : node.getChildren()) {
+            depth = Math.max(depth, computeDepth(child, depths, actions));
+        }
+
+        ExtensionPlanAction action = node.getAction();
+        if (action == null || action.getAction() == ExtensionPlanAction.Action.NONE) {
+            return depth;
+        }
+
+        // The same extension can be required by several extensions of the plan, it's installed after all its
+        // dependencies
+        String key = action.getExtension().getId().getId() + '/' + action.getNamespace();
+        depth = Math.max(depth + 1, depths.getOrDefault(key, 0));
+        depths.put(key, depth);
+        actions.putIfAbsent(key, action);
+
+        return depth;
+    }
+}
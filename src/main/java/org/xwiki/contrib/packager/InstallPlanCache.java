@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xwiki.extension.job.plan.ExtensionPlanNode;
+
+/**
+ * In-memory cache of the install plans of the sets of extensions configured on the wikis, so that the wikis with the
+ * same extensions are resolved only once per build.
+ * <p>
+ * The extensions of a wiki are resolved together, and not one by one, so that the versions of the dependencies they
+ * share are resolved like they would be by the wiki itself. The main wiki installs the jars on the root namespace while
+ * the subwikis install them on their own namespace, so the plans of the main wiki and of the subwikis are cached
+ * separately. All the plans of the subwikis are resolved on the namespace of the same reference subwiki and moved to
+ * the namespace of each subwiki when they are used.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class InstallPlanCache
+{
+    private final Map<String, Collection<ExtensionPlanNode>> plans = new ConcurrentHashMap<>();
+
+    private final Map<Boolean, String> referenceNamespaces = new ConcurrentHashMap<>();
+
+    /**
+     * @param wiki the wiki whose extensions are resolved
+     * @return the namespace on which the extensions of the wiki have to be resolved
+     */
+    public String getReferenceNamespace(Wiki wiki)
+    {
+        return referenceNamespaces.computeIfAbsent(isMainWiki(wiki), main -> getNamespace(wiki));
+    }
+
+    /**
+     * @param wiki the wiki whose extensions were resolved
+     * @param extensions the configured version of each extension of the wiki, indexed by extension id
+     * @param tree the install plan of all the extensions, resolved together on the reference namespace of the wiki
+     */
+    public void put(Wiki wiki, Map<String, String> extensions, Collection<ExtensionPlanNode> tree)
+    {
+        plans.put(getKey(wiki, extensions), tree);
+    }
+
+    /**
+     * @param wiki the wiki whose extensions are resolved
+     * @param extensions the configured version of each extension of the wiki, indexed by extension id
+     * @return true if the same extensions were already resolved for the same kind of wiki
+     */
+    public boolean contains(Wiki wiki, Map<String, String> extensions)
+    {
+        return plans.containsKey(getKey(wiki, extensions));
+    }
+
+    /**
+     * @return the number of resolved sets of extensions
+     */
+    public int size()
+    {
+        return plans.size();
+    }
+
+    /**
+     * @param wiki the wiki to set up
+     * @param extensions the version of each extension to install in the wiki, indexed by extension id
+     * @return the extensions to install in the wiki sorted by layer, or null if the extensions of the wiki were not
+     *     resolved
+     */
+    public List<InstallPlanLock.LockedExtension> getPlan(Wiki wiki, Map<String, String> extensions)
+    {
+        Collection<ExtensionPlanNode> tree = plans.get(getKey(wiki, extensions));
+        if (tree == null) {
+            return null;
+        }
+
+        String referenceNamespace = referenceNamespaces.get(isMainWiki(wiki));
+        String namespace = getNamespace(wiki);
+        List<InstallPlanLock.LockedExtension> lockedExtensions = new ArrayList<>();
+        for (InstallPlanLock.LockedExtension lockedExtension : InstallPlanLock.lock(tree)) {
+            if (Objects.equals(lockedExtension.getNamespace(), referenceNamespace)) {
+                lockedExtension = lockedExtension.withNamespace(namespace);
+            }
+            lockedExtensions.add(lockedExtension);
+        }
+
+        return lockedExtensions;
+    }
+
+    private String getKey(Wiki wiki, Map<String, String> extensions)
+    {
+        // The order in which the extensions are configured doesn't change the plan
+        return (isMainWiki(wiki) ? "main" : "subwiki") + '/' + new TreeMap<>(extensions);
+    }
+
+    private boolean isMainWiki(Wiki wiki)
+    {
+        return Wiki.MAIN_WIKI_ID.equals(wiki.getId());
+    }
+
+    private String getNamespace(Wiki wiki)
+    {
+        return String.format("wiki:%s", wiki.getId());
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.job.plan.ExtensionPlanAction;
+import org.xwiki.extension.job.plan.ExtensionPlanNode;
+
+/**
+ * The exact install plan of each wiki, written by {@link WikiLockMojo} and used by {@link WikiMojo} to install the
+ * same extensions without resolving them again.
+ * <p>
+ * The file lists, for each wiki, the fingerprint of its configuration followed by one line per extension to install
+ * with its install layer (see {@link InstallLayers}), id, version, namespace and whether it's a dependency. The
+ * wikis are sorted so that the same plans always produce the same file.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class InstallPlanLock
+{
+    private static final String WIKI_PREFIX = "wiki ";
+
+    private static final String ROOT_NAMESPACE = "-";
+
+    private final Map<String, String> fingerprints = new TreeMap<>();
+
+    private final Map<String, List<LockedExtension>> extensions = new TreeMap<>();
+
+    /**
+     * An extension of a locked install plan.
+     */
+    public static final class LockedExtension implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int layer;
+
+        private final String id;
+
+        private final String version;
+
+        private final String namespace;
+
+        private final boolean dependency;
+
+        /**
+         * @param layer the install layer of the extension
+         * @param id the id of the extension
+         * @param version the version of the extension
+         * @param namespace the namespace in which the extension is installed, null for the root namespace
+         * @param dependency true if the extension is installed as a dependency
+         */
+        public LockedExtension(int layer, String id, String version, String namespace, boolean dependency)
+        {
+            this.layer = layer;
+            this.id = id;
+            this.version = version;
+            this.namespace = namespace;
+            this.dependency = dependency;
+        }
+
+        /**
+         * @return the install layer of the extension, the extensions of a layer only depending on previous layers
+         */
+        public int getLayer()
+        {
+            return layer;
+        }
+
+        /**
+         * @return the id of the extension
+         */
+        public ExtensionId getExtensionId()
+        {
+            return new ExtensionId(id, version);
+        }
+
+        /**
+         * @return the namespace in which the extension is installed, null for the root namespace
+         */
+        public String getNamespace()
+        {
+            return namespace;
+        }
+
+        /**
+         * @return true if the extension is installed as a dependency
+         */
+        public boolean isDependency()
+        {
+            return dependency;
+        }
+
+        /**
+         * @param otherNamespace the namespace in which to install the extension
+         * @return the same extension installed in another namespace
+         */
+        public LockedExtension withNamespace(String otherNamespace)
+        {
+            return new LockedExtension(layer, id, version, otherNamespace, dependency);
+        }
+
+        /**
+         * @param otherVersion the version of the extension to install
+         * @return another version of the same extension, installed in the same namespace
+         */
+        public LockedExtension withVersion(String otherVersion)
+        {
+            return new LockedExtension(layer, id, otherVersion, namespace, dependency);
+        }
+    }
+
+    /**
+     * @param tree the install plan tree
+     * @return the extensions to install according to the plan, sorted by layer
+     */
+    public static List<LockedExtension> lock(Collection<ExtensionPlanNode> tree)
+    {
+        List<LockedExtension> lockedExtensions = new ArrayList<>();
+
+        List<List<ExtensionPlanAction>> layers = InstallLayers.split(tree);
+        for (int i = 0; i < layers.size(); i++) {
+            for (ExtensionPlanAction action : layers.get(i)) {
+                ExtensionId extensionId = action.getExtension().getId();
+                lockedExtensions.add(new LockedExtension(i, extensionId.getId(),
+                    extensionId.getVersion().getValue(), action.getNamespace(), action.isDependency()));
+            }
+        }
+
+        return lockedExtensions;
+    }
+
+    /**
+     * @param lockedExtensions the extensions to install, sorted by layer
+     * @return the extensions of each layer
+     */
+    public static List<List<LockedExtension>> getLayers(List<LockedExtension> lockedExtensions)
+    {
+        List<List<LockedExtension>> layers = new ArrayList<>();
+
+        for (LockedExtension lockedExtension : lockedExtensions) {
+            while (layers.size() <= lockedExtension.getLayer()) {
+                layers.add(new ArrayList<>());
+            }
+            layers.get(lockedExtension.getLayer()).add(lockedExtension);
+        }
+        layers.removeIf(List::isEmpty);
+
+        return layers;
+    }
+
+    /**
+     * @param file the lock file
+     * @return the locked install plans read from the file
+     * @throws MojoExecutionException if the file cannot be read
+     */
+    public static InstallPlanLock load(File file) throws MojoExecutionException
+    {
+        InstallPlanLock lock = new InstallPlanLock();
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String wikiId = null;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (line.startsWith(WIKI_PREFIX) && fields.length == 3) {
+                    wikiId = fields[1];
+                    lock.put(wikiId, fields[2], new ArrayList<>());
+                } else if (wikiId != null && fields.length == 5) {
+                    lock.extensions.get(wikiId).add(new LockedExtension(Integer.parseInt(fields[0]), fields[1],
+                        fields[2], ROOT_NAMESPACE.equals(fields[3]) ? null : fields[3],
+                        Boolean.parseBoolean(fields[4])));
+                } else {
+                    throw new MojoExecutionException(String.format("Invalid line [%s] in lock file [%s]", line, file));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new MojoExecutionException(String.format("Failed to read lock file [%s]", file), e);
+        }
+
+        return lock;
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param fingerprint the fingerprint of the configuration of the wiki when its plan was resolved
+     * @param lockedExtensions the extensions to install in the wiki, sorted by layer
+     */
+    public void put(String wikiId, String fingerprint, List<LockedExtension> lockedExtensions)
+    {
+        fingerprints.put(wikiId, fingerprint);
+        extensions.put(wikiId, lockedExtensions);
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param fingerprint the fingerprint of the current configuration of the wiki
+     * @return the extensions to install in the wiki, null if the wiki is not locked or if its configuration changed
+     *     since it was locked
+     */
+    public List<LockedExtension> get(String wikiId, String fingerprint)
+    {
+        return fingerprint.equals(fingerprints.get(wikiId)) ? extensions.get(wikiId) : null;
+    }
+
+    /**
+     * @param file the lock file to write
+     * @throws MojoExecutionException if the file cannot be written
+     */
+    public void write(File file) throws MojoExecutionException
+    {
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile.toPath(), StandardCharsets.UTF_8)) {
+                writer.write("# Install plan of each wiki, generated by the lock goal of the wiki packager");
+                writer.newLine();
+                for (Map.Entry<String, List<LockedExtension>> entry : extensions.entrySet()) {
+                    writer.newLine();
+                    writer.write(WIKI_PREFIX + entry.getKey() + ' ' + fingerprints.get(entry.getKey()));
+                    writer.newLine();
+                    for (LockedExtension lockedExtension : entry.getValue()) {
+                        writer.write(String.format("%d %s %s %s %s", lockedExtension.layer, lockedExtension.id,
+                            lockedExtension.version,
+                            lockedExtension.namespace != null ? lockedExtension.namespace : ROOT_NAMESPACE,
+                            lockedExtension.dependency));
+                        writer.newLine();
+                    }
+                }
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to write lock file [%s]", file), e);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Controls which listeners run while the wikis are packaged: listeners can be suspended, either by name or by keeping
+ * only an allowed set, and the time spent in the other ones can be measured to find out which are worth suspending.
+ * Everything is reverted by {@link #restore()}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class PackagingListeners
+{
+    private final ObservationManager observationManager;
+
+    private final Map<String, EventListener> suspendedListeners = new LinkedHashMap<>();
+
+    private final Map<String, ProfiledListener> profiledListeners = new LinkedHashMap<>();
+
+    /**
+     * The time spent in a listener.
+     */
+    public static final class ListenerTiming
+    {
+        private final String name;
+
+        private final long calls;
+
+        private final long time;
+
+        private ListenerTiming(String name, long calls, long time)
+        {
+            this.name = name;
+            this.calls = calls;
+            this.time = time;
+        }
+
+        /**
+         * @return the name of the listener
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the number of events received by the listener
+         */
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        /**
+         * @return the total time spent handling events, in milliseconds
+         */
+        public long getTime()
+        {
+            return time;
+        }
+    }
+
+    /**
+     * Listener measuring the time spent in another listener.
+     */
+    private static final class ProfiledListener implements EventListener
+    {
+        private final EventListener listener;
+
+        private final AtomicLong calls = new AtomicLong();
+
+        private final AtomicLong time = new AtomicLong();
+
+        private ProfiledListener(EventListener listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public String getName()
+        {
+            return listener.getName();
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return listener.getEvents();
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            long start = System.nanoTime();
+            try {
+                listener.onEvent(event, source, data);
+            } finally {
+                time.addAndGet(System.nanoTime() - start);
+                calls.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param observationManager the observation manager in which the listeners are registered
+     */
+    public PackagingListeners(ObservationManager observationManager)
+    {
+        this.observationManager = observationManager;
+    }
+
+    /**
+     * Suspend the given listeners.
+     *
+     * @param listenerNames the names of the listeners to suspend, unknown listeners being ignored
+     */
+    public void suspend(Collection<String> listenerNames)
+    {
+        for (String listenerName : listenerNames) {
+            EventListener listener = observationManager.getListener(listenerName);
+
+            if (listener != null && !suspendedListeners.containsKey(listenerName)) {
+                observationManager.removeListener(listenerName);
+                suspendedListeners.put(listenerName, listener);
+            }
+        }
+    }
+
+    /**
+     * Suspend all the given listeners except the allowed ones.
+     *
+     * @param listeners the listeners to filter
+     * @param allowedListenerNames the names of the listeners to keep
+     */
+    public void suspendAllExcept(Collection<EventListener> listeners, Collection<String> allowedListenerNames)
+    {
+        List<String> listenerNames = new ArrayList<>();
+        for (EventListener listener : listeners) {
+            if (!allowedListenerNames.contains(listener.getName())) {
+                listenerNames.add(listener.getName());
+            }
+        }
+
+        suspend(listenerNames);
+    }
+
+    /**
+     * Measure the time spent in the given listeners, unless they are suspended.
+     *
+     * @param listeners the listeners to profile
+     */
+    public void profile(Collection<EventListener> listeners)
+    {
+        for (EventListener listener : listeners) {
+            String listenerName = listener.getName();
+            EventListener registeredListener = observationManager.getListener(listenerName);
+
+            if (registeredListener != null && !profiledListeners.containsKey(listenerName)) {
+                ProfiledListener profiledListener = new ProfiledListener(registeredListener);
+                observationManager.removeListener(listenerName);
+                observationManager.addListener(profiledListener);
+                profiledListeners.put(listenerName, profiledListener);
+            }
+        }
+    }
+
+    /**
+     * @return the names of the suspended listeners
+     */
+    public List<String> getSuspendedListeners()
+    {
+        return new ArrayList<>(suspendedListeners.keySet());
+    }
+
+    /**
+     * @return the time spent in each profiled listener, the slowest first
+     */
+    public List<ListenerTiming> getTimings()
+    {
+        List<ListenerTiming> timings = new ArrayList<>();
+        for (ProfiledListener listener : profiledListeners.values()) {
+            timings.add(new ListenerTiming(listener.getName(), listener.calls.get(),
+                listener.time.get() / 1000000));
+        }
+        timings.sort(Comparator.comparingLong(ListenerTiming::getTime).reversed());
+
+        return timings;
+    }
+
+    /**
+     * Register again the suspended listeners and stop profiling.
+     */
+    public void restore()
+    {
+        for (ProfiledListener listener : profiledListeners.values()) {
+            observationManager.removeListener(listener.getName());
+            observationManager.addListener(listener.listener);
+        }
+        profiledListeners.clear();
+
+        for (EventListener listener : suspendedListeners.values()) {
+            observationManager.addListener(listener);
+        }
+        suspendedListeners.clear();
+    }
+}
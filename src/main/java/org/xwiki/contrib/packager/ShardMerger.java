@@ -0,0 +1,321 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.xwiki.tool.extension.util.ExtensionArtifact;
+
+/**
+ * Merges the wikis set up by a shard in the packaged database: each wiki is created empty, the content of its schema
+ * is copied from the database of the shard and the extensions installed by the shard are registered in the wiki.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class ShardMerger
+{
+    private static final int BATCH_SIZE = 500;
+
+    private final WikiHelper wikiHelper;
+
+    private final HibernateDatabase database;
+
+    private final Log log;
+
+    /**
+     * @param wikiHelper the helper of the instance using the packaged database
+     * @param database the packaged database
+     * @param log the logger to use
+     */
+    public ShardMerger(WikiHelper wikiHelper, HibernateDatabase database, Log log)
+    {
+        this.wikiHelper = wikiHelper;
+        this.database = database;
+        this.log = log;
+    }
+
+    /**
+     * @param wiki the wiki to merge
+     * @param shardDatabase the database of the shard which set up the wiki
+     * @param extensions the version of each extension installed in the wiki by the shard, indexed by extension id
+     * @throws MojoExecutionException if the wiki cannot be merged
+     */
+    public void merge(Wiki wiki, HibernateDatabase shardDatabase, Map<String, String> extensions)
+        throws MojoExecutionException
+    {
+        long startTime = System.currentTimeMillis();
+
+        wikiHelper.createWiki(wiki, null);
+
+        long rowCount;
+        try (Connection source = shardDatabase.getConnection(); Connection target = database.getConnection()) {
+            rowCount = copySchema(source, target, wiki.getId());
+        } catch (SQLException e) {
+            throw new MojoExecutionException(String.format("Failed to copy the content of wiki [%s]", wiki.getId()),
+                e);
+        }
+        wikiHelper.flushDocumentCache();
+
+        // The extensions configured on the wiki are the only ones which were not installed as dependencies
+        Set<String> dependencies = new HashSet<>(extensions.keySet());
+        for (ExtensionArtifact artifact : wiki.getExtensions()) {
+            dependencies.remove(String.format("%s:%s", artifact.getGroupId(), artifact.getArtifactId()));
+        }
+        wikiHelper.registerInstalledExtensions(wiki.getId(), extensions, dependencies);
+
+        log.info(String.format("Merged wiki [%s] (%d rows, %d extensions) in %d ms", wiki.getId(), rowCount,
+            extensions.size(), System.currentTimeMillis() - startTime));
+    }
+
+    private long copySchema(Connection source, Connection target, String wikiId)
+        throws SQLException, MojoExecutionException
+    {
+        String sourceSchema = findSchema(source, wikiId);
+        String targetSchema = findSchema(target, wikiId);
+
+        // The referenced tables are filled before the tables referencing them, and emptied after them
+        Map<String, String> tables = new LinkedHashMap<>();
+        for (String table : sortByForeignKeys(source, sourceSchema, getTables(source, sourceSchema))) {
+            String targetTable = findTable(target, targetSchema, table);
+            if (targetTable == null) {
+                log.warn(String.format("Table [%s] of wiki [%s] does not exist in the packaged database, skipping it",
+                    table, wikiId));
+            } else {
+                tables.put(table, targetTable);
+            }
+        }
+
+        long rowCount = 0;
+        target.setAutoCommit(false);
+        try {
+            List<String> targetTables = new ArrayList<>(tables.values());
+            Collections.reverse(targetTables);
+            for (String targetTable : targetTables) {
+                // The creation of the wiki might have added some documents which are replaced by the ones of the shard
+                try (Statement delete = target.createStatement()) {
+                    delete.executeUpdate("DELETE FROM " + getName(target, targetSchema, targetTable));
+                }
+            }
+            for (Map.Entry<String, String> table : tables.entrySet()) {
+                rowCount += copyTable(source, getName(source, sourceSchema, table.getKey()), target,
+                    getName(target, targetSchema, table.getValue()));
+            }
+            target.commit();
+        } catch (SQLException e) {
+            target.rollback();
+            throw e;
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * @return the tables sorted so that each table comes after the tables it references, the tables of a reference
+     *     cycle being kept in their original order
+     */
+    private List<String> sortByForeignKeys(Connection connection, String schema, List<String> tables)
+        throws SQLException
+    {
+        Map<String, Set<String>> referencedTables = new LinkedHashMap<>();
+        for (String table : tables) {
+            Set<String> references = new HashSet<>();
+            try (ResultSet keys = connection.getMetaData().getImportedKeys(null, schema, table)) {
+                while (keys.next()) {
+                    String referencedTable = keys.getString("PKTABLE_NAME");
+                    if (!table.equals(referencedTable) && tables.contains(referencedTable)) {
+                        references.add(referencedTable);
+                    }
+                }
+            }
+            referencedTables.put(table, references);
+        }
+
+        List<String> sortedTables = new ArrayList<>(tables.size());
+        while (!referencedTables.isEmpty()) {
+            String nextTable = null;
+            for (Map.Entry<String, Set<String>> table : referencedTables.entrySet()) {
+                if (table.getValue().isEmpty()) {
+                    nextTable = table.getKey();
+                    break;
+                }
+            }
+            if (nextTable == null) {
+                // A cycle, which the database has to accept in any order
+                nextTable = referencedTables.keySet().iterator().next();
+            }
+
+            referencedTables.remove(nextTable);
+            for (Set<String> references : referencedTables.values()) {
+                references.remove(nextTable);
+            }
+            sortedTables.add(nextTable);
+        }
+
+        return sortedTables;
+    }
+
+    private long copyTable(Connection source, String sourceTable, Connection target, String targetTable)
+        throws SQLException
+    {
+        long rowCount = 0;
+
+        try (Statement select = source.createStatement();
+            ResultSet rows = select.executeQuery("SELECT * FROM " + sourceTable)) {
+            ResultSetMetaData metaData = rows.getMetaData();
+            String quote = target.getMetaData().getIdentifierQuoteString().trim();
+
+            StringBuilder columns = new StringBuilder();
+            StringBuilder parameters = new StringBuilder();
+            boolean hasLargeObjects = false;
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (i > 1) {
+                    columns.append(", ");
+                    parameters.append(", ");
+                }
+                columns.append(quote).append(metaData.getColumnName(i)).append(quote);
+                parameters.append('?');
+                hasLargeObjects |= isLargeObject(metaData.getColumnType(i));
+            }
+
+            try (PreparedStatement insert = target.prepareStatement(
+                String.format("INSERT INTO %s (%s) VALUES (%s)", targetTable, columns, parameters))) {
+                while (rows.next()) {
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        setValue(insert, rows, i, metaData.getColumnType(i));
+                    }
+                    rowCount++;
+
+                    if (hasLargeObjects) {
+                        // The streams of the large objects are only valid until the next row is read
+                        insert.executeUpdate();
+                    } else {
+                        insert.addBatch();
+                        if (rowCount % BATCH_SIZE == 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                }
+                if (!hasLargeObjects) {
+                    insert.executeBatch();
+                }
+            }
+        }
+
+        return rowCount;
+    }
+
+    private boolean isLargeObject(int type)
+    {
+        return type == Types.BLOB || type == Types.CLOB || type == Types.NCLOB;
+    }
+
+    /**
+     * Copy the value of a column, the large objects being streamed instead of being loaded in memory.
+     */
+    private void setValue(PreparedStatement insert, ResultSet rows, int column, int type) throws SQLException
+    {
+        if (type == Types.BLOB) {
+            InputStream stream = rows.getBinaryStream(column);
+            if (stream != null) {
+                insert.setBinaryStream(column, stream);
+            } else {
+                insert.setNull(column, type);
+            }
+        } else if (type == Types.CLOB || type == Types.NCLOB) {
+            Reader reader = rows.getCharacterStream(column);
+            if (reader != null) {
+                insert.setCharacterStream(column, reader);
+            } else {
+                insert.setNull(column, type);
+            }
+        } else {
+            insert.setObject(column, rows.getObject(column), type);
+        }
+    }
+
+    /**
+     * @return the name of the schema of the wiki, which depends on the database
+     */
+    private String findSchema(Connection connection, String wikiId) throws SQLException, MojoExecutionException
+    {
+        try (ResultSet schemas = connection.getMetaData().getSchemas()) {
+            while (schemas.next()) {
+                String schema = schemas.getString("TABLE_SCHEM");
+                if (schema.equalsIgnoreCase(wikiId)) {
+                    return schema;
+                }
+            }
+        }
+
+        throw new MojoExecutionException(
+            String.format("No schema found for wiki [%s] in database [%s]", wikiId, connection.getMetaData().getURL()));
+    }
+
+    private List<String> getTables(Connection connection, String schema) throws SQLException
+    {
+        List<String> tables = new ArrayList<>();
+
+        try (ResultSet result = connection.getMetaData().getTables(null, schema, "%", new String[] {"TABLE"})) {
+            while (result.next()) {
+                tables.add(result.getString("TABLE_NAME"));
+            }
+        }
+
+        return tables;
+    }
+
+    private String findTable(Connection connection, String schema, String table) throws SQLException
+    {
+        for (String candidate : getTables(connection, schema)) {
+            if (candidate.equalsIgnoreCase(table)) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private String getName(Connection connection, String schema, String table) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String quote = metaData.getIdentifierQuoteString().trim();
+
+        return quote + schema + quote + '.' + quote + table + quote;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A forked process setting up a shard of the wikis, its output being forwarded to the log of the build.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class ShardProcess
+{
+    private final int index;
+
+    private final List<String> command;
+
+    private final Log log;
+
+    private Process process;
+
+    private Thread outputPump;
+
+    /**
+     * @param index the index of the shard
+     * @param command the command running the shard
+     * @param log the logger to use
+     */
+    public ShardProcess(int index, List<String> command, Log log)
+    {
+        this.index = index;
+        this.command = command;
+        this.log = log;
+    }
+
+    /**
+     * @return the index of the shard
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Start the process.
+     *
+     * @throws MojoExecutionException if the process cannot be started
+     */
+    public void start() throws MojoExecutionException
+    {
+        log.info(String.format("Starting shard %d: %s", index, command));
+
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to start shard %d", index), e);
+        }
+
+        outputPump = new Thread(this::pumpOutput, String.format("WikiShard-%d-output", index));
+        outputPump.setDaemon(true);
+        outputPump.start();
+    }
+
+    /**
+     * Wait for the process to exit, killing it if it takes too long.
+     *
+     * @param timeout the maximum time to wait in milliseconds, 0 for no limit
+     * @return true if the process exited successfully
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean waitFor(long timeout) throws InterruptedException
+    {
+        boolean exited;
+        if (timeout > 0) {
+            exited = process.waitFor(timeout, TimeUnit.MILLISECONDS);
+        } else {
+            process.waitFor();
+            exited = true;
+        }
+
+        if (!exited) {
+            log.error(String.format("Timed out while waiting for shard %d, killing it", index));
+            destroy();
+
+            return false;
+        }
+
+        outputPump.join();
+        if (process.exitValue() != 0) {
+            log.error(String.format("Shard %d failed with exit code %d", index, process.exitValue()));
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Kill the process if it's still running.
+     */
+    public void destroy()
+    {
+        if (process != null && process.isAlive()) {
+            process.destroyForcibly();
+        }
+    }
+
+    private void pumpOutput()
+    {
+        try (BufferedReader reader =
+            new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+            String prefix = String.format("[shard %d] ", index);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                log.info(prefix + line);
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Failed to read the output of shard %d", index), e);
+        }
+    }
+}
@@ -33,6 +33,11 @@ import org.xwiki.wiki.user.UserScope;
  */
 public class Wiki
 {
+    /**
+     * The id of the main wiki.
+     */
+    public static final String MAIN_WIKI_ID = "xwiki";
+
     private String id;
 
     private String prettyName;
@@ -47,6 +52,12 @@ public class Wiki
 
     private List<ExtensionArtifact> extensions;
 
+    private List<String> extensionSets;
+
+    private List<String> dependsOn;
+
+    private int cacheFlushInterval;
+
     /**
      * Builds a {@link Wiki} with some default parameters.
      */
@@ -60,6 +71,8 @@ public class Wiki
         this.userScope = UserScope.GLOBAL_ONLY;
         this.template = false;
         this.extensions = Collections.emptyList();
+        this.extensionSets = Collections.emptyList();
+        this.dependsOn = Collections.emptyList();
     }
 
     /**
@@ -173,4 +186,56 @@ public class Wiki
     {
         this.extensions = extensions;
     }
+
+    /**
+     * @return the ids of the {@link ExtensionSet}s whose extensions are installed in the wiki, on top of
+     *     {@link #getExtensions()}
+     */
+    public List<String> getExtensionSets()
+    {
+        return extensionSets;
+    }
+
+    /**
+     * @param extensionSets the ids of the {@link ExtensionSet}s whose extensions are installed in the wiki, on top of
+     *     {@link #getExtensions()}
+     */
+    public void setExtensionSets(List<String> extensionSets)
+    {
+        this.extensionSets = extensionSets;
+    }
+
+    /**
+     * @return the ids of the wikis which have to be set up before this wiki
+     */
+    public List<String> getDependsOn()
+    {
+        return dependsOn;
+    }
+
+    /**
+     * @param dependsOn the ids of the wikis which have to be set up before this wiki
+     */
+    public void setDependsOn(List<String> dependsOn)
+    {
+        this.dependsOn = dependsOn;
+    }
+
+    /**
+     * @return the number of imported documents after which the document cache of the instance is flushed (for all the
+     *     wikis) and the install is no longer verbose, 0 to keep the default behavior
+     */
+    public int getCacheFlushInterval()
+    {
+        return cacheFlushInterval;
+    }
+
+    /**
+     * @param cacheFlushInterval the number of imported documents after which the document cache of the instance is
+     *     flushed (for all the wikis) and the install is no longer verbose, 0 to keep the default behavior
+     */
+    public void setCacheFlushInterval(int cacheFlushInterval)
+    {
+        this.cacheFlushInterval = cacheFlushInterval;
+    }
 }
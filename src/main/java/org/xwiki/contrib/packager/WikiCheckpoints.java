@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+/**
+ * Records the wikis successfully set up: in the state kept between builds to skip the wikis which did not change
+ * (incremental mode), and in the checkpoint of the current execution to resume it when it fails.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiCheckpoints
+{
+    /**
+     * The name of the checkpoint file in the packager directory.
+     */
+    public static final String CHECKPOINT_FILE = "checkpoint.properties";
+
+    private static final String STATE_FILE = "state.properties";
+
+    private final WikiPackagerState state;
+
+    private final WikiPackagerState checkpoint;
+
+    private final WikiHelper wikiHelper;
+
+    private final Log log;
+
+    private WikiCheckpoints(WikiPackagerState state, WikiPackagerState checkpoint, WikiHelper wikiHelper, Log log)
+    {
+        this.state = state;
+        this.checkpoint = checkpoint;
+        this.wikiHelper = wikiHelper;
+        this.log = log;
+    }
+
+    /**
+     * @param packagerDirectory the directory in which the state and the checkpoint are kept
+     * @param incremental true to load the state of the previous builds, false to ignore it
+     * @param resume true to load the checkpoint of the previous execution, false to start a new one
+     * @param wikiHelper the helper used to check that the recorded wikis still exist
+     * @param log the log
+     * @return the checkpoints
+     * @throws MojoExecutionException if the state or the checkpoint cannot be read
+     */
+    public static WikiCheckpoints load(File packagerDirectory, boolean incremental, boolean resume,
+        WikiHelper wikiHelper, Log log) throws MojoExecutionException
+    {
+        WikiPackagerState state = incremental ? WikiPackagerState.load(new File(packagerDirectory, STATE_FILE)) : null;
+        File checkpointFile = new File(packagerDirectory, CHECKPOINT_FILE);
+        WikiPackagerState checkpoint =
+            resume ? WikiPackagerState.load(checkpointFile) : new WikiPackagerState(checkpointFile);
+
+        return new WikiCheckpoints(state, checkpoint, wikiHelper, log);
+    }
+
+    /**
+     * @param wiki the wiki
+     * @param fingerprint the fingerprint of the wiki configuration
+     * @param extensions the version of each extension to install in the wiki, indexed by extension id
+     * @return true if the wiki was set up by a previous build with the same configuration and still exists, always
+     *     false when not incremental
+     */
+    public boolean isUpToDate(Wiki wiki, String fingerprint, Map<String, String> extensions)
+    {
+        if (state == null || !fingerprint.equals(state.getFingerprint(wiki.getId()))) {
+            return false;
+        }
+
+        return isWikiSetUp(wiki, extensions);
+    }
+
+    /**
+     * @param wiki the wiki
+     * @param fingerprint the fingerprint of the wiki configuration
+     * @return true if the wiki was set up by the previous execution with the same configuration and still exists
+     */
+    public boolean isCheckpointed(Wiki wiki, String fingerprint)
+    {
+        if (!fingerprint.equals(checkpoint.getFingerprint(wiki.getId()))) {
+            return false;
+        }
+
+        return isWikiSetUp(wiki, checkpoint.getExtensions(wiki.getId()));
+    }
+
+    private boolean isWikiSetUp(Wiki wiki, Map<String, String> extensions)
+    {
+        try {
+            return wikiHelper.isWikiSetUp(wiki.getId(), extensions);
+        } catch (WikiManagerException e) {
+            log.warn(String.format("Failed to check if wiki [%s] exists, setting it up again", wiki.getId()), e);
+
+            return false;
+        }
+    }
+
+    /**
+     * Forget a wiki about to be set up, so that it's not considered as set up if its setup is interrupted.
+     *
+     * @param wikiId the id of the wiki
+     */
+    public void invalidate(String wikiId)
+    {
+        if (state != null) {
+            state.remove(wikiId);
+            save(state);
+        }
+
+        checkpoint.remove(wikiId);
+        save(checkpoint);
+    }
+
+    /**
+     * Record a wiki which was successfully set up so that it's skipped by the next builds.
+     *
+     * @param wiki the wiki
+     * @param fingerprint the fingerprint of the wiki configuration
+     */
+    public void checkpoint(Wiki wiki, String fingerprint)
+    {
+        if (state != null) {
+            state.setFingerprint(wiki.getId(), fingerprint);
+            save(state);
+        }
+
+        checkpoint.setFingerprint(wiki.getId(), fingerprint);
+        checkpoint.setExtensions(wiki.getId(), wikiHelper.getInstalledExtensions(wiki.getId()));
+        save(checkpoint);
+    }
+
+    private void save(WikiPackagerState wikiState)
+    {
+        try {
+            wikiState.save();
+        } catch (MojoExecutionException e) {
+            log.warn("Failed to save the wiki packager state, the next build will not be able to skip wikis", e);
+        }
+    }
+}
@@ -20,26 +20,60 @@
 package org.xwiki.contrib.packager;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.wiki.internal.DefaultWikiComponentManagerEventListener;
 import org.xwiki.context.Execution;
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.InstallException;
+import org.xwiki.extension.InstalledExtension;
+import org.xwiki.extension.LocalExtension;
+import org.xwiki.extension.event.ExtensionInstalledEvent;
+import org.xwiki.extension.internal.validator.AbstractExtensionValidator;
+import org.xwiki.extension.job.InstallRequest;
+import org.xwiki.extension.job.internal.InstallJob;
+import org.xwiki.extension.job.internal.InstallPlanJob;
+import org.xwiki.extension.job.plan.ExtensionPlan;
+import org.xwiki.extension.repository.ExtensionRepositoryManager;
+import org.xwiki.extension.repository.InstalledExtensionRepository;
+import org.xwiki.extension.repository.LocalExtensionRepository;
+import org.xwiki.extension.script.ScriptExtensionRewriter;
 import org.xwiki.job.Job;
 import org.xwiki.job.JobException;
 import org.xwiki.job.JobExecutor;
+import org.xwiki.job.Request;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.platform.wiki.creationjob.WikiCreationRequest;
+import org.xwiki.platform.wiki.creationjob.WikiSource;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiCacheStoreInterface;
+import com.xpn.xwiki.store.XWikiStoreInterface;
 import com.xpn.xwiki.web.Utils;
 
 /**
@@ -52,6 +86,13 @@ import com.xpn.xwiki.web.Utils;
 @Singleton
 public class WikiHelper implements AutoCloseable
 {
+    /**
+     * The listeners triggering the evaluation of velocity code upon extension installation, see
+     * {@link #nukeListeners()}.
+     */
+    public static final List<String> DISABLED_LISTENERS = Arrays.asList("EventStreamStoreListener",
+        DefaultWikiComponentManagerEventListener.EVENT_LISTENER_NAME);
+
     @Inject
     private Execution execution;
 
@@ -67,6 +108,30 @@ public class WikiHelper implements AutoCloseable
     @Inject
     private JobExecutor jobExecutor;
 
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
+    @Inject
+    private InstalledExtensionRepository installedExtensionRepository;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private LocalExtensionRepository localExtensionRepository;
+
+    @Inject
+    private ExtensionRepositoryManager extensionRepositoryManager;
+
     private File hibernateConfig;
 
     private boolean disposeComponentManager;
@@ -141,6 +206,67 @@ public class WikiHelper implements AutoCloseable
         }
     }
 
+    /**
+     * Make sure the current thread has an execution context, typically when the instance is reused from another
+     * thread than the one which started it.
+     *
+     * @throws MojoExecutionException when failing to initialize the execution context
+     */
+    public void ensureExecutionContext() throws MojoExecutionException
+    {
+        if (execution.getContext() == null) {
+            try {
+                executionContextManager.initialize(new ExecutionContext());
+            } catch (Exception e) {
+                throw new MojoExecutionException("Failed to initialize Execution Context.", e);
+            }
+        }
+    }
+
+    /**
+     * Give the current thread its own execution context, in which the current wiki is the given one, so that jobs
+     * running in parallel don't share any state. The context must be removed with {@link #popExecutionContext()}.
+     *
+     * @param wikiId the id of the current wiki in the new context
+     * @throws MojoExecutionException when failing to initialize the execution context
+     */
+    public void pushExecutionContext(String wikiId) throws MojoExecutionException
+    {
+        ExecutionContext parentContext = execution.getContext();
+        XWikiContext parentXContext = parentContext != null
+            ? (XWikiContext) parentContext.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY) : null;
+
+        ExecutionContext context = new ExecutionContext();
+        execution.pushContext(context);
+        try {
+            executionContextManager.initialize(context);
+        } catch (Exception e) {
+            execution.popContext();
+            throw new MojoExecutionException("Failed to initialize Execution Context.", e);
+        }
+
+        XWikiContext xcontext;
+        if (parentXContext != null) {
+            // Keep the XWiki instance and the user of the parent context
+            xcontext = parentXContext.clone();
+            xcontext.declareInExecutionContext(context);
+        } else {
+            xcontext = xcontextProvider.get();
+        }
+        if (xcontext != null) {
+            xcontext.setWikiId(wikiId);
+        }
+    }
+
+    /**
+     * Remove the execution context pushed by {@link #pushExecutionContext(String)}, with everything the job left in
+     * it, and restore the previous one.
+     */
+    public void popExecutionContext()
+    {
+        execution.popContext();
+    }
+
     /**
      * Uses the string {@link DocumentReferenceResolver} to resolve a document full name into a DocumentReference.
      * @param documentReference the name of the document
@@ -163,6 +289,305 @@ public class WikiHelper implements AutoCloseable
         return jobExecutor.execute("wikicreationjob", request);
     }
 
+    /**
+     * Create a new wiki and wait until it's created.
+     *
+     * @param wiki the wiki to create
+     * @param templateWikiId the id of the wiki to copy, null to create an empty wiki
+     * @throws MojoExecutionException if the wiki cannot be created
+     */
+    public void createWiki(Wiki wiki, String templateWikiId) throws MojoExecutionException
+    {
+        WikiCreationRequest creationRequest = new WikiCreationRequest();
+        creationRequest.setId(wiki.getId());
+        creationRequest.setWikiId(wiki.getId());
+        creationRequest.setPrettyName(wiki.getPrettyName());
+        creationRequest.setOwnerId(wiki.getOwner());
+        creationRequest.setMembershipType(wiki.getMembership());
+        creationRequest.setUserScope(wiki.getUserScope());
+        creationRequest.setTemplate(wiki.isTemplate());
+
+        creationRequest.setMembers(Collections.EMPTY_LIST);
+        creationRequest.setAlias(wiki.getId());
+        creationRequest.setFailOnExist(false);
+
+        if (templateWikiId != null) {
+            creationRequest.setWikiSource(WikiSource.TEMPLATE);
+            creationRequest.setTemplateId(templateWikiId);
+        }
+
+        Job creationJob;
+        try {
+            creationJob = createWiki(creationRequest);
+            creationJob.join();
+        } catch (Exception e) {
+            throw new MojoExecutionException(String.format("Failed to create wiki [%s]", wiki.getId()), e);
+        }
+
+        if (creationJob.getStatus().getError() != null) {
+            throw new MojoExecutionException(String.format("Failed to create wiki [%s]", wiki.getId()),
+                creationJob.getStatus().getError());
+        }
+    }
+
+    /**
+     * Check in the store if a wiki exists and contains the given extensions.
+     *
+     * @param wikiId the id of the wiki
+     * @param extensions the version of each extension expected in the wiki, indexed by extension id, a null version
+     *     matching any installed version
+     * @return true if the wiki and all its extensions are already installed
+     * @throws WikiManagerException if the wiki descriptors cannot be read
+     */
+    public boolean isWikiSetUp(String wikiId, Map<String, String> extensions) throws WikiManagerException
+    {
+        if (!wikiDescriptorManager.exists(wikiId)) {
+            return false;
+        }
+
+        String namespace = String.format("wiki:%s", wikiId);
+        for (Map.Entry<String, String> extension : extensions.entrySet()) {
+            InstalledExtension installedExtension =
+                installedExtensionRepository.getInstalledExtension(extension.getKey(), namespace);
+
+            if (installedExtension == null || (extension.getValue() != null
+                && !extension.getValue().equals(installedExtension.getId().getVersion().getValue()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @return the ids of the extensions installed in the wiki
+     */
+    public List<ExtensionId> getInstalledExtensions(String wikiId)
+    {
+        List<ExtensionId> extensionIds = new ArrayList<>();
+        for (InstalledExtension installedExtension : installedExtensionRepository
+            .getInstalledExtensions(String.format("wiki:%s", wikiId))) {
+            extensionIds.add(installedExtension.getId());
+        }
+
+        return extensionIds;
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @return the number of documents in the wiki
+     * @throws QueryException if the documents cannot be counted
+     */
+    public long countDocuments(String wikiId) throws QueryException
+    {
+        List<Long> result = queryManager.createQuery("select count(doc.id) from XWikiDocument doc", Query.HQL)
+            .setWiki(wikiId).execute();
+
+        return result.get(0);
+    }
+
+    /**
+     * Release the documents kept in the document cache, including their attachments.
+     */
+    public void flushDocumentCache()
+    {
+        XWikiStoreInterface store = xcontextProvider.get().getWiki().getStore();
+
+        if (store instanceof XWikiCacheStoreInterface) {
+            ((XWikiCacheStoreInterface) store).flushCache();
+        }
+    }
+
+    /**
+     * Register in a wiki the extensions installed in another wiki, typically after copying its documents.
+     *
+     * @param fromWikiId the id of the wiki in which the extensions are installed
+     * @param toWikiId the id of the wiki in which the extensions should be registered
+     * @throws InstallException if an extension cannot be registered
+     */
+    public void copyInstalledExtensions(String fromWikiId, String toWikiId) throws InstallException
+    {
+        String fromNamespace = String.format("wiki:%s", fromWikiId);
+        String toNamespace = String.format("wiki:%s", toWikiId);
+
+        for (InstalledExtension extension : installedExtensionRepository.getInstalledExtensions(fromNamespace)) {
+            // Extensions installed on root are already available in every wiki
+            if (extension.getNamespaces() != null) {
+                InstalledExtension installedExtension = installedExtensionRepository.installExtension(extension,
+                    toNamespace, extension.isDependency(fromNamespace));
+
+                // Let the extension handlers (e.g. the XAR document index) know about the new extension
+                observationManager.notify(new ExtensionInstalledEvent(installedExtension.getId(), toNamespace),
+                    installedExtension, null);
+            }
+        }
+    }
+
+    /**
+     * Register extensions as installed in a wiki without running their handlers, typically because the content of
+     * the wiki was copied from another database where they were installed.
+     *
+     * @param wikiId the id of the wiki
+     * @param extensions the version of each extension installed in the wiki, indexed by extension id
+     * @param dependencies the ids of the extensions which were installed as dependencies
+     * @throws MojoExecutionException if an extension cannot be resolved or registered
+     */
+    public void registerInstalledExtensions(String wikiId, Map<String, String> extensions,
+        Collection<String> dependencies) throws MojoExecutionException
+    {
+        String namespace = String.format("wiki:%s", wikiId);
+
+        for (Map.Entry<String, String> extension : extensions.entrySet()) {
+            ExtensionId extensionId = new ExtensionId(extension.getKey(), extension.getValue());
+
+            try {
+                LocalExtension localExtension = localExtensionRepository.getLocalExtension(extensionId);
+                if (localExtension == null) {
+                    localExtension = localExtensionRepository.storeExtension(
+                        extensionRepositoryManager.resolve(extensionId));
+                }
+
+                InstalledExtension installedExtension = installedExtensionRepository.installExtension(localExtension,
+                    namespace, dependencies.contains(extension.getKey()));
+
+                // Let the extension handlers (e.g. the XAR document index) know about the new extension
+                observationManager.notify(new ExtensionInstalledEvent(installedExtension.getId(), namespace),
+                    installedExtension, null);
+            } catch (Exception e) {
+                throw new MojoExecutionException(String.format("Failed to register extension [%s] in wiki [%s]",
+                    extensionId, wikiId), e);
+            }
+        }
+    }
+
+    /**
+     * @param extensionId the id of the extension
+     * @param namespace the namespace, null for the root namespace
+     * @return true if the extension is installed in the namespace or in the root namespace
+     */
+    public boolean isInstalled(ExtensionId extensionId, String namespace)
+    {
+        InstalledExtension installedExtension =
+            installedExtensionRepository.getInstalledExtension(extensionId.getId(), namespace);
+
+        return installedExtension != null && installedExtension.getId().equals(extensionId);
+    }
+
+    /**
+     * @param extensionId the id of the extension
+     * @return the type of the extension stored in the local extension repository, null if it's not stored yet
+     */
+    public String getExtensionType(ExtensionId extensionId)
+    {
+        LocalExtension localExtension = localExtensionRepository.getLocalExtension(extensionId);
+
+        return localExtension != null ? localExtension.getType() : null;
+    }
+
+    /**
+     * Mark an installed extension as installed as a dependency of another extension.
+     *
+     * @param extensionId the id of the extension
+     * @param namespace the namespace in which the extension is installed, null for the root namespace
+     * @throws InstallException if the extension cannot be updated
+     */
+    public void setDependency(ExtensionId extensionId, String namespace) throws InstallException
+    {
+        InstalledExtension installedExtension = installedExtensionRepository.getInstalledExtension(extensionId);
+
+        if (installedExtension != null && !installedExtension.isDependency(namespace)) {
+            installedExtensionRepository.installExtension(installedExtension, namespace, true);
+        }
+    }
+
+    /**
+     * Create a request for installing extensions in a wiki.
+     *
+     * @param wiki the wiki in which the extensions are installed
+     * @return the install request, without any extension
+     */
+    public InstallRequest createInstallRequest(Wiki wiki)
+    {
+        InstallRequest installRequest = new InstallRequest();
+
+        if (wiki.getId().equals(Wiki.MAIN_WIKI_ID)) {
+            // Allow modifying root namespace
+            installRequest.setRootModificationsAllowed(true);
+
+            // Make sure jars are installed on root
+            // TODO: use a less script oriented class
+            ScriptExtensionRewriter rewriter = new ScriptExtensionRewriter();
+            rewriter.installExtensionTypeOnRootNamespace("jar");
+            rewriter.installExtensionTypeOnRootNamespace("webjar");
+            installRequest.setRewriter(rewriter);
+        }
+
+        installRequest.setProperty(AbstractExtensionValidator.PROPERTY_USERREFERENCE,
+            resolveStringDocumentReference(wiki.getOwner()));
+
+        return installRequest;
+    }
+
+    /**
+     * Resolve the install plan of the extensions of the given request, without installing anything.
+     *
+     * @param installRequest the install request
+     * @return the install plan
+     * @throws MojoExecutionException if the plan cannot be resolved
+     */
+    public ExtensionPlan resolveInstallPlan(InstallRequest installRequest) throws MojoExecutionException
+    {
+        return (ExtensionPlan) runJob(InstallPlanJob.JOBTYPE, installRequest).getStatus();
+    }
+
+    /**
+     * Install the extensions of the given request in the current thread.
+     *
+     * @param installRequest the install request
+     * @throws MojoExecutionException if the extensions cannot be installed
+     */
+    public void install(InstallRequest installRequest) throws MojoExecutionException
+    {
+        runJob(InstallJob.JOBTYPE, installRequest);
+    }
+
+    private Job runJob(String jobType, Request request) throws MojoExecutionException
+    {
+        Job job;
+        try {
+            job = componentManager.getInstance(Job.class, jobType);
+        } catch (Exception e) {
+            throw new MojoExecutionException(String.format("Failed to get a job of type [%s]", jobType), e);
+        }
+
+        job.initialize(request);
+        job.run();
+
+        if (job.getStatus().getError() != null) {
+            throw new MojoExecutionException(String.format("Job of type [%s] failed", jobType),
+                job.getStatus().getError());
+        }
+
+        return job;
+    }
+
+    /**
+     * @return the component manager in which this helper is registered
+     */
+    public ComponentManager getComponentManager()
+    {
+        return componentManager;
+    }
+
+    /**
+     * @return the permanent directory of the instance
+     */
+    public File getPermanentDirectory()
+    {
+        return environment.getPermanentDirectory();
+    }
+
     /**
      * @return the injected job executor
      */
@@ -171,21 +596,56 @@ public class WikiHelper implements AutoCloseable
         return jobExecutor;
     }
 
+    /**
+     * Create a job without starting it, to run it in another executor than the job executor.
+     *
+     * @param jobType the type of the job
+     * @param request the request of the job
+     * @return the initialized job
+     * @throws JobException if the job cannot be created
+     */
+    public Job createJob(String jobType, Request request) throws JobException
+    {
+        Job job;
+        try {
+            job = componentManager.getInstance(Job.class, jobType);
+        } catch (ComponentLookupException e) {
+            throw new JobException(String.format("Failed to lookup job of type [%s]", jobType), e);
+        }
+        job.initialize(request);
+
+        return job;
+    }
+
+    /**
+     * @return the injected observation manager
+     */
+    public ObservationManager getObservationManager()
+    {
+        return observationManager;
+    }
+
     /**
      * Unregister some listeners triggering the evaluation of velocity code upon extension installation.
      * The evaluation of velocity code implies a servlet context for the Velocity engine, which we don't have.
      */
     public void nukeListeners()
     {
-        observationManager.removeListener("EventStreamStoreListener");
-        observationManager.removeListener(DefaultWikiComponentManagerEventListener.EVENT_LISTENER_NAME);
+        for (String listenerName : DISABLED_LISTENERS) {
+            observationManager.removeListener(listenerName);
+        }
     }
 
     /**
-     * Remove a leftover property in the context, see XWIKI-17159.
+     * @return the listeners registered as components
+     * @throws MojoExecutionException if the listeners cannot be looked up
      */
-    public void cleanupContext()
+    public List<EventListener> getEventListeners() throws MojoExecutionException
     {
-        execution.getContext().removeProperty("extension.xar.packageconfiguration");
+        try {
+            return componentManager.getInstanceList(EventListener.class);
+        } catch (Exception e) {
+            throw new MojoExecutionException("Failed to lookup the event listeners", e);
+        }
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.project.MavenProject;
+import org.xwiki.tool.extension.util.ExtensionMojoHelper;
+
+/**
+ * Build scoped cache of started XWiki instances, allowing several executions of {@link WikiMojo} working on the same
+ * database to share an instance instead of starting a new one each time.
+ * <p>
+ * The cache lives in the plugin class loader, which Maven keeps for the whole build, and is emptied at the end of the
+ * Maven session by {@link WikiInstanceLifecycleParticipant}. Instances are only cached when that participant is active
+ * (the plugin is declared with {@code <extensions>true</extensions>}), since nothing would dispose them otherwise.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class WikiInstanceCache
+{
+    private static final Map<String, Instance> INSTANCES = new ConcurrentHashMap<>();
+
+    private static volatile boolean sessionScoped;
+
+    /**
+     * A started XWiki instance. Its extension helper stays bound to the project of the execution which started the
+     * instance, so the executions reusing it only use its component manager and resolve the extensions against their
+     * own project.
+     */
+    public static final class Instance
+    {
+        private final ExtensionMojoHelper extensionHelper;
+
+        private final WikiHelper wikiHelper;
+
+        private boolean used;
+
+        private Instance(ExtensionMojoHelper extensionHelper, WikiHelper wikiHelper)
+        {
+            this.extensionHelper = extensionHelper;
+            this.wikiHelper = wikiHelper;
+        }
+
+        /**
+         * @return the extension helper of the instance
+         */
+        public ExtensionMojoHelper getExtensionHelper()
+        {
+            return extensionHelper;
+        }
+
+        /**
+         * @return the wiki helper of the instance
+         */
+        public WikiHelper getWikiHelper()
+        {
+            return wikiHelper;
+        }
+    }
+
+    private WikiInstanceCache()
+    {
+        // Utility class
+    }
+
+    /**
+     * Called when the Maven session starts, the cached instances being disposed when it ends.
+     */
+    static void startSession()
+    {
+        sessionScoped = true;
+    }
+
+    /**
+     * @return true if the cached instances are disposed at the end of the Maven session, false if instances cannot be
+     *     cached
+     */
+    public static boolean isSessionScoped()
+    {
+        return sessionScoped;
+    }
+
+    /**
+     * The key identifying the instances which can be shared by several executions: same database and Hibernate
+     * configuration (wherever the configuration file is located), same plugin class path, and same project
+     * dependencies and remote repositories, from which the extensions are resolved.
+     *
+     * @param databaseUrl the URL of the database of the execution
+     * @param hibernateConfiguration the content of the Hibernate configuration of the execution
+     * @param classLoader the class loader of the plugin
+     * @param project the project of the execution
+     * @return the key of the instances which can be used by the execution
+     */
+    public static String getKey(String databaseUrl, byte[] hibernateConfiguration, ClassLoader classLoader,
+        MavenProject project)
+    {
+        StringBuilder key = new StringBuilder(databaseUrl);
+        key.append('|').append(Arrays.hashCode(hibernateConfiguration));
+
+        if (classLoader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                key.append('|').append(url);
+            }
+        }
+
+        for (Dependency dependency : project.getDependencies()) {
+            key.append('|').append(dependency.getGroupId()).append(':').append(dependency.getArtifactId())
+                .append(':').append(dependency.getVersion());
+        }
+
+        for (ArtifactRepository repository : project.getRemoteArtifactRepositories()) {
+            key.append('|').append(repository.getId()).append('=').append(repository.getUrl());
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Get exclusive access to a cached instance.
+     *
+     * @param key the key of the instance, identifying its configuration
+     * @return the cached instance, or null if there is no cached instance available for the given key
+     */
+    public static Instance acquire(String key)
+    {
+        Instance instance = INSTANCES.get(key);
+
+        if (instance != null) {
+            synchronized (instance) {
+                // The same instance cannot be used by two executions running in parallel
+                if (!instance.used) {
+                    instance.used = true;
+
+                    return instance;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Cache a newly started instance, acquired by the caller.
+     *
+     * @param key the key of the instance, identifying its configuration
+     * @param extensionHelper the extension helper of the instance
+     * @param wikiHelper the wiki helper of the instance
+     * @return the cached instance, or null if another instance is already cached for the same key
+     */
+    public static Instance register(String key, ExtensionMojoHelper extensionHelper, WikiHelper wikiHelper)
+    {
+        Instance instance = new Instance(extensionHelper, wikiHelper);
+        instance.used = true;
+
+        return INSTANCES.putIfAbsent(key, instance) == null ? instance : null;
+    }
+
+    /**
+     * Make an instance available to the next executions.
+     *
+     * @param instance the instance acquired by the caller
+     */
+    public static void release(Instance instance)
+    {
+        synchronized (instance) {
+            instance.used = false;
+        }
+    }
+
+    /**
+     * Dispose all the cached instances, called when the Maven session ends.
+     */
+    static void disposeAll()
+    {
+        for (Instance instance : INSTANCES.values()) {
+            org.xwiki.environment.System.dispose(instance.wikiHelper.getComponentManager());
+        }
+        INSTANCES.clear();
+        sessionScoped = false;
+    }
+}
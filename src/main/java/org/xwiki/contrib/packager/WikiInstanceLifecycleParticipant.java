@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * Scope the XWiki instances kept by {@link WikiInstanceCache} to the Maven session: they are disposed when the build
+ * ends. Maven only loads this participant when the plugin is declared with {@code <extensions>true</extensions>}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Named("wiki-packager")
+@Singleton
+public class WikiInstanceLifecycleParticipant extends AbstractMavenLifecycleParticipant
+{
+    @Override
+    public void afterProjectsRead(MavenSession session)
+    {
+        WikiInstanceCache.startSession();
+    }
+
+    @Override
+    public void afterSessionEnd(MavenSession session)
+    {
+        WikiInstanceCache.disposeAll();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.job.InstallRequest;
+
+/**
+ * Resolve the install plan of every configured wiki and write it in the lock file used by the {@code wiki} goal to
+ * install the exact same extensions without resolving them.
+ * <p>
+ * The plans are resolved without installing anything, so the plan of a wiki ignores the extensions installed on the
+ * root namespace by the wikis set up before it. The wikis are resolved in setup order, the main wiki first, and the
+ * version of each extension installed on the root namespace is the one of the first plan installing it, like during
+ * the setup where the following wikis find it already installed.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Mojo(name = "lock", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, requiresProject = true)
+public class WikiLockMojo extends AbstractWikiMojo
+{
+    @Override
+    public void executeInternal() throws MojoExecutionException
+    {
+        loadWikis(false);
+        InstallPlanLock lock = new InstallPlanLock();
+        Map<String, String> rootVersions = new HashMap<>();
+
+        for (Wiki wiki : getSetupOrder()) {
+            Map<String, String> extensions = getExtensionVersions(wiki);
+
+            InstallRequest installRequest = wikiHelper.createInstallRequest(wiki);
+            for (Map.Entry<String, String> extension : extensions.entrySet()) {
+                if (extension.getValue() == null) {
+                    throw new MojoExecutionException(String.format("The version of extension [%s] of wiki [%s] is "
+                        + "unknown", extension.getKey(), wiki.getId()));
+                }
+                installRequest.addExtension(new ExtensionId(extension.getKey(), extension.getValue()));
+            }
+            installRequest.addNamespace(String.format("wiki:%s", wiki.getId()));
+
+            long startTime = System.currentTimeMillis();
+            List<InstallPlanLock.LockedExtension> plan =
+                InstallPlanLock.lock(wikiHelper.resolveInstallPlan(installRequest).getTree());
+            lock.put(wiki.getId(), WikiPackagerState.fingerprint(wiki, extensions),
+                reconcileRootVersions(wiki, plan, rootVersions));
+            getLog().info(String.format("Resolved the install plan of wiki [%s] in %d ms", wiki.getId(),
+                System.currentTimeMillis() - startTime));
+        }
+
+        lock.write(lockFile);
+        getLog().info(String.format("Wrote the install plans of %d wikis to [%s]", wikis.size(), lockFile));
+    }
+
+    /**
+     * @return the wikis in the order they are set up: the main wiki first, then each wiki after the wikis it depends on
+     */
+    private List<Wiki> getSetupOrder()
+    {
+        Map<String, Wiki> wikisById = new LinkedHashMap<>();
+        wikis.stream().filter(wiki -> Wiki.MAIN_WIKI_ID.equals(wiki.getId()))
+            .forEach(wiki -> wikisById.put(wiki.getId(), wiki));
+        wikis.forEach(wiki -> wikisById.putIfAbsent(wiki.getId(), wiki));
+
+        Set<String> visitedWikis = new LinkedHashSet<>();
+        Set<String> visitingWikis = new HashSet<>();
+        for (Wiki wiki : wikisById.values()) {
+            visit(wiki, wikisById, visitedWikis, visitingWikis);
+        }
+
+        return visitedWikis.stream().map(wikisById::get).collect(Collectors.toList());
+    }
+
+    private void visit(Wiki wiki, Map<String, Wiki> wikisById, Set<String> visitedWikis, Set<String> visitingWikis)
+    {
+        // A wiki already visited, or being visited in case of a dependency cycle, rejected by the wiki goal
+        if (visitedWikis.contains(wiki.getId()) || !visitingWikis.add(wiki.getId())) {
+            return;
+        }
+
+        for (String dependency : wiki.getDependsOn()) {
+            Wiki dependencyWiki = wikisById.get(dependency);
+            if (dependencyWiki != null) {
+                visit(dependencyWiki, wikisById, visitedWikis, visitingWikis);
+            }
+        }
+        visitedWikis.add(wiki.getId());
+    }
+
+    /**
+     * Use the versions already locked for the extensions installed on the root namespace.
+     *
+     * @param wiki the wiki
+     * @param plan the install plan of the wiki
+     * @param rootVersions the version of the extensions installed on the root namespace by the previous wikis,
+     *     updated with the ones of the plan
+     * @return the install plan of the wiki, using the versions of the previous wikis on the root namespace
+     */
+    private List<InstallPlanLock.LockedExtension> reconcileRootVersions(Wiki wiki,
+        List<InstallPlanLock.LockedExtension> plan, Map<String, String> rootVersions)
+    {
+        List<InstallPlanLock.LockedExtension> reconciledPlan = new ArrayList<>(plan.size());
+
+        for (InstallPlanLock.LockedExtension extension : plan) {
+            if (extension.getNamespace() != null) {
+                reconciledPlan.add(extension);
+                continue;
+            }
+
+            String id = extension.getExtensionId().getId();
+            String version = extension.getExtensionId().getVersion().getValue();
+            String rootVersion = rootVersions.putIfAbsent(id, version);
+            if (rootVersion != null && !rootVersion.equals(version)) {
+                getLog().warn(String.format("Wiki [%s] resolved extension [%s] in version [%s] but version [%s] is"
+                    + " already installed on the root namespace by a previous wiki, locking it instead: the"
+                    + " dependencies of the plan might not match", wiki.getId(), id, version, rootVersion));
+                reconciledPlan.add(extension.withVersion(rootVersion));
+            } else {
+                reconciledPlan.add(extension);
+            }
+        }
+
+        return reconciledPlan;
+    }
+}
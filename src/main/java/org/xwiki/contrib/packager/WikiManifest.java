@@ -0,0 +1,360 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.xwiki.wiki.user.MembershipType;
+import org.xwiki.wiki.user.UserScope;
+
+/**
+ * Reads the wikis to set up from a CSV manifest, one wiki per line, so that a large number of wikis doesn't have to be
+ * configured in the POM. The wikis are read lazily while iterating.
+ * <p>
+ * The first line lists the columns among {@code id} (required), {@code prettyName}, {@code owner},
+ * {@code membership}, {@code userScope}, {@code template}, {@code extensionSets}, {@code dependsOn} and
+ * {@code cacheFlushInterval}. The extensions of a wiki are given as ids of {@link ExtensionSet}s, and both lists are
+ * separated by semicolons. A wiki can only depend on the wikis defined before it. Empty lines and lines starting with
+ * {@code #} are ignored, and values containing a comma can be quoted.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiManifest implements Iterator<Wiki>, Closeable
+{
+    private static final String ID_COLUMN = "id";
+
+    private static final String CACHE_FLUSH_INTERVAL_COLUMN = "cacheFlushInterval";
+
+    private static final List<String> COLUMNS = Arrays.asList(ID_COLUMN, "prettyName", "owner", "membership",
+        "userScope", "template", "extensionSets", "dependsOn", CACHE_FLUSH_INTERVAL_COLUMN);
+
+    private final File file;
+
+    private final BufferedReader reader;
+
+    private final Map<String, ExtensionSet> extensionSets;
+
+    private final Set<String> wikiIds;
+
+    private final List<String> columns;
+
+    private int lineNumber = 1;
+
+    private Wiki nextWiki;
+
+    private WikiManifest(File file, BufferedReader reader, List<String> columns,
+        Map<String, ExtensionSet> extensionSets, Collection<String> wikiIds)
+    {
+        this.file = file;
+        this.reader = reader;
+        this.columns = columns;
+        this.extensionSets = extensionSets;
+        this.wikiIds = new HashSet<>(wikiIds);
+    }
+
+    /**
+     * @param file the manifest
+     * @param extensionSets the extension sets which can be referenced by the wikis, indexed by id
+     * @param wikiIds the ids of the wikis defined outside of the manifest, on which the wikis of the manifest can
+     *     depend
+     * @return the manifest, to close once read
+     * @throws MojoExecutionException if the manifest cannot be opened or if its columns are invalid
+     */
+    public static WikiManifest open(File file, Map<String, ExtensionSet> extensionSets, Collection<String> wikiIds)
+        throws MojoExecutionException
+    {
+        BufferedReader reader = null;
+        try {
+            reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+            String header = reader.readLine();
+            List<String> columns = header != null ? parseLine(header) : new ArrayList<>();
+            for (String column : columns) {
+                if (!COLUMNS.contains(column)) {
+                    throw new MojoExecutionException(
+                        String.format("Unknown column [%s] in wiki manifest [%s], supported columns are %s", column,
+                            file, COLUMNS));
+                }
+            }
+            if (header != null && !columns.contains(ID_COLUMN)) {
+                throw new MojoExecutionException(String.format("Wiki manifest [%s] has no id column", file));
+            }
+
+            return new WikiManifest(file, reader, columns, extensionSets, wikiIds);
+        } catch (IOException e) {
+            closeQuietly(reader);
+            throw new MojoExecutionException(String.format("Failed to read wiki manifest [%s]", file), e);
+        } catch (MojoExecutionException e) {
+            closeQuietly(reader);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the whole manifest once without keeping the wikis, to report invalid wikis before starting to set them up.
+     *
+     * @param file the manifest
+     * @param extensionSets the extension sets which can be referenced by the wikis, indexed by id
+     * @param wikiIds the ids of the wikis defined outside of the manifest
+     * @return the number of wikis in the manifest
+     * @throws MojoExecutionException if the manifest cannot be read or is invalid
+     */
+    public static int check(File file, Map<String, ExtensionSet> extensionSets, Collection<String> wikiIds)
+        throws MojoExecutionException
+    {
+        WikiManifest manifest = open(file, extensionSets, wikiIds);
+        try {
+            int count = 0;
+            while (manifest.hasNext()) {
+                manifest.next();
+                count++;
+            }
+
+            return count;
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            throw new MojoExecutionException(e.getMessage(), e.getCause());
+        } finally {
+            closeQuietly(manifest);
+        }
+    }
+
+    /**
+     * Read all the remaining wikis of the manifest.
+     *
+     * @return the wikis
+     * @throws MojoExecutionException if the manifest cannot be read or is invalid
+     */
+    public List<Wiki> readAll() throws MojoExecutionException
+    {
+        List<Wiki> wikis = new ArrayList<>();
+        try {
+            forEachRemaining(wikis::add);
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            throw new MojoExecutionException(e.getMessage(), e.getCause());
+        }
+
+        return wikis;
+    }
+
+    /**
+     * @param configuredWikis the wikis defined outside of the manifest, on which the wikis of the manifest can depend
+     * @return the configured wikis, starting with the main wiki, followed by the remaining wikis of the manifest which
+     *     are read while iterating, see {@link #hasNext()}
+     */
+    public Iterator<Wiki> after(List<Wiki> configuredWikis)
+    {
+        List<Wiki> sortedWikis = new ArrayList<>(configuredWikis);
+        sortedWikis.sort(Comparator.comparing(wiki -> !Wiki.MAIN_WIKI_ID.equals(wiki.getId())));
+
+        return Stream.concat(sortedWikis.stream(),
+            StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)).iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UncheckedIOException if the manifest cannot be read
+     * @throws IllegalArgumentException if the wiki is invalid, the cause being a {@link MojoExecutionException}
+     */
+    @Override
+    public boolean hasNext()
+    {
+        if (nextWiki == null) {
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    lineNumber++;
+                    if (!isIgnored(line)) {
+                        nextWiki = parseWiki(line);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format("Failed to read wiki manifest [%s]", file), e);
+            } catch (MojoExecutionException e) {
+                throw new IllegalArgumentException(String.format("Invalid wiki at line %d of wiki manifest [%s]: %s",
+                    lineNumber, file, e.getMessage()), e);
+            }
+        }
+
+        return nextWiki != null;
+    }
+
+    @Override
+    public Wiki next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Wiki wiki = nextWiki;
+        nextWiki = null;
+
+        return wiki;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    private Wiki parseWiki(String line) throws MojoExecutionException
+    {
+        List<String> values = parseLine(line);
+        Map<String, String> properties = new HashMap<>();
+        for (int i = 0; i < columns.size() && i < values.size(); i++) {
+            if (!values.get(i).isEmpty()) {
+                properties.put(columns.get(i), values.get(i));
+            }
+        }
+
+        Wiki wiki = new Wiki();
+        String id = properties.get(ID_COLUMN);
+        if (id == null) {
+            throw new MojoExecutionException("Missing wiki id");
+        } else if (Wiki.MAIN_WIKI_ID.equals(id)) {
+            throw new MojoExecutionException("The main wiki has to be configured in the POM");
+        } else if (wikiIds.contains(id)) {
+            throw new MojoExecutionException(String.format("Wiki [%s] is defined twice", id));
+        }
+        wiki.setId(id);
+        wiki.setPrettyName(properties.getOrDefault("prettyName", id));
+        if (properties.containsKey("owner")) {
+            wiki.setOwner(properties.get("owner"));
+        }
+        try {
+            if (properties.containsKey("membership")) {
+                wiki.setMembership(MembershipType.valueOf(properties.get("membership").toUpperCase(Locale.ROOT)));
+            }
+            if (properties.containsKey("userScope")) {
+                wiki.setUserScope(UserScope.valueOf(properties.get("userScope").toUpperCase(Locale.ROOT)));
+            }
+            if (properties.containsKey(CACHE_FLUSH_INTERVAL_COLUMN)) {
+                wiki.setCacheFlushInterval(Integer.parseInt(properties.get(CACHE_FLUSH_INTERVAL_COLUMN)));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(String.format("Invalid value for wiki [%s]: %s", id, e.getMessage()), e);
+        }
+        wiki.setTemplate(Boolean.parseBoolean(properties.get("template")));
+        wiki.setExtensionSets(parseList(properties.get("extensionSets")));
+        wiki.setDependsOn(parseList(properties.get("dependsOn")));
+
+        for (String dependency : wiki.getDependsOn()) {
+            if (!wikiIds.contains(dependency)) {
+                throw new MojoExecutionException(
+                    String.format("Wiki [%s] depends on wiki [%s] which is not defined before it", id, dependency));
+            }
+        }
+        ExtensionSet.apply(wiki, extensionSets);
+
+        wikiIds.add(id);
+
+        return wiki;
+    }
+
+    private static boolean isIgnored(String line)
+    {
+        String trimmedLine = line.trim();
+
+        return trimmedLine.isEmpty() || trimmedLine.startsWith("#");
+    }
+
+    private static List<String> parseList(String value)
+    {
+        List<String> list = new ArrayList<>();
+        if (value != null) {
+            for (String element : value.split(";")) {
+                if (!element.trim().isEmpty()) {
+                    list.add(element.trim());
+                }
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Split a CSV line, supporting quoted values in which quotes are doubled.
+     */
+    private static List<String> parseLine(String line)
+    {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c == '"' && i < line.length() && line.charAt(i) == '"') {
+                    value.append(c);
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+
+        return values;
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // Already failing
+        }
+    }
+}
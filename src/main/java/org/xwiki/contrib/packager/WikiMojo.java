@@ -19,17 +19,35 @@
  */
 package org.xwiki.contrib.packager;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.job.InstallRequest;
 import org.xwiki.job.Job;
 import org.xwiki.job.JobException;
-import org.xwiki.job.event.status.JobStatus;
-import org.xwiki.tool.utils.AbstractOldCoreMojo;
+import org.xwiki.job.event.status.CancelableJobStatus;
 
 /**
  * Maven 2 plugin based on the DataMojo to generate an XWiki Database with multiple subwikis.
@@ -39,90 +57,888 @@ import org.xwiki.tool.utils.AbstractOldCoreMojo;
  * @version $Id: 93d51d60aae264b72294b04fa2c360cdd34119cb $
  */
 @Mojo(name = "wiki", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, requiresProject = true)
-public class WikiMojo extends AbstractOldCoreMojo
+public class WikiMojo extends AbstractWikiMojo
 {
-    private static final int WAIT_TIME = 5000;
+    @Parameter(property = "parallel", defaultValue = "false")
+    protected boolean parallel;
 
-    private static final int TOTAL_WAIT_TIME = 12 * WAIT_TIME;
+    /**
+     * The maximum number of wikis set up at the same time when {@link #parallel} is enabled, 0 to use the number of
+     * available processors.
+     */
+    @Parameter(property = "maxConcurrentWikis", defaultValue = "0")
+    protected int maxConcurrentWikis;
 
-    @Parameter(property = "wikis")
-    protected List<Wiki> wikis;
+    /**
+     * Where the wiki setup jobs run: {@code jobExecutor} for the threads of the XWiki job executor, {@code virtual}
+     * for a virtual thread per job when the JVM supports them (and a pool of platform threads otherwise), or
+     * {@code platform} for a dedicated pool of platform threads.
+     */
+    @Parameter(property = "setupExecutor", defaultValue = "jobExecutor")
+    protected String setupExecutor;
 
-    @Parameter(property = "parallel", defaultValue = "false")
-    protected boolean parallel;
+    /**
+     * The number of platform threads running the wiki setup jobs, 0 to use {@link #maxConcurrentWikis}. It doesn't
+     * apply to the virtual threads of the {@code virtual} {@link #setupExecutor}, the number of jobs running at the
+     * same time being bounded by {@link #maxConcurrentWikis} anyway.
+     */
+    @Parameter(property = "setupThreads", defaultValue = "0")
+    protected int setupThreads;
+
+    /**
+     * The maximum number of wiki setup jobs waiting for a platform thread, 0 for no limit. When the queue is full, the
+     * submission of the next job waits for a job to leave the queue. It doesn't apply to the {@code virtual}
+     * {@link #setupExecutor}, which never queues the jobs.
+     */
+    @Parameter(property = "setupQueueSize", defaultValue = "0")
+    protected int setupQueueSize;
+
+    /**
+     * The name of the platform threads running the wiki setup jobs, in which {@code %d} is replaced by the number of
+     * the thread.
+     */
+    @Parameter(property = "setupThreadName", defaultValue = "WikiSetupJob-%d")
+    protected String setupThreadName;
+
+    /**
+     * The number of threads installing the extensions, shared by all the wikis set up at the same time. With more than
+     * one thread, the install plan of each wiki is split into layers of extensions which don't depend on each other and
+     * the JAR extensions of each layer are installed concurrently, the other extensions of the layer being installed
+     * one after the other.
+     */
+    @Parameter(property = "installThreads", defaultValue = "1")
+    protected int installThreads;
+
+    /**
+     * The maximum time in seconds given to each wiki to be set up, 0 for no limit. A wiki which times out is canceled
+     * before its next extension is installed, and the build waits for it to stop. With {@link #shards}, a shard is
+     * killed when it takes longer than this time multiplied by its number of wikis.
+     */
+    @Parameter(property = "wikiTimeout", defaultValue = "0")
+    protected long wikiTimeout;
+
+    /**
+     * The maximum time in seconds given to the whole set of wikis to be set up, 0 for no limit.
+     */
+    @Parameter(property = "totalTimeout", defaultValue = "0")
+    protected long totalTimeout;
+
+    /**
+     * Estimate the time given to each wiki to be set up from the time it took in the previous builds, or from its
+     * number of extensions for a new wiki, instead of using {@link #wikiTimeout}, which still applies as upper bound.
+     * The timings are kept in {@link #packagerDirectory}.
+     */
+    @Parameter(property = "adaptiveTimeout", defaultValue = "false")
+    protected boolean adaptiveTimeout;
+
+    /**
+     * The margin applied to the expected duration of a wiki to get its adaptive timeout.
+     */
+    @Parameter(property = "timeoutFactor", defaultValue = "3")
+    protected double timeoutFactor;
+
+    /**
+     * The time in seconds between two reports of the progress of the setup, 0 to disable the reports.
+     */
+    @Parameter(property = "progressInterval", defaultValue = "10")
+    protected long progressInterval;
+
+    /**
+     * Stop at the first wiki which cannot be set up: the setup of the other running wikis is canceled before their next
+     * extension is installed and the pending wikis are skipped.
+     */
+    @Parameter(property = "failFast", defaultValue = "false")
+    protected boolean failFast;
+
+    /**
+     * Skip the wikis whose configuration did not change since they were last successfully set up and which are still
+     * present in the database.
+     */
+    @Parameter(property = "incremental", defaultValue = "false")
+    protected boolean incremental;
+
+    /**
+     * Skip the wikis which were successfully set up by a previous execution which failed, according to the checkpoint
+     * written in {@link #packagerDirectory} after each wiki, and only set up the failed or pending ones.
+     */
+    @Parameter(property = "resume", defaultValue = "false")
+    protected boolean resume;
+
+    /**
+     * The directory in which the packager keeps its state between builds.
+     */
+    @Parameter(defaultValue = "${project.build.directory}/wiki-packager")
+    protected File packagerDirectory;
+
+    /**
+     * Resolve the extensions of the wikis before starting to set them up, only once for the wikis with the same
+     * extensions. Each wiki then installs the extensions of its resolved plan layer by layer, without resolving them
+     * again, see {@link #installThreads}.
+     */
+    @Parameter(property = "batchResolution", defaultValue = "false")
+    protected boolean batchResolution;
+
+    /**
+     * Fully set up only one of the wikis sharing the same extensions and create the others by copying it.
+     */
+    @Parameter(property = "cloneIdenticalWikis", defaultValue = "false")
+    protected boolean cloneIdenticalWikis;
+
+    /**
+     * Record the time spent in each phase of the setup of the wikis and write it as JSON and CSV in
+     * {@link #packagerDirectory}.
+     */
+    @Parameter(property = "report", defaultValue = "false")
+    protected boolean report;
+
+    /**
+     * Keep the XWiki instance started at the end of the execution and reuse it in the next executions of the build
+     * working on the same database, with the same project dependencies and remote repositories. The instances are
+     * disposed at the end of the build, which requires declaring the plugin with {@code <extensions>true</extensions>}:
+     * the option is ignored otherwise.
+     */
+    @Parameter(property = "reuseInstance", defaultValue = "false")
+    protected boolean reuseInstance;
+
+    /**
+     * Tune the instance for importing a large number of documents: batch the JDBC statements of the store and suspend
+     * the listeners which are not needed in a packaged database (on top of {@link #disabledListeners}).
+     */
+    @Parameter(property = "bulkMode", defaultValue = "false")
+    protected boolean bulkMode;
+
+    /**
+     * The number of processes setting up the subwikis. With more than one shard, the main wiki is set up by the build
+     * and the subwikis are then split between forked Maven processes, each one using its own database, before being
+     * merged in the packaged database. This requires a file database (HSQLDB or H2).
+     * <p>
+     * With -1, there is one shard per subwiki set up at the same time (see {@link #maxConcurrentWikis}), so that the
+     * writes of the subwikis set up in parallel don't contend on the same store, each process setting up several
+     * subwikis one after the other instead of starting a JVM per subwiki. The timings of the shards are merged in the
+     * report of the build.
+     */
+    @Parameter(property = WikiShardRunner.SHARDS_PROPERTY, defaultValue = "1")
+    protected int shards;
+
+    /**
+     * The shard set up by this execution, only set on the processes forked when {@link #shards} is not 1.
+     */
+    @Parameter(property = WikiShardRunner.SHARD_INDEX_PROPERTY, defaultValue = "-1")
+    protected int shardIndex;
+
+    /**
+     * The Hibernate configuration of the shard set up by this execution, see {@link #shardIndex}.
+     */
+    @Parameter(property = WikiShardRunner.SHARD_HIBERNATE_CONFIG_PROPERTY)
+    protected File shardHibernateConfig;
+
+    /**
+     * The permanent directory of the shard set up by this execution, see {@link #shardIndex}.
+     */
+    @Parameter(property = WikiShardRunner.SHARD_PERMANENT_DIRECTORY_PROPERTY)
+    protected File shardPermanentDirectory;
+
+    /**
+     * The directory of the cache of the local extension repository shared by the builds running on the same machine,
+     * see {@link ExtensionArtifactCache}. The cache is disabled when not set.
+     */
+    @Parameter(property = "extensionCache")
+    protected File extensionCache;
+
+    /**
+     * The snapshot of the instance once the main wiki is set up. When the instance was not set up yet, the snapshot is
+     * restored before starting it and only the extensions of the main wiki which changed since the snapshot are
+     * installed. The snapshot is exported again each time the main wiki is set up. Requires a file database.
+     */
+    @Parameter(property = "baseSnapshot")
+    protected File baseSnapshot;
+
+    /**
+     * The maximum size of the extension cache in megabytes.
+     */
+    @Parameter(property = "extensionCacheSize", defaultValue = "2048")
+    protected long extensionCacheSize;
+
+    @Parameter(defaultValue = "${mojoExecution}", readonly = true)
+    protected MojoExecution mojoExecution;
+
+    @Parameter(defaultValue = "${session}", readonly = true)
+    protected MavenSession session;
+
+    /**
+     * The names of the listeners to suspend while the wikis are set up. Defaults to the listeners evaluating velocity
+     * code, which cannot work without a servlet context.
+     */
+    @Parameter
+    protected List<String> disabledListeners;
 
-    protected WikiHelper wikiHelper;
+    /**
+     * The names of the only listeners to keep while the wikis are set up, all the other listeners being suspended.
+     * Every listener is kept when empty.
+     */
+    @Parameter
+    protected List<String> enabledListeners;
+
+    /**
+     * Measure the time spent in each listener and log the slowest ones, also adding them to the report.
+     */
+    @Parameter(property = "profileListeners", defaultValue = "false")
+    protected boolean profileListeners;
+
+    protected WikiCheckpoints checkpoints;
+
+    protected InstallPlanLock installPlanLock;
+
+    protected WikiProgressReporter progressReporter;
+
+    protected WikiTimeouts timeouts;
+
+    /**
+     * The executor running the wiki setup jobs, null to run them in the job executor.
+     */
+    protected ExecutorService setupJobExecutor;
+
+    /**
+     * The executor installing the extensions of all the wikis, null to install them in the wiki setup jobs.
+     */
+    protected ExecutorService installExecutor;
+
+    /**
+     * The extensions of the main wiki restored from {@link #baseSnapshot}, null if the snapshot was not restored.
+     */
+    protected Map<String, String> baseExtensions;
+
+    protected InstallPlanCache installPlans;
+
+    protected Map<String, String> templateWikis = new HashMap<>();
+
+    protected Map<String, Job> runningJobs = new ConcurrentHashMap<>();
+
+    protected WikiSetupReport setupReport;
+
+    private WikiInstanceCache.Instance cachedInstance;
+
+    private final BulkPackagingMode bulkPackagingMode = new BulkPackagingMode();
 
     @Override
     protected void before() throws MojoExecutionException
     {
+        if (shardIndex >= 0 && shardHibernateConfig != null) {
+            // Each shard works on its own database
+            hibernateConfig = shardHibernateConfig;
+        }
+        if (shardIndex >= 0 && shardPermanentDirectory != null) {
+            // Each shard has its own extension repository, written while installing its extensions
+            xwikiDataDir = shardPermanentDirectory;
+        }
+
+        if (bulkMode) {
+            // Also part of the instance key, so bulk and regular executions don't share an instance. Each shard has
+            // its own configuration, which must not be overwritten by the other shards.
+            File bulkDirectory =
+                new File(shardIndex >= 0 ? hibernateConfig.getParentFile() : packagerDirectory, "bulk");
+            hibernateConfig = bulkPackagingMode
+                .configureStore(HibernateDatabase.load(hibernateConfig, xwikiDataDir), bulkDirectory)
+                .getConfiguration();
+        }
+
+        if (reuseInstance && !WikiInstanceCache.isSessionScoped()) {
+            getLog().warn("The XWiki instance cannot be reused: the plugin must be declared with"
+                + " <extensions>true</extensions> so that the instance is disposed at the end of the build");
+            reuseInstance = false;
+        }
+
+        String instanceKey = reuseInstance ? getInstanceKey() : null;
+
+        if (reuseInstance) {
+            this.cachedInstance = WikiInstanceCache.acquire(instanceKey);
+
+            if (this.cachedInstance != null) {
+                getLog().info("Reusing the XWiki instance started by a previous execution");
+
+                // Only the component manager of the extension helper is used, the extensions of the wikis being
+                // resolved against the project of this execution
+                this.extensionHelper = this.cachedInstance.getExtensionHelper();
+                this.wikiHelper = this.cachedInstance.getWikiHelper();
+                this.wikiHelper.ensureExecutionContext();
+
+                return;
+            }
+        }
+
+        if (baseSnapshot != null && shardIndex < 0) {
+            // The snapshot contains the local extension repository so it's restored before the extension cache
+            baseExtensions = new BaseSnapshot(baseSnapshot, getLog()).restore(xwikiDataDir,
+                HibernateDatabase.load(hibernateConfig, xwikiDataDir));
+        }
+
+        if (extensionCache != null) {
+            // The local extension repository is loaded when the instance starts
+            getExtensionArtifactCache().restore(getProjectKey());
+        }
+
         super.before();
 
-        this.wikiHelper =
-                WikiHelper.create(this.extensionHelper.getComponentManager(), hibernateConfig);
+        if (reuseInstance) {
+            this.cachedInstance = WikiInstanceCache.register(instanceKey, this.extensionHelper, this.wikiHelper);
+        }
     }
 
     @Override
-    public void executeInternal() throws MojoExecutionException
+    protected void after() throws MojoExecutionException
+    {
+        if (extensionCache != null && this.wikiHelper != null) {
+            try {
+                getExtensionArtifactCache().store(getProjectKey(),
+                    new File(this.wikiHelper.getPermanentDirectory(), WikiShardRunner.EXTENSION_REPOSITORY));
+            } catch (MojoExecutionException e) {
+                getLog().warn("Failed to update the extension cache", e);
+            }
+        }
+
+        if (this.cachedInstance != null) {
+            // Keep the instance started for the next executions
+            WikiInstanceCache.release(this.cachedInstance);
+        } else {
+            super.after();
+        }
+    }
+
+    private ExtensionArtifactCache getExtensionArtifactCache()
+    {
+        return new ExtensionArtifactCache(extensionCache, extensionCacheSize * 1024 * 1024, getLog());
+    }
+
+    private String getProjectKey()
+    {
+        return project.getId() + '|' + project.getBasedir().getAbsolutePath() + '|' + hibernateConfig.getAbsolutePath();
+    }
+
+    /**
+     * @return the key identifying the instances which can be shared with this execution, see
+     *     {@link WikiInstanceCache#getKey}
+     * @throws MojoExecutionException when failing to read the Hibernate configuration
+     */
+    private String getInstanceKey() throws MojoExecutionException
     {
-        wikiHelper.nukeListeners();
-        List<Job> ongoingJobs = new ArrayList<>();
+        HibernateDatabase database = HibernateDatabase.load(hibernateConfig, xwikiDataDir);
 
         try {
-            startWikiSetupJobs(wikis, ongoingJobs);
+            return WikiInstanceCache.getKey(database.getUrl(), Files.readAllBytes(hibernateConfig.toPath()),
+                getClass().getClassLoader(), project);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read the Hibernate configuration " + hibernateConfig, e);
+        }
+    }
+
+    @Override
+    public void executeInternal() throws MojoExecutionException
+    {
+        // The wikis of the manifest are read while being set up, unless the whole list of wikis is needed up front
+        boolean streamManifest = wikiManifest != null && !cloneIdenticalWikis && !batchResolution && shards == 1;
+        loadWikis(streamManifest);
+        // Report the invalid wikis of the manifest before starting to set up the wikis
+        int manifestWikiCount = streamManifest ? checkManifest() : 0;
+
+        if (cloneIdenticalWikis) {
+            // Before selecting the wikis of the shard since a copy is set up by the shard of the wiki it copies
+            groupIdenticalWikis();
+        }
+
+        if (shardIndex >= 0) {
+            selectShardWikis();
+        }
+
+        if (report) {
+            setupReport = new WikiSetupReport();
+            setupReport.start();
+            wikiHelper.getObservationManager().addListener(setupReport);
+        }
+
+        checkpoints = WikiCheckpoints.load(packagerDirectory, incremental, resume, wikiHelper, getLog());
+
+        if (lockFile.exists()) {
+            installPlanLock = InstallPlanLock.load(lockFile);
+        }
 
-            int totalWaitTime = 0;
-            while (!ongoingJobs.isEmpty() && totalWaitTime <= TOTAL_WAIT_TIME) {
-                getLog().info("Waiting for jobs to finish ...");
+        if (batchResolution) {
+            long startTime = System.currentTimeMillis();
+            resolveExtensions();
+            if (setupReport != null) {
+                setupReport.addGlobalPhase("resolution", System.currentTimeMillis() - startTime);
+            }
+        }
 
-                List<Job> finishedJobs = new ArrayList<>();
-                for (Job job : ongoingJobs) {
-                    if (job.getStatus().getState().equals(JobStatus.State.FINISHED)) {
-                        getLog().info(String.format("Job for wiki [%s] is now finished",
-                            ((WikiSetupJobRequest) job.getRequest()).getWiki().getId()));
-                        finishedJobs.add(job);
-                    }
-                }
+        WikiSetupJobListener jobListener = new WikiSetupJobListener();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> trackProgress(setupWikiAsync(wiki, jobListener)),
+            getMaxConcurrentJobs(), TimeUnit.SECONDS.toMillis(wikiTimeout), TimeUnit.SECONDS.toMillis(totalTimeout),
+            getLog());
+        scheduler.setCanceller(this::cancelWiki);
+        if (adaptiveTimeout) {
+            timeouts = WikiTimeouts.load(new File(packagerDirectory, "timings.properties"), timeoutFactor);
+            timeouts.setMaxTimeout(TimeUnit.SECONDS.toMillis(wikiTimeout));
+            scheduler.setWikiTimeouts(wiki -> timeouts.getTimeout(wiki.getId(), getExtensionVersions(wiki).size()));
+        }
+        scheduler.setFailFast(failFast);
 
-                for (Job job : finishedJobs) {
-                    ongoingJobs.remove(job);
-                }
+        // The copies wait for the wiki they are copied from
+        templateWikis.forEach(scheduler::addDependency);
 
-                Thread.sleep(WAIT_TIME);
+        scheduler.validate(wikis);
 
-                totalWaitTime += WAIT_TIME;
+        wikiHelper.getObservationManager().addListener(jobListener);
+        PackagingListeners listeners = setupListeners();
+        if (progressInterval > 0) {
+            // In sharded mode, the subwikis report their progress in the output of their shard
+            int wikiCount = isSharded() ? 1 : wikis.size() + manifestWikiCount;
+            progressReporter = new WikiProgressReporter(runningJobs, wikiCount, getLog());
+            wikiHelper.getObservationManager().addListener(progressReporter);
+            progressReporter.start(progressInterval);
+        }
+
+        List<String> unfinishedWikis;
+        try {
+            // Created once everything is validated, and always shut down
+            setupJobExecutor = createSetupJobExecutor();
+            if (installThreads > 1) {
+                AtomicInteger installThreadCount = new AtomicInteger();
+                installExecutor = Executors.newFixedThreadPool(installThreads,
+                    runnable -> new Thread(runnable, "WikiSetupJob-install-" + installThreadCount.incrementAndGet()));
+            }
+
+            if (isSharded()) {
+                unfinishedWikis = runShards(scheduler);
+            } else if (streamManifest) {
+                unfinishedWikis = runManifest(scheduler);
+            } else {
+                unfinishedWikis = scheduler.run(wikis);
             }
         } catch (InterruptedException e) {
             getLog().error("Got interrupted while waiting for the completion of the wiki creation jobs", e);
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Failed to install every wiki.", e);
+        } finally {
+            wikiHelper.getObservationManager().removeListener(WikiSetupJobListener.NAME);
+            if (progressReporter != null) {
+                progressReporter.stop();
+                wikiHelper.getObservationManager().removeListener(WikiProgressReporter.NAME);
+            }
+            reportListenerTimings(listeners);
+            listeners.restore();
+            writeReport();
+            logResults(scheduler.getResults());
+            if (timeouts != null) {
+                saveTimings();
+            }
+            if (setupJobExecutor != null) {
+                setupJobExecutor.shutdown();
+            }
+            if (installExecutor != null) {
+                installExecutor.shutdownNow();
+            }
         }
 
-        if (ongoingJobs.size() > 0) {
-            throw new MojoExecutionException("Failed to install every wiki.");
+        if (unfinishedWikis.size() > 0) {
+            throw new MojoExecutionException(
+                String.format("Failed to install every wiki, wikis %s could not be set up.", unfinishedWikis));
         } else {
             getLog().info("Successfully installed every wiki.");
         }
     }
 
-    private void startWikiSetupJobs(List<Wiki> wikis, List<Job> ongoingJobs) throws InterruptedException
+    /**
+     * Set up the configured wikis, then the wikis of the manifest, only reading a wiki of the manifest when there's a
+     * free slot to set it up.
+     *
+     * @return the ids of the wikis which could not be set up
+     */
+    private List<String> runManifest(WikiSetupScheduler scheduler) throws InterruptedException, MojoExecutionException
     {
-        for (Wiki wiki : wikis) {
+        WikiManifest manifest = openManifest();
+        try {
+            return scheduler.run(manifest.after(wikis));
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            throw new MojoExecutionException(e.getMessage(), e.getCause());
+        } finally {
+            closeManifest(manifest);
+        }
+    }
+
+    /**
+     * Only keep the wikis of the shard set up by this execution.
+     */
+    private void selectShardWikis()
+    {
+        wikis = WikiShards.select(wikis, getShardCount(), templateWikis, shardIndex);
+        getLog().info(String.format("Setting up shard %d: %s", shardIndex,
+            wikis.stream().map(Wiki::getId).collect(Collectors.toList())));
+        packagerDirectory = WikiShardRunner.getShardDirectory(packagerDirectory, shardIndex);
+    }
+
+    /**
+     * Set up the main wiki, then the subwikis in forked processes, see {@link WikiShardRunner}.
+     *
+     * @return the ids of the wikis which could not be set up
+     */
+    private List<String> runShards(WikiSetupScheduler scheduler) throws InterruptedException, MojoExecutionException
+    {
+        WikiShardRunner runner = new WikiShardRunner(wikiHelper,
+            HibernateDatabase.load(hibernateConfig, wikiHelper.getPermanentDirectory()), packagerDirectory,
+            getShardCount(), getLog());
+        runner.setExecution(session, project, mojoExecution);
+        runner.setCheckpoints(checkpoints, this::getExtensionVersions);
+        runner.setTimeouts(TimeUnit.SECONDS.toMillis(wikiTimeout), TimeUnit.SECONDS.toMillis(totalTimeout));
+        runner.setReport(setupReport);
+
+        return runner.run(scheduler, wikis, templateWikis);
+    }
+
+    private boolean isSharded()
+    {
+        return (shards > 1 || shards < 0) && shardIndex < 0;
+    }
+
+    /**
+     * @return the number of shards, computed from the wikis (and not from the wikis of the shard) so that the build and
+     *     the shards split the wikis the same way
+     */
+    private int getShardCount()
+    {
+        if (shards < 0) {
+            long subwikiCount = wikis.stream().filter(wiki -> !Wiki.MAIN_WIKI_ID.equals(wiki.getId())).count();
+
+            return (int) Math.max(1, Math.min(getMaxConcurrentJobs(), subwikiCount));
+        }
+
+        return shards;
+    }
+
+    private PackagingListeners setupListeners() throws MojoExecutionException
+    {
+        PackagingListeners listeners = new PackagingListeners(wikiHelper.getObservationManager());
+
+        listeners.suspend(disabledListeners != null ? disabledListeners : WikiHelper.DISABLED_LISTENERS);
+        if (bulkMode) {
+            listeners.suspend(BulkPackagingMode.SUSPENDED_LISTENERS);
+        }
+        if (enabledListeners != null && !enabledListeners.isEmpty()) {
+            List<String> allowedListeners = new ArrayList<>(enabledListeners);
+            allowedListeners.add(WikiSetupJobListener.NAME);
+            allowedListeners.add(WikiSetupReport.NAME);
+            listeners.suspendAllExcept(wikiHelper.getEventListeners(), allowedListeners);
+        }
+        getLog().info(String.format("Suspended listeners %s", listeners.getSuspendedListeners()));
+
+        if (profileListeners) {
+            listeners.profile(wikiHelper.getEventListeners());
+        }
+
+        return listeners;
+    }
+
+    private void reportListenerTimings(PackagingListeners listeners)
+    {
+        List<PackagingListeners.ListenerTiming> timings = listeners.getTimings();
+
+        for (int i = 0; i < timings.size(); i++) {
+            PackagingListeners.ListenerTiming timing = timings.get(i);
+            if (i < 10 && timing.getCalls() > 0) {
+                getLog().info(String.format("Listener [%s] handled %d events in %d ms", timing.getName(),
+                    timing.getCalls(), timing.getTime()));
+            }
+            if (setupReport != null) {
+                setupReport.addListener(timing.getName(), timing.getTime());
+            }
+        }
+    }
+
+    private void writeReport()
+    {
+        if (setupReport != null) {
+            wikiHelper.getObservationManager().removeListener(WikiSetupReport.NAME);
+
+            getLog().info(String.format("Peak heap usage: %d MB", setupReport.getPeakHeapUsage() / (1024 * 1024)));
             try {
-                if (wiki.getId().equals("xwiki") || !parallel) {
-                    setupWikiAsync(wiki).join();
-                } else {
-                    ongoingJobs.add(setupWikiAsync(wiki));
-                }
-            } catch (JobException e) {
-                getLog().error(String.format("Failed to set up wiki [%s]", wiki.getId()), e);
+                setupReport.write(packagerDirectory);
+            } catch (MojoExecutionException e) {
+                getLog().warn("Failed to write the wiki setup report", e);
             }
         }
     }
 
-    private Job setupWikiAsync(Wiki wiki) throws JobException
+    private int getMaxConcurrentJobs()
     {
+        if (!parallel) {
+            return 1;
+        }
+
+        return maxConcurrentWikis > 0 ? maxConcurrentWikis : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Start the setup job of the given wiki.
+     *
+     * @param wiki the wiki to set up
+     * @param jobListener the listener notified when the job finishes
+     * @return a future completed when the job is finished, or null if the job could not be started
+     */
+    private CompletableFuture<Void> setupWikiAsync(Wiki wiki, WikiSetupJobListener jobListener)
+    {
+        Map<String, String> extensions = getExtensionVersions(wiki);
+        String fingerprint = WikiPackagerState.fingerprint(wiki, extensions);
+
+        if (resume && checkpoints.isCheckpointed(wiki, fingerprint)) {
+            getLog().info(String.format("Wiki [%s] was set up by the previous execution, skipping it", wiki.getId()));
+
+            return CompletableFuture.completedFuture(null);
+        }
+
+        boolean mainWiki = wiki.getId().equals(Wiki.MAIN_WIKI_ID);
+        List<ExtensionId> changedExtensions = null;
+        if (mainWiki && baseExtensions != null) {
+            changedExtensions =
+                new BaseSnapshot(baseSnapshot, getLog()).getChangedExtensions(baseExtensions, extensions);
+            if (changedExtensions.isEmpty()) {
+                getLog().info(String.format("Wiki [%s] was restored from the base snapshot, skipping it",
+                    wiki.getId()));
+                checkpoints.checkpoint(wiki, fingerprint);
+
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+
+        if (checkpoints.isUpToDate(wiki, fingerprint, extensions)) {
+            getLog().info(String.format("Wiki [%s] did not change since the last build, skipping it", wiki.getId()));
+
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Make sure the wiki is not considered as set up if its setup is interrupted
+        checkpoints.invalidate(wiki.getId());
+
         WikiSetupJobRequest jobRequest = new WikiSetupJobRequest();
+        jobRequest.setId(WikiSetupJob.WIKI_SETUP_JOB_TYPE, wiki.getId());
         jobRequest.setWiki(wiki);
+        jobRequest.setTemplateWiki(templateWikis.get(wiki.getId()));
+        jobRequest.setReport(setupReport);
+        jobRequest.setInstallThreads(installThreads);
+        jobRequest.setInstallExecutor(installExecutor);
+        if (changedExtensions != null) {
+            getLog().info(String.format("Installing the extensions %s changed since the base snapshot on wiki [%s]",
+                changedExtensions, wiki.getId()));
+            jobRequest.setResolvedExtensions(changedExtensions);
+        } else {
+            // Resolved against the project of this execution, even when the instance was started by another execution
+            List<ExtensionId> extensionIds = new ArrayList<>(extensions.size());
+            for (Map.Entry<String, String> extension : extensions.entrySet()) {
+                extensionIds.add(new ExtensionId(extension.getKey(), extension.getValue()));
+            }
+            jobRequest.setResolvedExtensions(extensionIds);
+        }
+        if (installPlanLock != null) {
+            jobRequest.setLockedExtensions(installPlanLock.get(wiki.getId(), fingerprint));
+            if (jobRequest.getLockedExtensions() == null) {
+                getLog().warn(String.format("Wiki [%s] changed since it was locked, resolving its extensions",
+                    wiki.getId()));
+            }
+        }
+        if (jobRequest.getLockedExtensions() == null && changedExtensions == null && installPlans != null) {
+            // Install the plans resolved before starting the setup instead of resolving them again
+            jobRequest.setLockedExtensions(installPlans.getPlan(wiki, extensions));
+        }
+
+        CompletableFuture<Void> finished = jobListener.watch(jobRequest.getId());
+
+        long startTime = System.currentTimeMillis();
+        Job job;
+        try {
+            if (setupJobExecutor != null) {
+                job = wikiHelper.createJob(WikiSetupJob.WIKI_SETUP_JOB_TYPE, jobRequest);
+                Job setupJob = job;
+                setupJobExecutor.execute(() -> runJob(setupJob, wiki, finished));
+            } else {
+                job = wikiHelper.getJobExecutor().execute(WikiSetupJob.WIKI_SETUP_JOB_TYPE, jobRequest);
+            }
+        } catch (JobException | RejectedExecutionException e) {
+            jobListener.forget(jobRequest.getId());
+            getLog().error(String.format("Failed to set up wiki [%s]", wiki.getId()), e);
+
+            return null;
+        }
+
+        runningJobs.put(wiki.getId(), job);
+        finished.whenComplete((result, error) -> runningJobs.remove(wiki.getId()));
+        if (timeouts != null) {
+            finished.thenRun(() -> timeouts.record(wiki.getId(), extensions.size(),
+                System.currentTimeMillis() - startTime));
+        }
+
+        // Only record the wikis which were successfully set up, the future failing with the error of the job otherwise
+        CompletableFuture<Void> checkpointed = finished.thenRun(() -> checkpoints.checkpoint(wiki, fingerprint));
+        if (mainWiki && baseSnapshot != null) {
+            // The other wikis are only started once the main wiki is finished, so the snapshot only contains the base
+            checkpointed = checkpointed.thenRun(() -> exportBaseSnapshot(extensions));
+        }
+
+        return checkpointed;
+    }
+
+    private void exportBaseSnapshot(Map<String, String> extensions)
+    {
+        try {
+            File permanentDirectory = wikiHelper.getPermanentDirectory();
+            new BaseSnapshot(baseSnapshot, getLog()).export(permanentDirectory,
+                HibernateDatabase.load(hibernateConfig, permanentDirectory), extensions);
+        } catch (MojoExecutionException e) {
+            getLog().warn("Failed to export the base snapshot, the next build will set up the main wiki again", e);
+        }
+    }
+
+    private void saveTimings()
+    {
+        try {
+            timeouts.save();
+        } catch (MojoExecutionException e) {
+            getLog().warn("Failed to save the timings of the wikis", e);
+        }
+    }
+
+    private ExecutorService createSetupJobExecutor() throws MojoExecutionException
+    {
+        int threads = setupThreads > 0 ? setupThreads : getMaxConcurrentJobs();
+
+        switch (setupExecutor) {
+            case "jobExecutor":
+                return null;
+            case "virtual":
+                return WikiSetupExecutors.create(true, threads, setupQueueSize, setupThreadName, getLog());
+            case "platform":
+                return WikiSetupExecutors.create(false, threads, setupQueueSize, setupThreadName, getLog());
+            default:
+                throw new MojoExecutionException(String.format("Unknown setup executor [%s], supported values are "
+                    + "jobExecutor, virtual and platform", setupExecutor));
+        }
+    }
+
+    /**
+     * Run a wiki setup job in the current thread, which is not a thread of the job executor and thus has no execution
+     * context.
+     */
+    private void runJob(Job job, Wiki wiki, CompletableFuture<Void> finished)
+    {
+        try {
+            wikiHelper.pushExecutionContext(wiki.getId());
+        } catch (MojoExecutionException e) {
+            // The job never starts so it won't send any event
+            finished.completeExceptionally(e);
+
+            return;
+        }
+
+        try {
+            job.run();
+        } finally {
+            wikiHelper.popExecutionContext();
+        }
+    }
+
+    private CompletableFuture<Void> trackProgress(CompletableFuture<Void> finished)
+    {
+        if (progressReporter == null) {
+            return finished;
+        } else if (finished == null) {
+            progressReporter.wikiFinished();
+
+            return null;
+        }
+
+        return finished.whenComplete((result, error) -> progressReporter.wikiFinished());
+    }
+
+    private void cancelWiki(Wiki wiki)
+    {
+        Job job = runningJobs.get(wiki.getId());
+
+        if (job != null && job.getStatus() instanceof CancelableJobStatus) {
+            getLog().info(String.format("Canceling the setup of wiki [%s]", wiki.getId()));
+            ((CancelableJobStatus) job.getStatus()).cancel();
+        }
+    }
+
+    private void logResults(Map<String, WikiSetupResult> results)
+    {
+        if (!results.isEmpty()) {
+            getLog().info("Wiki setup summary:");
+            for (Map.Entry<String, WikiSetupResult> result : results.entrySet()) {
+                getLog().info(String.format("  %s: %s", result.getKey(), result.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Group the subwikis sharing the same set of extensions and the same descriptor properties: the first wiki of each
+     * group is set up normally and the others are copied from it once it's ready.
+     */
+    private void groupIdenticalWikis()
+    {
+        Map<List<Object>, Wiki> firstWikis = new HashMap<>();
+
+        for (Wiki wiki : wikis) {
+            Map<String, String> extensions = getExtensionVersions(wiki);
+            if (wiki.getId().equals(Wiki.MAIN_WIKI_ID) || extensions.isEmpty()) {
+                continue;
+            }
+
+            // Everything but the id and the pretty name of the wiki ends up in its content
+            List<Object> key = Arrays.asList(extensions, wiki.getOwner(), wiki.getMembership(), wiki.getUserScope(),
+                wiki.isTemplate());
+            Wiki templateWiki = firstWikis.putIfAbsent(key, wiki);
+            if (templateWiki != null) {
+                templateWikis.put(wiki.getId(), templateWiki.getId());
+
+                getLog().info(String.format("Wiki [%s] will be copied from wiki [%s]", wiki.getId(),
+                    templateWiki.getId()));
+            }
+        }
+    }
+
+    /**
+     * Resolve the install plan of each distinct set of extensions configured on the wikis which need to be set up. The
+     * wikis then install the extensions of these plans one by one, like the extensions of a locked plan, see
+     * {@link InstallPlanCache#getPlan(Wiki, Map)}.
+     */
+    private void resolveExtensions()
+    {
+        installPlans = new InstallPlanCache();
+        long startTime = System.currentTimeMillis();
+
+        for (Wiki wiki : wikis) {
+            Map<String, String> extensions = getExtensionVersions(wiki);
+            String fingerprint = WikiPackagerState.fingerprint(wiki, extensions);
+            if (extensions.isEmpty() || extensions.containsValue(null)
+                || checkpoints.isUpToDate(wiki, fingerprint, extensions)
+                || (installPlanLock != null && installPlanLock.get(wiki.getId(), fingerprint) != null)
+                || installPlans.contains(wiki, extensions)) {
+                continue;
+            }
+
+            // All the extensions of the wiki are resolved together so that the dependencies they share get the
+            // version the wiki would install
+            InstallRequest installRequest = wikiHelper.createInstallRequest(wiki);
+            for (Map.Entry<String, String> extension : extensions.entrySet()) {
+                installRequest.addExtension(new ExtensionId(extension.getKey(), extension.getValue()));
+            }
+            installRequest.addNamespace(installPlans.getReferenceNamespace(wiki));
+
+            try {
+                installPlans.put(wiki, extensions, wikiHelper.resolveInstallPlan(installRequest).getTree());
+            } catch (MojoExecutionException e) {
+                getLog().warn(String.format("Failed to resolve the extensions of wiki [%s], they will be resolved by "
+                    + "the wiki", wiki.getId()), e);
+            }
+        }
 
-        return  wikiHelper.getJobExecutor().execute(WikiSetupJob.WIKI_SETUP_JOB_TYPE, jobRequest);
+        getLog().info(String.format("Resolved %d sets of extensions in %d ms", installPlans.size(),
+            System.currentTimeMillis() - startTime));
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.xwiki.extension.ExtensionId;
+
+/**
+ * State of the wikis set up by a previous execution of {@link WikiMojo}, persisted between builds so that wikis which
+ * did not change can be skipped. It's also used as checkpoint of the current execution, updated after each wiki, to
+ * resume an execution which failed.
+ * <p>
+ * The state is saved after each wiki so the file is only rewritten by the first save, the next saves appending the
+ * changed entries at its end, the last value of an entry winning when the state is loaded and an empty value meaning
+ * the entry was removed. The fingerprint of a wiki is appended after its other entries, so that a save interrupted in
+ * the middle leaves a wiki whose fingerprint does not match and which is set up again.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiPackagerState
+{
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    private static final String EXTENSIONS_SUFFIX = ".extensions";
+
+    private final File file;
+
+    private final Properties properties = new Properties();
+
+    /**
+     * The entries changed since the last save, with an empty value for the removed entries.
+     */
+    private final Map<String, String> changes = new LinkedHashMap<>();
+
+    /**
+     * Whether the file was rewritten with the current entries, the next saves only appending the changes.
+     */
+    private boolean rewritten;
+
+    /**
+     * @param file the file in which the state is persisted
+     */
+    public WikiPackagerState(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @param file the file in which the state is persisted
+     * @return the state read from the given file, empty if the file does not exist
+     * @throws MojoExecutionException if the file cannot be read
+     */
+    public static WikiPackagerState load(File file) throws MojoExecutionException
+    {
+        WikiPackagerState state = new WikiPackagerState(file);
+
+        if (file.exists()) {
+            try (InputStream stream = Files.newInputStream(file.toPath())) {
+                state.properties.load(stream);
+            } catch (IOException e) {
+                throw new MojoExecutionException(String.format("Failed to read wiki state from [%s]", file), e);
+            }
+            // Empty values are left behind by the removed entries
+            state.properties.values().removeIf(value -> value.toString().isEmpty());
+        }
+
+        return state;
+    }
+
+    /**
+     * Compute the fingerprint of a wiki configuration. Two wikis sharing the same fingerprint end up with the same
+     * content.
+     *
+     * @param wiki the wiki
+     * @param extensions the version of each extension to install in the wiki, indexed by extension id
+     * @return the fingerprint of the wiki
+     */
+    public static String fingerprint(Wiki wiki, Map<String, String> extensions)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(wiki.getId()).append('\n');
+        builder.append(wiki.getPrettyName()).append('\n');
+        builder.append(wiki.getOwner()).append('\n');
+        builder.append(wiki.getMembership()).append('\n');
+        builder.append(wiki.getUserScope()).append('\n');
+        builder.append(wiki.isTemplate()).append('\n');
+        for (Map.Entry<String, String> extension : extensions.entrySet()) {
+            builder.append(extension.getKey()).append('/').append(extension.getValue()).append('\n');
+        }
+
+        return Checksums.checksum(builder.toString());
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @return the fingerprint of the wiki when it was last successfully set up, null if unknown
+     */
+    public synchronized String getFingerprint(String wikiId)
+    {
+        return properties.getProperty(wikiId + FINGERPRINT_SUFFIX);
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param fingerprint the fingerprint of the wiki which was successfully set up
+     */
+    public synchronized void setFingerprint(String wikiId, String fingerprint)
+    {
+        set(wikiId + FINGERPRINT_SUFFIX, fingerprint);
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @return the version of each extension installed in the wiki when it was last successfully set up, indexed by
+     *     extension id, empty if unknown
+     */
+    public synchronized Map<String, String> getExtensions(String wikiId)
+    {
+        Map<String, String> extensions = new LinkedHashMap<>();
+
+        String value = properties.getProperty(wikiId + EXTENSIONS_SUFFIX, "");
+        for (String extension : value.split(",")) {
+            int separator = extension.lastIndexOf('/');
+            if (separator > 0) {
+                extensions.put(extension.substring(0, separator), extension.substring(separator + 1));
+            }
+        }
+
+        return extensions;
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param extensions the extensions installed in the wiki which was successfully set up
+     */
+    public synchronized void setExtensions(String wikiId, Collection<ExtensionId> extensions)
+    {
+        StringBuilder value = new StringBuilder();
+        for (ExtensionId extension : extensions) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(extension.getId()).append('/').append(extension.getVersion().getValue());
+        }
+
+        set(wikiId + EXTENSIONS_SUFFIX, value.toString());
+    }
+
+    /**
+     * Forget everything about a wiki, typically because it's about to be set up again.
+     *
+     * @param wikiId the id of the wiki
+     */
+    public synchronized void remove(String wikiId)
+    {
+        set(wikiId + FINGERPRINT_SUFFIX, "");
+        set(wikiId + EXTENSIONS_SUFFIX, "");
+    }
+
+    private void set(String key, String value)
+    {
+        if (value.isEmpty()) {
+            properties.remove(key);
+        } else {
+            properties.setProperty(key, value);
+        }
+
+        // Keep the changes in the order they were made
+        changes.remove(key);
+        changes.put(key, value);
+    }
+
+    /**
+     * Persist the state, only appending the changes made since the previous save.
+     *
+     * @throws MojoExecutionException if the state cannot be written
+     */
+    public synchronized void save() throws MojoExecutionException
+    {
+        try {
+            if (rewritten) {
+                append();
+            } else {
+                rewrite();
+                rewritten = true;
+            }
+            changes.clear();
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to write wiki state to [%s]", file), e);
+        }
+    }
+
+    private void rewrite() throws IOException
+    {
+        file.getParentFile().mkdirs();
+
+        // Write the state in two steps so that an interrupted build never leaves a truncated file behind
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temporaryFile.toPath())) {
+            properties.store(stream, "Wiki packager state");
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void append() throws IOException
+    {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // The fingerprints validate the other entries of their wiki so they are written last
+        List<Map.Entry<String, String>> entries = new ArrayList<>(changes.entrySet());
+        entries.sort((a, b) -> Boolean.compare(a.getKey().endsWith(FINGERPRINT_SUFFIX),
+            b.getKey().endsWith(FINGERPRINT_SUFFIX)));
+
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries) {
+            // Let Properties escape the entry, without its comment lines
+            Properties entryProperties = new Properties();
+            entryProperties.setProperty(entry.getKey(), entry.getValue());
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            entryProperties.store(stream, null);
+            for (String line : new String(stream.toByteArray(), StandardCharsets.ISO_8859_1).split("\\R")) {
+                if (!line.startsWith("#")) {
+                    lines.append(line).append('\n');
+                }
+            }
+        }
+
+        Files.write(file.toPath(), lines.toString().getBytes(StandardCharsets.ISO_8859_1), StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.plugin.logging.Log;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.job.Job;
+import org.xwiki.job.event.status.JobProgress;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Periodically logs the progress of the wiki setup: the aggregated progress of all the wikis with an estimated time
+ * of arrival and, for each running wiki, the progress declared by its {@link WikiSetupJob}, the number of saved
+ * documents and the throughput.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiProgressReporter implements EventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "WikiProgressReporter";
+
+    private final Map<String, Job> runningJobs;
+
+    private final int wikiCount;
+
+    private final Log log;
+
+    private final Map<String, AtomicLong> documentCounts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger finishedWikiCount = new AtomicInteger();
+
+    private final long startTime = System.currentTimeMillis();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param runningJobs the running setup jobs indexed by wiki id
+     * @param wikiCount the number of wikis to set up
+     * @param log the logger to use
+     */
+    public WikiProgressReporter(Map<String, Job> runningJobs, int wikiCount, Log log)
+    {
+        this.runningJobs = runningJobs;
+        this.wikiCount = wikiCount;
+        this.log = log;
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        String wikiId = ((DocumentModelBridge) source).getDocumentReference().getWikiReference().getName();
+
+        documentCounts.computeIfAbsent(wikiId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Start logging the progress.
+     *
+     * @param interval the time between two reports in seconds
+     */
+    public void start(long interval)
+    {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, NAME);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop logging the progress.
+     */
+    public void stop()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Notify the reporter that a wiki is done, whether it was set up, skipped or failed.
+     */
+    public void wikiFinished()
+    {
+        finishedWikiCount.incrementAndGet();
+    }
+
+    private void report()
+    {
+        long now = System.currentTimeMillis();
+        double progress = finishedWikiCount.get();
+        StringBuilder wikiReports = new StringBuilder();
+
+        for (Map.Entry<String, Job> entry : runningJobs.entrySet()) {
+            JobProgress jobProgress = entry.getValue().getStatus().getProgress();
+            Date jobStartDate = entry.getValue().getStatus().getStartDate();
+            if (jobProgress == null || jobStartDate == null) {
+                continue;
+            }
+
+            double offset = jobProgress.getOffset();
+            long elapsed = now - jobStartDate.getTime();
+            long documentCount = documentCounts.getOrDefault(entry.getKey(), new AtomicLong()).get();
+            progress += offset;
+
+            wikiReports.append(String.format("%n  %s: %d%%, %d documents (%.1f documents/s), ETA %s", entry.getKey(),
+                Math.round(offset * 100), documentCount, documentCount * 1000.0 / Math.max(1, elapsed),
+                formatEta(elapsed, offset)));
+        }
+
+        long totalDocumentCount = documentCounts.values().stream().mapToLong(AtomicLong::get).sum();
+        double totalOffset = wikiCount > 0 ? progress / wikiCount : 1;
+        long elapsed = now - startTime;
+        log.info(String.format("Progress: %d/%d wikis, %d%%, %.1f documents/s, ETA %s%s", finishedWikiCount.get(),
+            wikiCount, Math.round(totalOffset * 100), totalDocumentCount * 1000.0 / Math.max(1, elapsed),
+            formatEta(elapsed, totalOffset), wikiReports));
+    }
+
+    private String formatEta(long elapsed, double offset)
+    {
+        if (offset <= 0) {
+            return "unknown";
+        }
+
+        long remaining = TimeUnit.MILLISECONDS.toSeconds((long) (elapsed * (1 - offset) / offset));
+
+        return String.format("%dm%02ds", remaining / 60, remaining % 60);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Creates the executor running the {@link WikiSetupJob}s when they don't run in the threads of the job executor.
+ * Since the jobs mostly wait for the database and the file system, each job can run in its own virtual thread when the
+ * JVM supports them (Java 21 and later), and runs in a pool of platform threads otherwise.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class WikiSetupExecutors
+{
+    private WikiSetupExecutors()
+    {
+    }
+
+    /**
+     * @param virtualThreads true to start a virtual thread per job when the JVM supports them, in which case the other
+     *     parameters don't apply
+     * @param threads the number of platform threads
+     * @param queueSize the maximum number of jobs waiting for a platform thread, 0 for no limit; when the queue is full
+     *     the submission of the next job blocks until a job leaves the queue
+     * @param threadName the name of the platform threads, in which {@code %d} is replaced by the number of the thread
+     * @param log the log in which the chosen executor is reported
+     * @return the executor, to shut down once the wikis are set up
+     */
+    public static ExecutorService create(boolean virtualThreads, int threads, int queueSize, String threadName,
+        Log log)
+    {
+        if (virtualThreads) {
+            ExecutorService executor = createVirtualThreadExecutor();
+            if (executor != null) {
+                log.info("Running the wiki setup jobs in virtual threads");
+
+                return executor;
+            }
+            log.info("Virtual threads are not supported by this JVM, using platform threads");
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        BlockingQueue<Runnable> queue =
+            queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new LinkedBlockingQueue<>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, queue,
+            runnable -> {
+                Thread thread = new Thread(runnable, String.format(threadName, threadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }, new BlockingSubmissionPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        log.info(String.format("Running the wiki setup jobs in %d platform threads", threads));
+
+        return executor;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per job, null if the JVM doesn't support virtual threads
+     */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try {
+            // The plugin targets Java 8, so the virtual thread API can only be called by reflection
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Before Java 21, or Java 19 and 20 without preview features
+            return null;
+        }
+    }
+
+    /**
+     * Makes the thread submitting a job wait for a free place in the queue, instead of failing the job or running it
+     * in the submitting thread, which would then stop scheduling the other wikis until the job is finished.
+     */
+    private static final class BlockingSubmissionPolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The wiki setup executor is shut down");
+            }
+
+            try {
+                executor.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting to submit a wiki setup job", e);
+            }
+        }
+    }
+}
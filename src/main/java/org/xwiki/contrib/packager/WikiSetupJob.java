@@ -19,7 +19,13 @@
  */
 package org.xwiki.contrib.packager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -28,13 +34,12 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
-import org.xwiki.extension.internal.validator.AbstractExtensionValidator;
+import org.xwiki.extension.ExtensionId;
 import org.xwiki.extension.job.InstallRequest;
-import org.xwiki.extension.script.ScriptExtensionRewriter;
 import org.xwiki.job.AbstractJob;
 import org.xwiki.job.DefaultJobStatus;
-import org.xwiki.platform.wiki.creationjob.WikiCreationRequest;
-import org.xwiki.tool.extension.util.ExtensionMojoHelper;
+import org.xwiki.query.QueryException;
+import org.xwiki.tool.extension.util.ExtensionArtifact;
 
 /**
  * Setup job for creating a new wiki and installing default extensions.
@@ -52,11 +57,13 @@ public class WikiSetupJob extends AbstractJob<WikiSetupJobRequest, DefaultJobSta
      */
     public static final String WIKI_SETUP_JOB_TYPE = "wikiSetup";
 
-    @Inject
-    private WikiHelper wikiHelper;
+    /**
+     * The types of the extensions which can be installed concurrently in the same wiki.
+     */
+    private static final List<String> JAR_TYPES = Arrays.asList("jar", "webjar");
 
     @Inject
-    private ExtensionMojoHelper extensionHelper;
+    private WikiHelper wikiHelper;
 
     @Override
     public String getType()
@@ -67,61 +74,305 @@ public class WikiSetupJob extends AbstractJob<WikiSetupJobRequest, DefaultJobSta
     @Override
     protected void runInternal() throws Exception
     {
-        InstallRequest installRequest = new InstallRequest();
-
-        if (getRequest().getWiki().getId().equals("xwiki")) {
-            // Allow modifying root namespace
-            installRequest.setRootModificationsAllowed(true);
-
-            // Make sure jars are installed on root
-            // TODO: use a less script oriented class
-            ScriptExtensionRewriter rewriter = new ScriptExtensionRewriter();
-            rewriter.installExtensionTypeOnRootNamespace("jar");
-            rewriter.installExtensionTypeOnRootNamespace("webjar");
-            installRequest.setRewriter(rewriter);
-        } else {
-            createSubWiki(getRequest().getWiki());
-        }
-
-        installRequest.setProperty(AbstractExtensionValidator.PROPERTY_USERREFERENCE,
-            wikiHelper.resolveStringDocumentReference(getRequest().getWiki().getOwner()));
-        installRequest.setVerbose(true);
-
-        logger.info("Installing extensions on wiki [{}]", getRequest().getWiki().getId());
-        this.extensionHelper.install(getRequest().getWiki().getExtensions(), installRequest,
-            String.format("wiki:%s", getRequest().getWiki().getId()), null);
-        wikiHelper.cleanupContext();
+        // Each job works in its own context, discarded at the end, so that parallel jobs don't leak state into each
+        // other
+        wikiHelper.pushExecutionContext(getRequest().getWiki().getId());
+        enterWiki();
+        // The progress steps are the creation and the install of the wiki
+        this.progressManager.pushLevelProgress(2, this);
+        try {
+            setupWiki();
+        } finally {
+            this.progressManager.popLevelProgress(this);
+            leaveWiki();
+            wikiHelper.popExecutionContext();
+        }
+    }
+
+    private void setupWiki() throws Exception
+    {
+        Wiki wiki = getRequest().getWiki();
+        InstallRequest installRequest = wikiHelper.createInstallRequest(wiki);
+        getStatus().setCancelable(true);
+        long phaseStart = System.currentTimeMillis();
+
+        this.progressManager.startStep(this);
+        String templateWikiId = getRequest().getTemplateWiki();
+        if (templateWikiId != null) {
+            // The template wiki contains the same extensions, copying it is much faster than installing them again
+            createSubWiki(wiki, templateWikiId);
+            wikiHelper.copyInstalledExtensions(templateWikiId, wiki.getId());
+            logger.info("Copied the extensions of wiki [{}]", templateWikiId);
+            endPhase(WikiSetupReport.PHASE_CREATION, phaseStart);
+            countDocuments();
+
+            return;
+        } else if (!wiki.getId().equals(Wiki.MAIN_WIKI_ID)) {
+            createSubWiki(wiki, null);
+        }
+        phaseStart = endPhase(WikiSetupReport.PHASE_CREATION, phaseStart);
+        this.progressManager.endStep(this);
+        checkCanceled();
+
+        // Each imported document is logged in the job status of a verbose install, which doesn't scale with very
+        // large packages
+        installRequest.setVerbose(wiki.getCacheFlushInterval() <= 0);
+
+        logger.info("Installing extensions on wiki [{}]", wiki.getId());
+        DocumentCacheFlushListener flushListener = null;
+        if (wiki.getCacheFlushInterval() > 0) {
+            flushListener = new DocumentCacheFlushListener(wiki.getId(), wiki.getCacheFlushInterval(), wikiHelper);
+            wikiHelper.getObservationManager().addListener(flushListener);
+        }
+        // The install jobs run in this thread push their own progress levels inside this step
+        this.progressManager.startStep(this);
+        try {
+            installExtensions(wiki, installRequest);
+        } finally {
+            if (flushListener != null) {
+                wikiHelper.getObservationManager().removeListener(flushListener.getName());
+                wikiHelper.flushDocumentCache();
+                logger.info("Imported [{}] documents in wiki [{}]", flushListener.getDocumentCount(), wiki.getId());
+            }
+        }
+        endPhase(WikiSetupReport.PHASE_INSTALL, phaseStart);
+        countDocuments();
+        this.progressManager.endStep(this);
         logger.info("Installation done");
     }
 
+    private void installExtensions(Wiki wiki, InstallRequest installRequest) throws Exception
+    {
+        List<InstallPlanLock.LockedExtension> lockedExtensions = getRequest().getLockedExtensions();
+        if (lockedExtensions != null) {
+            // The install plan was resolved by a previous build or once for all the wikis
+            installLayers(wiki, InstallPlanLock.getLayers(lockedExtensions), installRequest.isVerbose());
+
+            return;
+        }
+
+        String namespace = String.format("wiki:%s", wiki.getId());
+        List<ExtensionId> extensionIds = getRequest().getResolvedExtensions();
+        if (extensionIds == null) {
+            extensionIds = getExtensionIds(wiki);
+        }
+
+        if (!extensionIds.isEmpty()) {
+            // Only install the exact version of the extensions, given by the base snapshot or the project. The plan is
+            // installed one extension at a time so that a canceled job stops before the next extension.
+            extensionIds.forEach(installRequest::addExtension);
+            installRequest.addNamespace(namespace);
+            List<InstallPlanLock.LockedExtension> plan =
+                InstallPlanLock.lock(wikiHelper.resolveInstallPlan(installRequest).getTree());
+            installLayers(wiki, InstallPlanLock.getLayers(plan), installRequest.isVerbose());
+        }
+    }
+
+    /**
+     * @return the ids of the extensions configured on the wiki, with the version configured on the wiki if any
+     */
+    private List<ExtensionId> getExtensionIds(Wiki wiki)
+    {
+        List<ExtensionId> extensionIds = new ArrayList<>();
+        for (ExtensionArtifact artifact : wiki.getExtensions()) {
+            extensionIds.add(new ExtensionId(String.format("%s:%s", artifact.getGroupId(), artifact.getArtifactId()),
+                artifact.getVersion()));
+        }
+
+        return extensionIds;
+    }
+
+    /**
+     * Install the extensions of the plan layer by layer, the extensions of a layer being installed concurrently by the
+     * install executor shared by all the wikis, when there is one.
+     * <p>
+     * The install jobs are run directly, without the locking of the job executor which normally prevents two jobs from
+     * installing extensions in the same namespace at the same time. Only the JAR extensions are installed concurrently:
+     * they are loaded in the class loader of their namespace, which supports it. The other extensions of the layer,
+     * typically XARs importing documents in the wiki and registering them in the installed XAR repository, are
+     * installed one after the other by a single task, and so are the extensions whose type is not known yet because
+     * they are not stored locally.
+     *
+     * @param wiki the wiki in which the extensions are installed
+     * @param layers the extensions to install, by layer
+     * @param verbose true if the install jobs should log everything they do
+     * @throws Exception if an extension cannot be installed
+     */
+    private void installLayers(Wiki wiki, List<List<InstallPlanLock.LockedExtension>> layers, boolean verbose)
+        throws Exception
+    {
+        logger.info("Installing the extensions of wiki [{}] in [{}] layers", wiki.getId(), layers.size());
+
+        ExecutorService executor = getRequest().getInstallExecutor();
+
+        // The extensions are installed by other threads whose progress is not tracked, so each layer is a step
+        this.progressManager.pushLevelProgress(layers.size(), this);
+        try {
+            for (List<InstallPlanLock.LockedExtension> layer : layers) {
+                checkCanceled();
+                this.progressManager.startStep(this);
+                if (executor != null) {
+                    installLayer(wiki, layer, verbose, executor);
+                } else {
+                    for (InstallPlanLock.LockedExtension extension : layer) {
+                        installExtension(wiki, extension, verbose);
+                    }
+                }
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            this.progressManager.popLevelProgress(this);
+        }
+    }
+
+    private void installLayer(Wiki wiki, List<InstallPlanLock.LockedExtension> layer, boolean verbose,
+        ExecutorService executor) throws Exception
+    {
+        // The extensions which cannot be installed concurrently are installed one after the other by a single task
+        List<InstallPlanLock.LockedExtension> sequentialExtensions = new ArrayList<>();
+        List<Future<Void>> installs = new ArrayList<>(layer.size());
+        try {
+            for (InstallPlanLock.LockedExtension extension : layer) {
+                if (JAR_TYPES.contains(wikiHelper.getExtensionType(extension.getExtensionId()))) {
+                    installs.add(executor.submit(
+                        () -> installExtensionsInContext(wiki, Collections.singletonList(extension), verbose)));
+                } else {
+                    sequentialExtensions.add(extension);
+                }
+            }
+            if (!sequentialExtensions.isEmpty()) {
+                installs.add(executor.submit(() -> installExtensionsInContext(wiki, sequentialExtensions, verbose)));
+            }
+            // Wait for the whole layer since the next one depends on it
+            for (Future<Void> install : installs) {
+                try {
+                    install.get();
+                } catch (ExecutionException e) {
+                    throw new MojoExecutionException(
+                        String.format("Failed to install the extensions of wiki [%s]", wiki.getId()), e.getCause());
+                }
+            }
+        } finally {
+            // Don't leave the installs of a failed or canceled wiki in the shared executor
+            installs.forEach(install -> install.cancel(true));
+        }
+    }
+
+    private Void installExtensionsInContext(Wiki wiki, List<InstallPlanLock.LockedExtension> extensions,
+        boolean verbose) throws Exception
+    {
+        // Like the job itself, each install thread works in its own context
+        wikiHelper.pushExecutionContext(wiki.getId());
+        enterWiki();
+        try {
+            for (InstallPlanLock.LockedExtension extension : extensions) {
+                installExtension(wiki, extension, verbose);
+            }
+        } finally {
+            leaveWiki();
+            wikiHelper.popExecutionContext();
+        }
+
+        return null;
+    }
+
+    private void installExtension(Wiki wiki, InstallPlanLock.LockedExtension extension, boolean verbose)
+        throws Exception
+    {
+        // The install job of an extension cannot be interrupted, so stop between two extensions
+        checkCanceled();
+
+        // A locked plan might contain extensions which were installed on the root namespace by the main wiki
+        if (wikiHelper.isInstalled(extension.getExtensionId(), extension.getNamespace())) {
+            return;
+        }
+
+        InstallRequest installRequest = wikiHelper.createInstallRequest(wiki);
+        installRequest.setVerbose(verbose);
+        installRequest.addExtension(extension.getExtensionId());
+        if (extension.getNamespace() != null) {
+            installRequest.addNamespace(extension.getNamespace());
+        }
+        wikiHelper.install(installRequest);
+
+        // Each extension is installed on its own, so as a direct installation
+        if (extension.isDependency()) {
+            wikiHelper.setDependency(extension.getExtensionId(), extension.getNamespace());
+        }
+    }
+
+    /**
+     * Charge the extensions installed on the root namespace by the current thread to the wiki of the job.
+     */
+    private void enterWiki()
+    {
+        if (getRequest().getReport() != null) {
+            getRequest().getReport().enterWiki(getRequest().getWiki().getId());
+        }
+    }
+
+    private void leaveWiki()
+    {
+        if (getRequest().getReport() != null) {
+            getRequest().getReport().leaveWiki();
+        }
+    }
+
+    /**
+     * Stop the job if it was canceled, typically because it timed out or another wiki failed.
+     *
+     * @throws MojoExecutionException if the job was canceled
+     */
+    private void checkCanceled() throws MojoExecutionException
+    {
+        if (getStatus().isCanceled()) {
+            throw new MojoExecutionException(
+                String.format("The setup of wiki [%s] was canceled", getRequest().getWiki().getId()));
+        }
+    }
+
+    /**
+     * Record the duration of a phase in the report, if any.
+     *
+     * @param phase the phase which just ended
+     * @param phaseStart the time at which the phase started
+     * @return the current time, which is the start of the next phase
+     */
+    private long endPhase(String phase, long phaseStart)
+    {
+        long now = System.currentTimeMillis();
+
+        if (getRequest().getReport() != null) {
+            getRequest().getReport().addPhase(getRequest().getWiki().getId(), phase, now - phaseStart);
+        }
+
+        return now;
+    }
+
+    private void countDocuments()
+    {
+        if (getRequest().getReport() != null) {
+            String wikiId = getRequest().getWiki().getId();
+            try {
+                getRequest().getReport().setDocumentCount(wikiId, wikiHelper.countDocuments(wikiId));
+            } catch (QueryException e) {
+                logger.warn("Failed to count the documents of wiki [{}]", wikiId, e);
+            }
+        }
+    }
+
     /**
      * Create a subwiki.
      *
      * @param wiki the wiki parameter
+     * @param templateWikiId the id of the wiki to copy, null to create an empty wiki
      * @throws MojoExecutionException if an error happens
      */
-    private void createSubWiki(Wiki wiki) throws MojoExecutionException
+    private void createSubWiki(Wiki wiki, String templateWikiId) throws MojoExecutionException
     {
         // In a case of a wiki different from the main wiki, we'll  need to create this wiki first.
-        WikiCreationRequest creationRequest = new WikiCreationRequest();
-        creationRequest.setId(wiki.getId());
-        creationRequest.setWikiId(wiki.getId());
-        creationRequest.setPrettyName(wiki.getPrettyName());
-        creationRequest.setOwnerId(wiki.getOwner());
-        creationRequest.setMembershipType(wiki.getMembership());
-        creationRequest.setUserScope(wiki.getUserScope());
-        creationRequest.setTemplate(wiki.isTemplate());
-
-        creationRequest.setMembers(Collections.EMPTY_LIST);
-        creationRequest.setAlias(wiki.getId());
-        creationRequest.setFailOnExist(false);
-
-        try {
-            logger.info("Creating wiki {}", wiki.getId());
-            wikiHelper.getJobExecutor().execute("wikicreationjob", creationRequest).join();
-            logger.info("Successfully created wiki [{}]", wiki.getId());
-        } catch (Exception e) {
-            throw new MojoExecutionException(e.getMessage());
-        }
+        logger.info("Creating wiki {}", wiki.getId());
+        wikiHelper.createWiki(wiki, templateWikiId);
+        logger.info("Successfully created wiki [{}]", wiki.getId());
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xwiki.job.Job;
+import org.xwiki.job.event.JobFinishedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Listener completing the futures associated with running {@link WikiSetupJob}s as soon as they finish, so that
+ * {@link WikiMojo} does not have to poll the status of each job.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiSetupJobListener implements EventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "WikiSetupJobListener";
+
+    private final Map<List<String>, CompletableFuture<Void>> futures = new ConcurrentHashMap<>();
+
+    /**
+     * Start watching a job. This has to be called before the job is started to make sure that its end is not missed.
+     *
+     * @param jobId the id of the job to watch
+     * @return a future completed when the job is finished, exceptionally with the error of the job if it failed
+     */
+    public CompletableFuture<Void> watch(List<String> jobId)
+    {
+        return futures.computeIfAbsent(jobId, id -> new CompletableFuture<>());
+    }
+
+    /**
+     * Stop watching a job, typically because it could not be started.
+     *
+     * @param jobId the id of the job
+     */
+    public void forget(List<String> jobId)
+    {
+        futures.remove(jobId);
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Collections.<Event>singletonList(new JobFinishedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        JobFinishedEvent finishedEvent = (JobFinishedEvent) event;
+
+        if (WikiSetupJob.WIKI_SETUP_JOB_TYPE.equals(finishedEvent.getJobType())) {
+            CompletableFuture<Void> future = futures.remove(finishedEvent.getJobId());
+            if (future != null) {
+                Throwable error = source instanceof Job ? ((Job) source).getStatus().getError() : null;
+                if (error == null && data instanceof Throwable) {
+                    error = (Throwable) data;
+                }
+
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(null);
+                }
+            }
+        }
+    }
+}
@@ -19,6 +19,10 @@
  */
 package org.xwiki.contrib.packager;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.xwiki.extension.ExtensionId;
 import org.xwiki.job.AbstractRequest;
 
 /**
@@ -34,6 +38,36 @@ public class WikiSetupJobRequest extends AbstractRequest
      */
     public static final String WIKI_PROPERTY = "wiki";
 
+    /**
+     * The property id of the already resolved extensions to install.
+     */
+    public static final String RESOLVED_EXTENSIONS_PROPERTY = "resolvedExtensions";
+
+    /**
+     * The property id of the wiki to copy instead of installing extensions.
+     */
+    public static final String TEMPLATE_WIKI_PROPERTY = "templateWiki";
+
+    /**
+     * The property id of the report in which the job records its timings.
+     */
+    public static final String REPORT_PROPERTY = "report";
+
+    /**
+     * The property id of the number of threads installing the extensions of the wiki.
+     */
+    public static final String INSTALL_THREADS_PROPERTY = "installThreads";
+
+    /**
+     * The property id of the executor installing the extensions, shared by all the wikis.
+     */
+    public static final String INSTALL_EXECUTOR_PROPERTY = "installExecutor";
+
+    /**
+     * The property id of the locked install plan of the wiki.
+     */
+    public static final String LOCKED_EXTENSIONS_PROPERTY = "lockedExtensions";
+
     /**
      * Set the wiki to create.
      *
@@ -49,4 +83,104 @@ public class WikiSetupJobRequest extends AbstractRequest
     public Wiki getWiki() {
         return this.getProperty(WIKI_PROPERTY);
     }
+
+    /**
+     * Set the extensions to install, already resolved to their exact version.
+     *
+     * @param extensions the resolved extensions
+     */
+    public void setResolvedExtensions(List<ExtensionId> extensions) {
+        this.setProperty(RESOLVED_EXTENSIONS_PROPERTY, extensions);
+    }
+
+    /**
+     * @return the extensions to install resolved to their exact version, or null to install the extensions configured
+     *     on the wiki
+     */
+    public List<ExtensionId> getResolvedExtensions() {
+        return this.getProperty(RESOLVED_EXTENSIONS_PROPERTY);
+    }
+
+    /**
+     * Set the wiki to copy instead of installing the extensions of the wiki.
+     *
+     * @param templateWikiId the id of an already set up wiki with the same extensions
+     */
+    public void setTemplateWiki(String templateWikiId) {
+        this.setProperty(TEMPLATE_WIKI_PROPERTY, templateWikiId);
+    }
+
+    /**
+     * @return the id of the wiki to copy, or null to install the extensions of the wiki
+     */
+    public String getTemplateWiki() {
+        return this.getProperty(TEMPLATE_WIKI_PROPERTY);
+    }
+
+    /**
+     * Set the report in which the job records its timings.
+     *
+     * @param report the report
+     */
+    public void setReport(WikiSetupReport report) {
+        this.setProperty(REPORT_PROPERTY, report);
+    }
+
+    /**
+     * @return the report in which the job records its timings, null if timings should not be recorded
+     */
+    public WikiSetupReport getReport() {
+        return this.getProperty(REPORT_PROPERTY);
+    }
+
+    /**
+     * Set the number of threads installing the extensions of the wiki.
+     *
+     * @param installThreads the number of threads, 1 to install the extensions sequentially
+     */
+    public void setInstallThreads(int installThreads) {
+        this.setProperty(INSTALL_THREADS_PROPERTY, installThreads);
+    }
+
+    /**
+     * @return the number of threads installing the extensions of the wiki
+     */
+    public int getInstallThreads() {
+        Integer installThreads = this.getProperty(INSTALL_THREADS_PROPERTY);
+        return installThreads != null ? installThreads : 1;
+    }
+
+    /**
+     * Set the executor installing the extensions when there are several install threads, shared by all the wikis so
+     * that the number of install threads is bounded whatever the number of wikis set up at the same time.
+     *
+     * @param installExecutor the executor installing the extensions
+     */
+    public void setInstallExecutor(ExecutorService installExecutor) {
+        this.setProperty(INSTALL_EXECUTOR_PROPERTY, installExecutor);
+    }
+
+    /**
+     * @return the executor installing the extensions, null to install them in the thread of the job
+     */
+    public ExecutorService getInstallExecutor() {
+        return this.getProperty(INSTALL_EXECUTOR_PROPERTY);
+    }
+
+    /**
+     * Set the install plan of the wiki, locked by a previous build or resolved once for all the wikis, installed
+     * without resolving the extensions again.
+     *
+     * @param extensions the extensions to install, sorted by layer
+     */
+    public void setLockedExtensions(List<InstallPlanLock.LockedExtension> extensions) {
+        this.setProperty(LOCKED_EXTENSIONS_PROPERTY, extensions);
+    }
+
+    /**
+     * @return the install plan of the wiki, null if the extensions have to be resolved
+     */
+    public List<InstallPlanLock.LockedExtension> getLockedExtensions() {
+        return this.getProperty(LOCKED_EXTENSIONS_PROPERTY);
+    }
 }
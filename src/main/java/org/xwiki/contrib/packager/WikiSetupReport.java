@@ -0,0 +1,473 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.event.ExtensionInstalledEvent;
+import org.xwiki.extension.event.ExtensionInstallingEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Collects the time spent in each phase of the setup of the wikis and writes it as JSON and CSV reports which can be
+ * compared between builds.
+ * <p>
+ * The report also listens to {@link ExtensionInstallingEvent}s and {@link ExtensionInstalledEvent}s to measure the time
+ * spent installing each extension, between the two events sent by the thread installing it. This excludes the
+ * resolution and the download of the extension. The extensions installed on the root namespace are charged to the wiki
+ * which the installing thread works on, see {@link #enterWiki(String)}.
+ * <p>
+ * The time spent storing the documents of each wiki is measured between the events sent before and after a document
+ * is saved, in the thread saving the document. It also includes the time spent in the other listeners of these events.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiSetupReport implements EventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "WikiSetupReport";
+
+    /**
+     * The phase during which the wiki is created.
+     */
+    public static final String PHASE_CREATION = "creation";
+
+    /**
+     * The phase during which the extensions of the wiki are installed, including their resolution.
+     */
+    public static final String PHASE_INSTALL = "install";
+
+    /**
+     * The name of the CSV file of the report.
+     */
+    public static final String CSV_FILE = "report.csv";
+
+    private static final String NAMESPACE_PREFIX = "wiki:";
+
+    private static final String JSON_SEPARATOR = ", ";
+
+    private final Map<String, WikiTimings> wikis = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final ThreadLocal<String> currentWikis = new ThreadLocal<>();
+
+    private final ThreadLocal<Map<String, Long>> installStartTimes = ThreadLocal.withInitial(HashMap::new);
+
+    private final Map<String, Long> globalPhases = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final Map<String, Long> listeners = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final ThreadLocal<Deque<Long>> saveStartTimes = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * The timings of a single wiki.
+     */
+    private static final class WikiTimings
+    {
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+
+        private final Map<String, Long> extensions = new LinkedHashMap<>();
+
+        private long documentCount = -1;
+
+        private long storeTime;
+    }
+
+    /**
+     * Reset the peak memory usage so that the report only covers the setup of the wikis.
+     */
+    public void start()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @param phase the name of a phase which is not specific to a wiki
+     * @param duration the duration of the phase in milliseconds
+     */
+    public void addGlobalPhase(String phase, long duration)
+    {
+        globalPhases.put(phase, duration);
+    }
+
+    /**
+     * @param listenerName the name of a listener
+     * @param duration the total time spent in the listener in milliseconds
+     */
+    public void addListener(String listenerName, long duration)
+    {
+        listeners.put(listenerName, duration);
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param phase the name of the phase
+     * @param duration the duration of the phase in milliseconds
+     */
+    public void addPhase(String wikiId, String phase, long duration)
+    {
+        WikiTimings timings = getTimings(wikiId);
+        synchronized (timings) {
+            timings.phases.put(phase, duration);
+        }
+    }
+
+    /**
+     * Indicate that the current thread works on the given wiki, until {@link #leaveWiki()} is called.
+     *
+     * @param wikiId the id of the wiki
+     */
+    public void enterWiki(String wikiId)
+    {
+        currentWikis.set(wikiId);
+    }
+
+    /**
+     * Indicate that the current thread does not work on a wiki anymore.
+     */
+    public void leaveWiki()
+    {
+        currentWikis.remove();
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param documentCount the number of documents in the wiki once set up
+     */
+    public void setDocumentCount(String wikiId, long documentCount)
+    {
+        WikiTimings timings = getTimings(wikiId);
+        synchronized (timings) {
+            timings.documentCount = documentCount;
+        }
+    }
+
+    /**
+     * Add the timings of a shard, read from the CSV file of its report. The timings of its wikis are added as is while
+     * its global timings are prefixed with the shard, and the time spent in each listener is summed.
+     *
+     * @param shardIndex the index of the shard
+     * @param csvFile the CSV file of the report of the shard
+     * @throws MojoExecutionException if the report of the shard cannot be read
+     */
+    public void merge(int shardIndex, File csvFile) throws MojoExecutionException
+    {
+        if (!csvFile.exists()) {
+            return;
+        }
+
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(csvFile.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to read the setup report [%s]", csvFile), e);
+        }
+
+        String shardPrefix = String.format("shard%d.", shardIndex);
+        // Skip the header
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            String[] columns = line.split(",", -1);
+            if (columns.length != 4) {
+                continue;
+            }
+            String wikiId = columns[0];
+            String type = columns[1];
+            String name = columns[2];
+            long value = Long.parseLong(columns[3]);
+
+            if (wikiId.isEmpty()) {
+                if ("listener".equals(type)) {
+                    listeners.merge(name, value, Long::sum);
+                } else {
+                    globalPhases.put(shardPrefix + name, value);
+                }
+            } else {
+                WikiTimings timings = getTimings(wikiId);
+                synchronized (timings) {
+                    mergeWikiTiming(timings, type, name, value);
+                }
+            }
+        }
+    }
+
+    private void mergeWikiTiming(WikiTimings timings, String type, String name, long value)
+    {
+        switch (type) {
+            case "documents":
+                timings.documentCount = value;
+                break;
+            case "store":
+                timings.storeTime += TimeUnit.MILLISECONDS.toNanos(value);
+                break;
+            case "phase":
+                timings.phases.put(name, value);
+                break;
+            case "extension":
+                timings.extensions.put(name, value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private WikiTimings getTimings(String wikiId)
+    {
+        return wikis.computeIfAbsent(wikiId, id -> new WikiTimings());
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ExtensionInstallingEvent(), new ExtensionInstalledEvent(),
+            new DocumentCreatingEvent(), new DocumentUpdatingEvent(), new DocumentCreatedEvent(),
+            new DocumentUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof ExtensionInstallingEvent) {
+            ExtensionInstallingEvent installingEvent = (ExtensionInstallingEvent) event;
+            installStartTimes.get().put(getInstallKey(installingEvent.getExtensionId(), installingEvent.getNamespace()),
+                System.nanoTime());
+        } else if (event instanceof ExtensionInstalledEvent) {
+            onExtensionInstalled((ExtensionInstalledEvent) event);
+        } else if (event instanceof DocumentCreatingEvent || event instanceof DocumentUpdatingEvent) {
+            // Saving a document can trigger the save of other documents
+            saveStartTimes.get().push(System.nanoTime());
+        } else {
+            Long saveStartTime = saveStartTimes.get().poll();
+            if (saveStartTime != null) {
+                String wikiId = ((DocumentModelBridge) source).getDocumentReference().getWikiReference().getName();
+                WikiTimings timings = getTimings(wikiId);
+                synchronized (timings) {
+                    timings.storeTime += System.nanoTime() - saveStartTime;
+                }
+            }
+        }
+    }
+
+    private void onExtensionInstalled(ExtensionInstalledEvent installedEvent)
+    {
+        ExtensionId extensionId = installedEvent.getExtensionId();
+        String namespace = installedEvent.getNamespace();
+        Long installStartTime = installStartTimes.get().remove(getInstallKey(extensionId, namespace));
+        if (installStartTime == null) {
+            return;
+        }
+
+        String wikiId;
+        if (namespace != null && namespace.startsWith(NAMESPACE_PREFIX)) {
+            wikiId = namespace.substring(NAMESPACE_PREFIX.length());
+        } else {
+            // Extensions are installed on root by the wiki requiring them first
+            wikiId = currentWikis.get() != null ? currentWikis.get() : Wiki.MAIN_WIKI_ID;
+        }
+
+        WikiTimings timings = getTimings(wikiId);
+        synchronized (timings) {
+            timings.extensions.put(extensionId.getId() + '/' + extensionId.getVersion().getValue(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - installStartTime));
+        }
+    }
+
+    private String getInstallKey(ExtensionId extensionId, String namespace)
+    {
+        return extensionId + "/" + namespace;
+    }
+
+    /**
+     * @return the peak heap usage in bytes since {@link #start()} was called
+     */
+    public long getPeakHeapUsage()
+    {
+        long peakHeapUsage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeapUsage += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peakHeapUsage;
+    }
+
+    /**
+     * Write the report as {@code report.json} and {@code report.csv} in the given directory.
+     *
+     * @param directory the directory in which to write the report
+     * @throws MojoExecutionException if the report cannot be written
+     */
+    public void write(File directory) throws MojoExecutionException
+    {
+        directory.mkdirs();
+
+        try {
+            Files.write(new File(directory, "report.json").toPath(), Collections.singleton(toJSON()),
+                StandardCharsets.UTF_8);
+
+            try (PrintWriter writer = new PrintWriter(
+                Files.newBufferedWriter(new File(directory, CSV_FILE).toPath(), StandardCharsets.UTF_8))) {
+                writeCSV(writer);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to write the setup report in [%s]", directory), e);
+        }
+    }
+
+    private String toJSON()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"startTime\": ").append(startTime);
+        json.append(", \"totalTime\": ").append(System.currentTimeMillis() - startTime);
+        json.append(", \"peakHeapUsage\": ").append(getPeakHeapUsage());
+        json.append(", \"phases\": ");
+        synchronized (globalPhases) {
+            appendJSON(json, globalPhases);
+        }
+        json.append(", \"listeners\": ");
+        synchronized (listeners) {
+            appendJSON(json, listeners);
+        }
+        json.append(", \"wikis\": [");
+        synchronized (wikis) {
+            String separator = "";
+            for (Map.Entry<String, WikiTimings> entry : wikis.entrySet()) {
+                WikiTimings timings = entry.getValue();
+                synchronized (timings) {
+                    json.append(separator).append("{\"id\": ").append(quote(entry.getKey()));
+                    json.append(", \"documents\": ").append(timings.documentCount);
+                    json.append(", \"storeTime\": ").append(TimeUnit.NANOSECONDS.toMillis(timings.storeTime));
+                    json.append(", \"phases\": ");
+                    appendJSON(json, timings.phases);
+                    json.append(", \"extensions\": ");
+                    appendJSON(json, timings.extensions);
+                    json.append('}');
+                }
+                separator = JSON_SEPARATOR;
+            }
+        }
+        json.append("]}");
+
+        return json.toString();
+    }
+
+    private void appendJSON(StringBuilder json, Map<String, Long> values)
+    {
+        json.append('{');
+        String separator = "";
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            json.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = JSON_SEPARATOR;
+        }
+        json.append('}');
+    }
+
+    private String quote(String value)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+
+        return quoted.append('"').toString();
+    }
+
+    private void writeCSV(PrintWriter writer)
+    {
+        writer.println("wiki,type,name,value");
+        writeCSVLine(writer, "", "global", "totalTime", System.currentTimeMillis() - startTime);
+        writeCSVLine(writer, "", "global", "peakHeapUsage", getPeakHeapUsage());
+        synchronized (globalPhases) {
+            for (Map.Entry<String, Long> phase : globalPhases.entrySet()) {
+                writeCSVLine(writer, "", "phase", phase.getKey(), phase.getValue());
+            }
+        }
+        synchronized (listeners) {
+            for (Map.Entry<String, Long> listener : listeners.entrySet()) {
+                writeCSVLine(writer, "", "listener", listener.getKey(), listener.getValue());
+            }
+        }
+        synchronized (wikis) {
+            for (Map.Entry<String, WikiTimings> entry : wikis.entrySet()) {
+                WikiTimings timings = entry.getValue();
+                synchronized (timings) {
+                    writeCSVLine(writer, entry.getKey(), "documents", "", timings.documentCount);
+                    writeCSVLine(writer, entry.getKey(), "store", "", TimeUnit.NANOSECONDS.toMillis(timings.storeTime));
+                    for (Map.Entry<String, Long> phase : timings.phases.entrySet()) {
+                        writeCSVLine(writer, entry.getKey(), "phase", phase.getKey(), phase.getValue());
+                    }
+                    for (Map.Entry<String, Long> extension : timings.extensions.entrySet()) {
+                        writeCSVLine(writer, entry.getKey(), "extension", extension.getKey(), extension.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeCSVLine(PrintWriter writer, String wikiId, String type, String name, long value)
+    {
+        // Wiki ids and extension ids never contain commas, no need for quoting
+        writer.println(String.join(",", Arrays.asList(wikiId, type, name, String.valueOf(value))));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+/**
+ * The outcome of the setup of a wiki.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiSetupResult
+{
+    /**
+     * The possible outcomes.
+     */
+    public enum Outcome
+    {
+        /**
+         * The wiki was set up.
+         */
+        SUCCEEDED,
+
+        /**
+         * The setup of the wiki failed.
+         */
+        FAILED,
+
+        /**
+         * The wiki was not set up in time.
+         */
+        TIMED_OUT,
+
+        /**
+         * The setup of the wiki was canceled because another wiki failed.
+         */
+        CANCELED,
+
+        /**
+         * The wiki was not set up because another wiki failed.
+         */
+        SKIPPED
+    }
+
+    private final Outcome outcome;
+
+    private final long duration;
+
+    private final Throwable error;
+
+    /**
+     * @param outcome the outcome of the setup
+     * @param duration the time spent setting up the wiki in milliseconds
+     * @param error the error which made the setup fail, if any
+     */
+    public WikiSetupResult(Outcome outcome, long duration, Throwable error)
+    {
+        this.outcome = outcome;
+        this.duration = duration;
+        this.error = error;
+    }
+
+    /**
+     * @return the outcome of the setup
+     */
+    public Outcome getOutcome()
+    {
+        return outcome;
+    }
+
+    /**
+     * @return the time spent setting up the wiki in milliseconds, 0 if it was not started
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * @return the error which made the setup fail, null if none is known
+     */
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder(outcome.name()).append(" in ").append(duration).append(" ms");
+        if (error != null) {
+            builder.append(": ").append(error.getMessage());
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Schedules the setup of a set of wikis, keeping at most a given number of {@link WikiSetupJob}s running at the same
+ * time and starting a new one as soon as a slot is freed. The main wiki is always fully set up before any other wiki
+ * is started, and a wiki is only started once all the wikis listed in {@link Wiki#getDependsOn()}, and the ones added
+ * with {@link #addDependency(String, String)}, are set up.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiSetupScheduler
+{
+    /**
+     * The default time in milliseconds given to a canceled job to stop before canceling it again.
+     */
+    public static final long DEFAULT_CANCEL_INTERVAL = 10000;
+
+    private final Function<Wiki, CompletableFuture<Void>> starter;
+
+    private final int maxConcurrentWikis;
+
+    private ToLongFunction<Wiki> wikiTimeouts;
+
+    private final long totalTimeout;
+
+    private final Log log;
+
+    private final Map<Wiki, CompletableFuture<Void>> runningJobs = new LinkedHashMap<>();
+
+    private final Map<Wiki, Long> deadlines = new HashMap<>();
+
+    private final List<String> unfinishedWikis = new ArrayList<>();
+
+    private final Set<String> finishedWikis = new HashSet<>();
+
+    private final Map<String, WikiSetupResult> results = new LinkedHashMap<>();
+
+    private final Map<Wiki, Long> startTimes = new HashMap<>();
+
+    private final Set<String> canceledWikis = new HashSet<>();
+
+    private final Map<String, List<String>> extraDependencies = new HashMap<>();
+
+    private final Set<String> timedOutWikis = new HashSet<>();
+
+    private final Map<Wiki, Long> cancelTimes = new HashMap<>();
+
+    private Consumer<Wiki> canceller;
+
+    private long cancelInterval = DEFAULT_CANCEL_INTERVAL;
+
+    private boolean failFast;
+
+    private boolean failed;
+
+    private long deadline;
+
+    /**
+     * @param starter the function starting the setup of a wiki, returning a future completed when the setup is
+     *     finished or null if it could not be started
+     * @param maxConcurrentWikis the maximum number of wikis to set up at the same time
+     * @param wikiTimeout the maximum time in milliseconds given to each wiki to be set up, 0 for no limit
+     * @param totalTimeout the maximum time in milliseconds given to all the wikis to be set up, 0 for no limit
+     * @param log the logger to use
+     */
+    public WikiSetupScheduler(Function<Wiki, CompletableFuture<Void>> starter, int maxConcurrentWikis,
+        long wikiTimeout, long totalTimeout, Log log)
+    {
+        this.starter = starter;
+        this.maxConcurrentWikis = Math.max(1, maxConcurrentWikis);
+        this.wikiTimeouts = wiki -> wikiTimeout;
+        this.totalTimeout = totalTimeout;
+        this.log = log;
+    }
+
+    /**
+     * @param wikiTimeouts the function giving the maximum time in milliseconds given to each wiki to be set up, 0 for
+     *     no limit
+     */
+    public void setWikiTimeouts(ToLongFunction<Wiki> wikiTimeouts)
+    {
+        this.wikiTimeouts = wikiTimeouts;
+    }
+
+    /**
+     * A job which timed out keeps its slot until it actually stops, and {@link #run(Iterator)} only returns once every
+     * canceled job is stopped, so that no job keeps writing to the instance after the setup. Without a canceller, the
+     * jobs which time out are left running in the background.
+     *
+     * @param canceller the function canceling the job setting up a wiki, called when a wiki times out and with
+     *     {@link #setFailFast(boolean)}, and called again for as long as the job is not stopped
+     */
+    public void setCanceller(Consumer<Wiki> canceller)
+    {
+        this.canceller = canceller;
+    }
+
+    /**
+     * @param cancelInterval the time in milliseconds given to a canceled job to stop before canceling it again, see
+     *     {@link #DEFAULT_CANCEL_INTERVAL}
+     */
+    public void setCancelInterval(long cancelInterval)
+    {
+        this.cancelInterval = cancelInterval;
+    }
+
+    /**
+     * @param failFast true to stop at the first wiki which fails or times out: the running jobs are canceled and the
+     *     pending wikis are skipped, {@link #run(Iterator)} still waiting for the canceled jobs to stop
+     */
+    public void setFailFast(boolean failFast)
+    {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Make a wiki wait for another wiki on top of the wikis listed in its configuration, for instance for the wiki it
+     * is copied from.
+     *
+     * @param wikiId the id of the wiki
+     * @param dependencyId the id of the wiki to set up first
+     */
+    public void addDependency(String wikiId, String dependencyId)
+    {
+        extraDependencies.computeIfAbsent(wikiId, id -> new ArrayList<>()).add(dependencyId);
+    }
+
+    /**
+     * @param wiki the wiki
+     * @return the ids of the wikis to set up before the given wiki
+     */
+    public List<String> getDependencies(Wiki wiki)
+    {
+        List<String> extraWikiDependencies = extraDependencies.get(wiki.getId());
+        if (extraWikiDependencies == null) {
+            return wiki.getDependsOn();
+        }
+
+        List<String> dependencies = new ArrayList<>(wiki.getDependsOn());
+        dependencies.addAll(extraWikiDependencies);
+
+        return dependencies;
+    }
+
+    /**
+     * @return the result of each wiki, in the order in which they finished
+     */
+    public Map<String, WikiSetupResult> getResults()
+    {
+        return results;
+    }
+
+    /**
+     * Make sure that the dependencies between the given wikis can be satisfied.
+     *
+     * @param wikis the wikis to set up
+     * @throws MojoExecutionException if a wiki depends on an unknown wiki or if the dependencies contain a cycle
+     */
+    public void validate(List<Wiki> wikis) throws MojoExecutionException
+    {
+        Set<String> wikiIds = new HashSet<>();
+        for (Wiki wiki : wikis) {
+            wikiIds.add(wiki.getId());
+        }
+
+        // Count the prerequisites of each wiki and remove the wikis without any prerequisite left until none remains
+        Map<String, Integer> prerequisiteCounts = new HashMap<>();
+        Map<String, List<String>> dependents = new HashMap<>();
+        for (Wiki wiki : wikis) {
+            List<String> dependencies = getDependencies(wiki);
+            if (Wiki.MAIN_WIKI_ID.equals(wiki.getId()) && !dependencies.isEmpty()) {
+                throw new MojoExecutionException(
+                    "The main wiki is always set up first and cannot depend on other wikis");
+            }
+
+            for (String dependency : dependencies) {
+                if (!wikiIds.contains(dependency)) {
+                    throw new MojoExecutionException(
+                        String.format("Wiki [%s] depends on unknown wiki [%s]", wiki.getId(), dependency));
+                }
+                dependents.computeIfAbsent(dependency, id -> new ArrayList<>()).add(wiki.getId());
+            }
+            prerequisiteCounts.put(wiki.getId(), dependencies.size());
+        }
+
+        Deque<String> readyWikis = new ArrayDeque<>();
+        for (Map.Entry<String, Integer> entry : prerequisiteCounts.entrySet()) {
+            if (entry.getValue() == 0) {
+                readyWikis.add(entry.getKey());
+            }
+        }
+
+        while (!readyWikis.isEmpty()) {
+            String wikiId = readyWikis.poll();
+            prerequisiteCounts.remove(wikiId);
+            for (String dependent : dependents.getOrDefault(wikiId, Collections.<String>emptyList())) {
+                if (prerequisiteCounts.merge(dependent, -1, Integer::sum) == 0) {
+                    readyWikis.add(dependent);
+                }
+            }
+        }
+
+        if (!prerequisiteCounts.isEmpty()) {
+            throw new MojoExecutionException(
+                String.format("The dependencies between wikis %s contain a cycle", prerequisiteCounts.keySet()));
+        }
+    }
+
+    /**
+     * Set up the given wikis and wait for all of them to be finished.
+     *
+     * @param wikis the wikis to set up, see {@link #validate(List)}
+     * @return the ids of the wikis which could not be set up
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    public List<String> run(List<Wiki> wikis) throws InterruptedException
+    {
+        List<Wiki> sortedWikis = new ArrayList<>(wikis.size());
+        for (Wiki wiki : wikis) {
+            if (Wiki.MAIN_WIKI_ID.equals(wiki.getId())) {
+                sortedWikis.add(0, wiki);
+            } else {
+                sortedWikis.add(wiki);
+            }
+        }
+
+        return run(sortedWikis.iterator());
+    }
+
+    /**
+     * Set up the wikis provided by the given iterator and wait for all of them to be finished. A wiki is only taken
+     * from the iterator when there's a free slot to set it up, so that the wikis don't have to be all loaded up front.
+     *
+     * @param wikis the wikis to set up, the main wiki (if any) coming first and each wiki only depending on the wikis
+     *     coming before it
+     * @return the ids of the wikis which could not be set up
+     * @throws InterruptedException if interrupted while waiting for the jobs
+     */
+    public List<String> run(Iterator<Wiki> wikis) throws InterruptedException
+    {
+        this.deadline = getDeadline(System.currentTimeMillis(), totalTimeout);
+
+        List<Wiki> pendingWikis = new LinkedList<>();
+        if (wikis.hasNext()) {
+            Wiki firstWiki = wikis.next();
+            if (Wiki.MAIN_WIKI_ID.equals(firstWiki.getId())) {
+                // The other wikis rely on the main wiki so it has to be set up first
+                start(firstWiki);
+                while (!runningJobs.isEmpty()) {
+                    waitForAnyJob();
+                }
+
+                if (!unfinishedWikis.isEmpty()) {
+                    wikis.forEachRemaining(this::skip);
+
+                    return unfinishedWikis;
+                }
+            } else {
+                pendingWikis.add(firstWiki);
+            }
+        }
+
+        while (wikis.hasNext() || !pendingWikis.isEmpty() || !runningJobs.isEmpty()) {
+            if (failed && failFast) {
+                pendingWikis.forEach(this::skip);
+                pendingWikis.clear();
+                wikis.forEachRemaining(this::skip);
+            }
+
+            boolean scheduled = false;
+            Iterator<Wiki> iterator = pendingWikis.iterator();
+            while (runningJobs.size() < maxConcurrentWikis && iterator.hasNext()) {
+                if (schedule(iterator.next())) {
+                    iterator.remove();
+                    scheduled = true;
+                }
+            }
+
+            // Only take new wikis when the pending ones are waiting for their dependencies
+            while (runningJobs.size() < maxConcurrentWikis && wikis.hasNext()) {
+                Wiki wiki = wikis.next();
+                if (schedule(wiki)) {
+                    scheduled = true;
+                } else {
+                    pendingWikis.add(wiki);
+                }
+            }
+
+            if (!scheduled && runningJobs.isEmpty() && !pendingWikis.isEmpty() && !wikis.hasNext()) {
+                // The remaining wikis can never be started, only possible when the wikis were not validated
+                pendingWikis.forEach(this::skip);
+                pendingWikis.clear();
+            }
+
+            waitForAnyJob();
+        }
+
+        return unfinishedWikis;
+    }
+
+    /**
+     * Start the given wiki if its dependencies are set up, or skip it if one of them could not be set up.
+     *
+     * @return false if the wiki is still waiting for its dependencies
+     */
+    private boolean schedule(Wiki wiki)
+    {
+        List<String> dependencies = getDependencies(wiki);
+        if (dependencies.stream().anyMatch(unfinishedWikis::contains)) {
+            log.error(String.format("Skipping wiki [%s] since one of the wikis %s could not be set up", wiki.getId(),
+                dependencies));
+            skip(wiki);
+
+            return true;
+        } else if (finishedWikis.containsAll(dependencies)) {
+            start(wiki);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private void start(Wiki wiki)
+    {
+        CompletableFuture<Void> job = starter.apply(wiki);
+
+        if (job != null) {
+            runningJobs.put(wiki, job);
+            startTimes.put(wiki, System.currentTimeMillis());
+            deadlines.put(wiki,
+                Math.min(deadline, getDeadline(System.currentTimeMillis(), wikiTimeouts.applyAsLong(wiki))));
+        } else {
+            fail(wiki.getId(), WikiSetupResult.Outcome.FAILED, 0, null);
+        }
+    }
+
+    private void skip(Wiki wiki)
+    {
+        unfinishedWikis.add(wiki.getId());
+        results.put(wiki.getId(), new WikiSetupResult(WikiSetupResult.Outcome.SKIPPED, 0, null));
+    }
+
+    /**
+     * Cancel the job of the given wiki, which is canceled again if it's still running after {@link #cancelInterval}.
+     */
+    private void cancel(Wiki wiki)
+    {
+        canceller.accept(wiki);
+        cancelTimes.put(wiki, System.currentTimeMillis() + cancelInterval);
+    }
+
+    private void fail(String wikiId, WikiSetupResult.Outcome outcome, long duration, Throwable error)
+    {
+        unfinishedWikis.add(wikiId);
+        results.put(wikiId, new WikiSetupResult(outcome, duration, error));
+
+        if (outcome != WikiSetupResult.Outcome.CANCELED && failFast && canceller != null && !failed) {
+            log.error(String.format("Wiki [%s] could not be set up, canceling the other wikis", wikiId));
+            // The canceled jobs are waited for like the other running jobs
+            for (Wiki wiki : runningJobs.keySet()) {
+                if (!wiki.getId().equals(wikiId) && !timedOutWikis.contains(wiki.getId())) {
+                    canceledWikis.add(wiki.getId());
+                    cancel(wiki);
+                }
+            }
+        }
+        failed = true;
+    }
+
+    /**
+     * Wait until at least one of the running jobs is finished or has reached its deadline.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void waitForAnyJob() throws InterruptedException
+    {
+        if (runningJobs.isEmpty()) {
+            return;
+        }
+
+        CompletableFuture<Object> anyJob =
+            CompletableFuture.anyOf(runningJobs.values().toArray(new CompletableFuture<?>[0]));
+        long nextDeadline = Stream.concat(deadlines.values().stream(), cancelTimes.values().stream())
+            .min(Long::compare).orElse(Long.MAX_VALUE);
+
+        try {
+            if (nextDeadline == Long.MAX_VALUE) {
+                anyJob.get();
+            } else {
+                anyJob.get(Math.max(0, nextDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        } catch (ExecutionException | TimeoutException e) {
+            // Each job is checked individually below
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Wiki, CompletableFuture<Void>>> iterator = runningJobs.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Wiki, CompletableFuture<Void>> entry = iterator.next();
+            Wiki wiki = entry.getKey();
+            long duration = now - startTimes.get(wiki);
+
+            if (entry.getValue().isDone()) {
+                finish(wiki, getError(entry.getValue()), duration);
+            } else if (now >= deadlines.getOrDefault(wiki, Long.MAX_VALUE)) {
+                log.error(String.format("Timed out while waiting for wiki [%s] to be set up", wiki.getId()));
+                fail(wiki.getId(), WikiSetupResult.Outcome.TIMED_OUT, duration, null);
+                deadlines.remove(wiki);
+                if (canceller != null) {
+                    // The job keeps its slot until it's stopped, so that it doesn't write to the instance once the
+                    // setup is over
+                    timedOutWikis.add(wiki.getId());
+                    cancel(wiki);
+
+                    continue;
+                }
+            } else if (now >= cancelTimes.getOrDefault(wiki, Long.MAX_VALUE)) {
+                log.warn(String.format("The setup of wiki [%s] is still running after being canceled, canceling it "
+                    + "again", wiki.getId()));
+                cancel(wiki);
+
+                continue;
+            } else {
+                continue;
+            }
+
+            iterator.remove();
+            deadlines.remove(wiki);
+            startTimes.remove(wiki);
+            cancelTimes.remove(wiki);
+        }
+    }
+
+    private void finish(Wiki wiki, Throwable error, long duration)
+    {
+        String wikiId = wiki.getId();
+
+        if (timedOutWikis.contains(wikiId)) {
+            // The result of the wiki was recorded when it timed out
+            log.info(String.format("The setup of wiki [%s] is now stopped", wikiId));
+        } else if (error == null) {
+            log.info(String.format("Job for wiki [%s] is now finished", wikiId));
+            finishedWikis.add(wikiId);
+            results.put(wikiId, new WikiSetupResult(WikiSetupResult.Outcome.SUCCEEDED, duration, null));
+        } else if (canceledWikis.contains(wikiId)) {
+            log.warn(String.format("The setup of wiki [%s] was canceled", wikiId));
+            fail(wikiId, WikiSetupResult.Outcome.CANCELED, duration, error);
+        } else {
+            log.error(String.format("Failed to set up wiki [%s]", wikiId), error);
+            fail(wikiId, WikiSetupResult.Outcome.FAILED, duration, error);
+        }
+    }
+
+    private Throwable getError(CompletableFuture<Void> job)
+    {
+        try {
+            job.join();
+
+            return null;
+        } catch (CompletionException | CancellationException e) {
+            return e.getCause() != null ? e.getCause() : e;
+        }
+    }
+
+    private long getDeadline(long startTime, long timeout)
+    {
+        return timeout > 0 ? startTime + timeout : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Sets up the main wiki, then the subwikis in forked Maven processes, each one working on its own copy of the database
+ * and of the permanent directory, and merges the wikis of each shard in the database of the build as soon as the shard
+ * exits. The wikis of a shard which failed or timed out are not merged and are reported as not set up. The wikis are
+ * split with {@link WikiShards}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiShardRunner
+{
+    /**
+     * The property holding the number of shards.
+     */
+    public static final String SHARDS_PROPERTY = "shards";
+
+    /**
+     * The property holding the index of the shard set up by a forked process.
+     */
+    public static final String SHARD_INDEX_PROPERTY = "wiki.shardIndex";
+
+    /**
+     * The property holding the Hibernate configuration of the shard set up by a forked process.
+     */
+    public static final String SHARD_HIBERNATE_CONFIG_PROPERTY = "wiki.shardHibernateConfig";
+
+    /**
+     * The property holding the permanent directory of the shard set up by a forked process.
+     */
+    public static final String SHARD_PERMANENT_DIRECTORY_PROPERTY = "wiki.shardPermanentDirectory";
+
+    /**
+     * The local extension repository, relative to the permanent directory.
+     */
+    public static final String EXTENSION_REPOSITORY = "extension/repository";
+
+    /**
+     * The properties set on the command of the shards, which must not be forwarded from the build.
+     */
+    private static final List<String> SHARD_PROPERTIES = Arrays.asList(SHARDS_PROPERTY, SHARD_INDEX_PROPERTY,
+        SHARD_HIBERNATE_CONFIG_PROPERTY, SHARD_PERMANENT_DIRECTORY_PROPERTY);
+
+    private final WikiHelper wikiHelper;
+
+    private final HibernateDatabase database;
+
+    private final File packagerDirectory;
+
+    private final int shardCount;
+
+    private final Log log;
+
+    private MavenSession session;
+
+    private MavenProject project;
+
+    private MojoExecution mojoExecution;
+
+    private WikiCheckpoints checkpoints;
+
+    private Function<Wiki, Map<String, String>> extensionVersions;
+
+    private long wikiTimeout;
+
+    private long totalTimeout;
+
+    private WikiSetupReport report;
+
+    /**
+     * @param wikiHelper the helper of the instance of the build
+     * @param database the database of the build, in which the wikis of the shards are merged
+     * @param packagerDirectory the directory of the packager, in which each shard gets its own directory
+     * @param shardCount the number of shards
+     * @param log the log
+     */
+    public WikiShardRunner(WikiHelper wikiHelper, HibernateDatabase database, File packagerDirectory, int shardCount,
+        Log log)
+    {
+        this.wikiHelper = wikiHelper;
+        this.database = database;
+        this.packagerDirectory = packagerDirectory;
+        this.shardCount = shardCount;
+        this.log = log;
+    }
+
+    /**
+     * @param session the session of the build, whose profiles, settings and properties are forwarded to the shards
+     * @param project the project of the build
+     * @param mojoExecution the execution run again by each shard to get the same configuration
+     */
+    public void setExecution(MavenSession session, MavenProject project, MojoExecution mojoExecution)
+    {
+        this.session = session;
+        this.project = project;
+        this.mojoExecution = mojoExecution;
+    }
+
+    /**
+     * @param checkpoints the checkpoints of the build, updated with the wikis merged from the shards
+     * @param extensionVersions computes the extensions of a wiki, to check that a shard set up its current
+     *     configuration
+     */
+    public void setCheckpoints(WikiCheckpoints checkpoints, Function<Wiki, Map<String, String>> extensionVersions)
+    {
+        this.checkpoints = checkpoints;
+        this.extensionVersions = extensionVersions;
+    }
+
+    /**
+     * @param wikiTimeout the maximum time in milliseconds given to each wiki, a shard being killed when it takes
+     *     longer than this time multiplied by its number of wikis, 0 for no limit
+     * @param totalTimeout the maximum time in milliseconds given to all the shards, 0 for no limit
+     */
+    public void setTimeouts(long wikiTimeout, long totalTimeout)
+    {
+        this.wikiTimeout = wikiTimeout;
+        this.totalTimeout = totalTimeout;
+    }
+
+    /**
+     * @param report the report in which the timings of the shards are merged, null to not report them
+     */
+    public void setReport(WikiSetupReport report)
+    {
+        this.report = report;
+    }
+
+    /**
+     * @param packagerDirectory the directory of the packager of the build
+     * @param index the index of the shard
+     * @return the directory of the shard, which is also the packager directory of its process
+     */
+    public static File getShardDirectory(File packagerDirectory, int index)
+    {
+        return new File(packagerDirectory, "shards/" + index);
+    }
+
+    /**
+     * Set up the main wiki with the given scheduler, then the subwikis in forked processes, starting the next pending
+     * shard in place of each shard which exits.
+     *
+     * @param scheduler the scheduler setting up the main wiki
+     * @param wikis all the wikis
+     * @param templateWikis the wikis from which other wikis are copied, indexed by the id of the copy
+     * @return the ids of the wikis which could not be set up
+     * @throws InterruptedException if interrupted while waiting for the shards
+     * @throws MojoExecutionException if the shards cannot be started
+     */
+    public List<String> run(WikiSetupScheduler scheduler, List<Wiki> wikis, Map<String, String> templateWikis)
+        throws InterruptedException, MojoExecutionException
+    {
+        List<Wiki> mainWiki = wikis.stream().filter(wiki -> Wiki.MAIN_WIKI_ID.equals(wiki.getId()))
+            .collect(Collectors.toList());
+        List<String> unfinishedWikis = new ArrayList<>(scheduler.run(mainWiki));
+        List<List<Wiki>> shardWikis = WikiShards.split(wikis, shardCount, templateWikis);
+
+        if (!unfinishedWikis.isEmpty()) {
+            shardWikis.forEach(shard -> shard.forEach(wiki -> unfinishedWikis.add(wiki.getId())));
+
+            return unfinishedWikis;
+        }
+
+        Map<Integer, HibernateDatabase> shardDatabases = new ConcurrentHashMap<>();
+        List<ShardProcess> processes = new CopyOnWriteArrayList<>();
+        AtomicInteger shardThreadCount = new AtomicInteger();
+        ExecutorService shardExecutor = Executors.newFixedThreadPool(shardCount,
+            runnable -> new Thread(runnable, "WikiShard-" + shardThreadCount.incrementAndGet()));
+        CompletionService<Integer> completedShards = new ExecutorCompletionService<>(shardExecutor);
+        Set<Integer> pendingShards = new LinkedHashSet<>();
+        long startTime = System.currentTimeMillis();
+        try {
+            // Each shard runs in its own thread, which waits for its process
+            for (int i = 0; i < shardCount; i++) {
+                if (!shardWikis.get(i).isEmpty()) {
+                    int index = i;
+                    pendingShards.add(index);
+                    completedShards.submit(() -> runShard(index, shardWikis.get(index), shardDatabases, processes));
+                }
+            }
+
+            ShardMerger merger = new ShardMerger(wikiHelper, database, log);
+            while (!pendingShards.isEmpty()) {
+                Future<Integer> completedShard;
+                if (totalTimeout > 0) {
+                    long timeout = startTime + totalTimeout - System.currentTimeMillis();
+                    completedShard = completedShards.poll(Math.max(1, timeout), TimeUnit.MILLISECONDS);
+                } else {
+                    completedShard = completedShards.take();
+                }
+                if (completedShard == null) {
+                    log.error("Timed out while waiting for the shards, killing them");
+                    break;
+                }
+
+                // Only the shards which exited successfully have a database, the database of a failed or killed shard
+                // might be incomplete
+                int index = getShardIndex(completedShard);
+                pendingShards.remove(index);
+                HibernateDatabase shardDatabase = shardDatabases.get(index);
+                if (shardDatabase != null) {
+                    mergeShard(merger, shardDatabase, shardWikis.get(index), unfinishedWikis);
+                    if (report != null) {
+                        report.merge(index,
+                            new File(getShardDirectory(packagerDirectory, index), WikiSetupReport.CSV_FILE));
+                    }
+                } else {
+                    log.error(String.format("Not merging the wikis of shard %d since it failed", index));
+                    shardWikis.get(index).forEach(wiki -> unfinishedWikis.add(wiki.getId()));
+                }
+            }
+        } finally {
+            shardExecutor.shutdownNow();
+            processes.forEach(ShardProcess::destroy);
+        }
+
+        // The shards which did not finish in time
+        pendingShards.forEach(index -> shardWikis.get(index).forEach(wiki -> unfinishedWikis.add(wiki.getId())));
+
+        if (report != null) {
+            report.addGlobalPhase("shards", System.currentTimeMillis() - startTime);
+        }
+
+        return unfinishedWikis;
+    }
+
+    /**
+     * Prepare the database and the permanent directory of a shard and run it, giving it the wiki timeout for each of
+     * its wikis. The database of the shard is only recorded when its process exited successfully.
+     *
+     * @return the index of the shard
+     */
+    private Integer runShard(int index, List<Wiki> wikisOfShard, Map<Integer, HibernateDatabase> shardDatabases,
+        List<ShardProcess> processes) throws MojoExecutionException, InterruptedException
+    {
+        File shardDirectory = getShardDirectory(packagerDirectory, index);
+        deleteDirectory(shardDirectory);
+        HibernateDatabase shardDatabase = database.relocate(shardDirectory);
+        File shardPermanentDirectory = new File(shardDirectory, "data");
+        // Start from the extensions of the main wiki so that they're not downloaded again, the extensions installed on
+        // the root namespace being already loaded by the shard
+        copyDirectory(new File(wikiHelper.getPermanentDirectory(), EXTENSION_REPOSITORY),
+            new File(shardPermanentDirectory, EXTENSION_REPOSITORY));
+
+        ShardProcess process =
+            new ShardProcess(index, getShardCommand(index, shardDatabase, shardPermanentDirectory), log);
+        processes.add(process);
+        process.start();
+        if (process.waitFor(wikiTimeout * wikisOfShard.size())) {
+            shardDatabases.put(index, shardDatabase);
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the index of a completed shard, whose failure was already logged
+     */
+    private int getShardIndex(Future<Integer> completedShard) throws InterruptedException, MojoExecutionException
+    {
+        try {
+            return completedShard.get();
+        } catch (ExecutionException e) {
+            // The shard could not even be started, which would happen to every shard
+            throw new MojoExecutionException("Failed to run a shard", e.getCause());
+        }
+    }
+
+    private void mergeShard(ShardMerger merger, HibernateDatabase shardDatabase, List<Wiki> shardWikis,
+        List<String> unfinishedWikis) throws MojoExecutionException
+    {
+        WikiPackagerState shardCheckpoint = WikiPackagerState.load(
+            new File(shardDatabase.getConfiguration().getParentFile(), WikiCheckpoints.CHECKPOINT_FILE));
+
+        for (Wiki wiki : shardWikis) {
+            String fingerprint = WikiPackagerState.fingerprint(wiki, extensionVersions.apply(wiki));
+            if (!fingerprint.equals(shardCheckpoint.getFingerprint(wiki.getId()))) {
+                log.error(String.format("Wiki [%s] was not set up by its shard", wiki.getId()));
+                unfinishedWikis.add(wiki.getId());
+                continue;
+            }
+
+            try {
+                merger.merge(wiki, shardDatabase, shardCheckpoint.getExtensions(wiki.getId()));
+                checkpoints.checkpoint(wiki, fingerprint);
+            } catch (MojoExecutionException e) {
+                log.error(String.format("Failed to merge wiki [%s]", wiki.getId()), e);
+                unfinishedWikis.add(wiki.getId());
+            }
+        }
+    }
+
+    private List<String> getShardCommand(int index, HibernateDatabase shardDatabase, File shardPermanentDirectory)
+    {
+        List<String> command = new ArrayList<>();
+        command.add(getMavenExecutable());
+        command.add("-B");
+        if (session.isOffline()) {
+            command.add("--offline");
+        }
+        command.add("-f");
+        command.add(project.getFile().getAbsolutePath());
+
+        // Build the shard like this build: same profiles, properties, settings and local repository
+        MavenExecutionRequest request = session.getRequest();
+        List<String> profiles = new ArrayList<>(request.getActiveProfiles());
+        request.getInactiveProfiles().forEach(profile -> profiles.add('!' + profile));
+        if (!profiles.isEmpty()) {
+            command.add("-P");
+            command.add(String.join(",", profiles));
+        }
+        if (request.getUserSettingsFile() != null) {
+            command.add("-s");
+            command.add(request.getUserSettingsFile().getAbsolutePath());
+        }
+        if (request.getGlobalSettingsFile() != null) {
+            command.add("-gs");
+            command.add(request.getGlobalSettingsFile().getAbsolutePath());
+        }
+        if (request.getLocalRepositoryPath() != null) {
+            command.add("-Dmaven.repo.local=" + request.getLocalRepositoryPath().getAbsolutePath());
+        }
+        for (String property : request.getUserProperties().stringPropertyNames()) {
+            if (!SHARD_PROPERTIES.contains(property)) {
+                command.add(String.format("-D%s=%s", property, request.getUserProperties().getProperty(property)));
+            }
+        }
+
+        // The number of shards and not -1, so that the shard doesn't depend on the processors of its machine
+        command.add(String.format("-D%s=%d", SHARDS_PROPERTY, shardCount));
+        command.add(String.format("-D%s=%d", SHARD_INDEX_PROPERTY, index));
+        command.add(String.format("-D%s=%s", SHARD_HIBERNATE_CONFIG_PROPERTY, shardDatabase.getConfiguration()));
+        command.add(String.format("-D%s=%s", SHARD_PERMANENT_DIRECTORY_PROPERTY, shardPermanentDirectory));
+        // Run this exact execution to get the same configuration
+        command.add(String.format("%s:%s:%s:%s@%s", mojoExecution.getGroupId(), mojoExecution.getArtifactId(),
+            mojoExecution.getVersion(), mojoExecution.getGoal(), mojoExecution.getExecutionId()));
+
+        return command;
+    }
+
+    private String getMavenExecutable()
+    {
+        String executable = System.getProperty("os.name").toLowerCase().startsWith("windows") ? "mvn.cmd" : "mvn";
+        String mavenHome = System.getProperty("maven.home");
+
+        return mavenHome != null ? new File(mavenHome, "bin/" + executable).getAbsolutePath() : executable;
+    }
+
+    private void copyDirectory(File source, File target) throws MojoExecutionException
+    {
+        if (source.isDirectory()) {
+            Path sourcePath = source.toPath();
+            try (Stream<Path> paths = Files.walk(sourcePath)) {
+                for (Path path : paths.collect(Collectors.toList())) {
+                    Path targetPath = target.toPath().resolve(sourcePath.relativize(path).toString());
+                    if (Files.isDirectory(path)) {
+                        Files.createDirectories(targetPath);
+                    } else {
+                        Files.copy(path, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException(
+                    String.format("Failed to copy directory [%s] to [%s]", source, target), e);
+            }
+        }
+    }
+
+    private void deleteDirectory(File directory) throws MojoExecutionException
+    {
+        if (directory.exists()) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException(String.format("Failed to delete directory [%s]", directory), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the subwikis into shards set up by separate processes. The wikis depending on each other end up in the same
+ * shard and the shards are balanced according to the number of extensions to install. The split only depends on the
+ * list of wikis so that the forked processes can compute it again to find their own wikis.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class WikiShards
+{
+    private WikiShards()
+    {
+    }
+
+    /**
+     * @param wikis the wikis to split, the main wiki being ignored since it's set up before the shards
+     * @param shardCount the number of shards
+     * @return the wikis of each shard, some shards being empty if there's not enough wikis
+     */
+    public static List<List<Wiki>> split(List<Wiki> wikis, int shardCount)
+    {
+        return split(wikis, shardCount, Collections.emptyMap());
+    }
+
+    /**
+     * @param wikis the wikis to split, the main wiki being ignored since it's set up before the shards
+     * @param shardCount the number of shards
+     * @param extraDependencies dependencies between wikis which are not configured on the wikis, like the wiki from
+     *     which a wiki is copied, indexed by the id of the dependent wiki
+     * @return the wikis of each shard, some shards being empty if there's not enough wikis
+     */
+    public static List<List<Wiki>> split(List<Wiki> wikis, int shardCount, Map<String, String> extraDependencies)
+    {
+        // Group the wikis depending on each other, whatever the order in which they are declared
+        Map<String, String> parents = new HashMap<>();
+        for (Wiki wiki : wikis) {
+            if (!Wiki.MAIN_WIKI_ID.equals(wiki.getId())) {
+                parents.put(wiki.getId(), wiki.getId());
+            }
+        }
+        for (Wiki wiki : wikis) {
+            if (!Wiki.MAIN_WIKI_ID.equals(wiki.getId())) {
+                for (String dependency : wiki.getDependsOn()) {
+                    union(parents, wiki.getId(), dependency);
+                }
+                String extraDependency = extraDependencies.get(wiki.getId());
+                if (extraDependency != null) {
+                    union(parents, wiki.getId(), extraDependency);
+                }
+            }
+        }
+
+        // Each group is ordered like its first wiki
+        Map<String, List<Wiki>> groups = new LinkedHashMap<>();
+        for (Wiki wiki : wikis) {
+            if (!Wiki.MAIN_WIKI_ID.equals(wiki.getId())) {
+                groups.computeIfAbsent(find(parents, wiki.getId()), id -> new ArrayList<>()).add(wiki);
+            }
+        }
+
+        List<List<Wiki>> shards = new ArrayList<>();
+        int[] shardWeights = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+
+        // Give each group to the lightest shard, keeping the configured order of the wikis inside each shard
+        for (List<Wiki> group : groups.values()) {
+            int lightestShard = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (shardWeights[i] < shardWeights[lightestShard]) {
+                    lightestShard = i;
+                }
+            }
+
+            for (Wiki wiki : group) {
+                shards.get(lightestShard).add(wiki);
+                shardWeights[lightestShard] += 1 + wiki.getExtensions().size();
+            }
+        }
+
+        return shards;
+    }
+
+    /**
+     * Select the wikis set up by a forked process. The main wiki is set up by the build before the shards so the
+     * dependencies on it are already satisfied and removed from the wikis of the shard.
+     *
+     * @param wikis all the wikis, split like in {@link #split(List, int, Map)}
+     * @param shardCount the number of shards
+     * @param templateWikis the wikis from which other wikis are copied, indexed by the id of the copy, from which only
+     *     the copies of the shard are kept
+     * @param index the index of the shard
+     * @return the wikis of the shard
+     */
+    public static List<Wiki> select(List<Wiki> wikis, int shardCount, Map<String, String> templateWikis, int index)
+    {
+        List<Wiki> shardWikis = split(wikis, shardCount, templateWikis).get(index);
+
+        // The copies are in the same shard as the wiki they are copied from
+        Set<String> shardWikiIds = shardWikis.stream().map(Wiki::getId).collect(Collectors.toSet());
+        templateWikis.keySet().retainAll(shardWikiIds);
+        for (Wiki wiki : shardWikis) {
+            List<String> dependsOn = new ArrayList<>(wiki.getDependsOn());
+            dependsOn.remove(Wiki.MAIN_WIKI_ID);
+            wiki.setDependsOn(dependsOn);
+        }
+
+        return shardWikis;
+    }
+
+    /**
+     * @return the id of the wiki representing the group of the given wiki
+     */
+    private static String find(Map<String, String> parents, String wikiId)
+    {
+        String root = wikiId;
+        while (!root.equals(parents.get(root))) {
+            root = parents.get(root);
+        }
+
+        // Compress the path so that the next lookups are direct
+        for (String id = wikiId; !id.equals(root);) {
+            String parent = parents.get(id);
+            parents.put(id, root);
+            id = parent;
+        }
+
+        return root;
+    }
+
+    /**
+     * Put two wikis in the same group, the dependencies on unknown wikis (like the main wiki) being ignored.
+     */
+    private static void union(Map<String, String> parents, String wikiId, String otherWikiId)
+    {
+        if (parents.containsKey(otherWikiId)) {
+            String root = find(parents, wikiId);
+            String otherRoot = find(parents, otherWikiId);
+            if (!root.equals(otherRoot)) {
+                parents.put(otherRoot, root);
+            }
+        }
+    }
+}
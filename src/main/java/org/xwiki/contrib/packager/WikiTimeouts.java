@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Estimate the time given to each wiki to be set up from the time it took in the previous builds, or from its number
+ * of extensions when the wiki was never set up. The timings are persisted between builds.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class WikiTimeouts
+{
+    /**
+     * The time assumed to install an extension before any wiki was timed.
+     */
+    private static final long DEFAULT_EXTENSION_TIME = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * The minimum timeout, so that a wiki which was fast once is not canceled because of a slightly slower machine.
+     */
+    private static final long MINIMUM_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String DURATION_SUFFIX = ".duration";
+
+    private static final String EXTENSIONS_SUFFIX = ".extensions";
+
+    private final File file;
+
+    private final double factor;
+
+    private final Properties properties = new Properties();
+
+    private long maxTimeout;
+
+    /**
+     * @param file the file in which the timings are persisted
+     * @param factor the margin applied to the expected duration of a wiki
+     */
+    public WikiTimeouts(File file, double factor)
+    {
+        this.file = file;
+        this.factor = factor;
+    }
+
+    /**
+     * @param file the file in which the timings are persisted
+     * @param factor the margin applied to the expected duration of a wiki
+     * @return the timings read from the given file, empty if the file does not exist
+     * @throws MojoExecutionException if the file cannot be read
+     */
+    public static WikiTimeouts load(File file, double factor) throws MojoExecutionException
+    {
+        WikiTimeouts timeouts = new WikiTimeouts(file, factor);
+
+        if (file.exists()) {
+            try (InputStream stream = Files.newInputStream(file.toPath())) {
+                timeouts.properties.load(stream);
+            } catch (IOException e) {
+                throw new MojoExecutionException(String.format("Failed to read wiki timings from [%s]", file), e);
+            }
+        }
+
+        return timeouts;
+    }
+
+    /**
+     * @param maxTimeout the upper bound of the estimated timeouts in milliseconds, 0 for no limit
+     */
+    public void setMaxTimeout(long maxTimeout)
+    {
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param extensionCount the number of extensions configured on the wiki
+     * @return the maximum time in milliseconds given to the wiki to be set up
+     */
+    public synchronized long getTimeout(String wikiId, int extensionCount)
+    {
+        long expected = getLong(wikiId + DURATION_SUFFIX);
+        if (expected <= 0) {
+            expected = getExtensionTime() * Math.max(1, extensionCount);
+        }
+
+        long timeout = Math.max(MINIMUM_TIMEOUT, (long) (expected * factor));
+
+        return maxTimeout > 0 ? Math.min(timeout, maxTimeout) : timeout;
+    }
+
+    /**
+     * @param wikiId the id of the wiki
+     * @param extensionCount the number of extensions configured on the wiki
+     * @param duration the time in milliseconds it took to set up the wiki
+     */
+    public synchronized void record(String wikiId, int extensionCount, long duration)
+    {
+        properties.setProperty(wikiId + DURATION_SUFFIX, String.valueOf(duration));
+        properties.setProperty(wikiId + EXTENSIONS_SUFFIX, String.valueOf(extensionCount));
+    }
+
+    /**
+     * @return the average time spent per extension by the wikis timed so far
+     */
+    private long getExtensionTime()
+    {
+        long totalDuration = 0;
+        long totalExtensions = 0;
+        for (String key : properties.stringPropertyNames()) {
+            // The invalid timings would make every new wiki get the minimum timeout
+            long duration = key.endsWith(DURATION_SUFFIX) ? getLong(key) : 0;
+            if (duration > 0) {
+                String wikiId = key.substring(0, key.length() - DURATION_SUFFIX.length());
+                totalDuration += duration;
+                totalExtensions += Math.max(1, getLong(wikiId + EXTENSIONS_SUFFIX));
+            }
+        }
+
+        return totalExtensions > 0 ? totalDuration / totalExtensions : DEFAULT_EXTENSION_TIME;
+    }
+
+    private long getLong(String key)
+    {
+        try {
+            return Long.parseLong(properties.getProperty(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Persist the timings.
+     *
+     * @throws MojoExecutionException if the timings cannot be written
+     */
+    public synchronized void save() throws MojoExecutionException
+    {
+        try {
+            file.getParentFile().mkdirs();
+
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temporaryFile.toPath())) {
+                properties.store(stream, "Wiki packager timings");
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new MojoExecutionException(String.format("Failed to write wiki timings to [%s]", file), e);
+        }
+    }
+}
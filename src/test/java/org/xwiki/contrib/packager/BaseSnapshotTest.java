@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Unit tests for {@link BaseSnapshot}.
+ *
+ * @version $Id$
+ */
+class BaseSnapshotTest
+{
+    @TempDir
+    Path tmpDir;
+
+    private File snapshotFile()
+    {
+        return tmpDir.resolve("snapshot/base.zip").toFile();
+    }
+
+    private BaseSnapshot snapshot()
+    {
+        return new BaseSnapshot(snapshotFile(), new SystemStreamLog());
+    }
+
+    private Path write(Path file, String content) throws Exception
+    {
+        Files.createDirectories(file.getParent());
+
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(Path file) throws Exception
+    {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private HibernateDatabase database(Path databaseFile) throws Exception
+    {
+        Path configuration = write(tmpDir.resolve("hibernate.cfg.xml"), String.format(
+            "<hibernate-configuration>\n  <session-factory>\n"
+                + "    <property name=\"connection.url\">jdbc:hsqldb:file:%s;shutdown=true</property>\n"
+                + "  </session-factory>\n</hibernate-configuration>\n", databaseFile.toAbsolutePath()));
+
+        return HibernateDatabase.load(configuration.toFile(), tmpDir.resolve("unused").toFile());
+    }
+
+    private Map<String, String> export() throws Exception
+    {
+        Path permanentDirectory = tmpDir.resolve("permanent");
+        write(permanentDirectory.resolve("extension/repository/ext/1.0/ext-1.0.jar"), "jar");
+        write(permanentDirectory.resolve("store/file/attachment.txt"), "attachment");
+        write(permanentDirectory.resolve("cache.lck"), "lock");
+        Path databaseDirectory = tmpDir.resolve("database");
+        write(databaseDirectory.resolve("xwiki.script"), "script");
+        write(databaseDirectory.resolve("xwiki.properties"), "properties");
+        write(databaseDirectory.resolve("xwiki.lck"), "lock");
+        write(databaseDirectory.resolve("other.script"), "other");
+
+        Map<String, String> extensions = new LinkedHashMap<>();
+        extensions.put("ext", "1.0");
+        extensions.put("unknown", null);
+        snapshot().exportFiles(permanentDirectory.toFile(), databaseDirectory.resolve("xwiki").toFile(), extensions);
+
+        return extensions;
+    }
+
+    @Test
+    void exportWritesTheSnapshotAndItsChecksum() throws Exception
+    {
+        export();
+
+        try (ZipFile zip = new ZipFile(snapshotFile())) {
+            List<String> entries = zip.stream().map(ZipEntry::getName).sorted().collect(Collectors.toList());
+            // The lock files and the files of the other databases are not exported
+            assertEquals(Arrays.asList("database/xwiki.properties", "database/xwiki.script",
+                "permanent/extension/repository/ext/1.0/ext-1.0.jar", "permanent/store/file/attachment.txt",
+                "snapshot.properties"), entries);
+        }
+        assertEquals(Checksums.checksum(snapshotFile().toPath()),
+            read(tmpDir.resolve("snapshot/base.zip.sha256")));
+        assertFalse(tmpDir.resolve("snapshot/base.zip.tmp").toFile().exists());
+    }
+
+    @Test
+    void restoreInAnotherLocation() throws Exception
+    {
+        Map<String, String> extensions = export();
+        Path permanentDirectory = tmpDir.resolve("restored/permanent");
+
+        assertEquals(extensions, snapshot().restore(permanentDirectory.toFile(),
+            database(tmpDir.resolve("restored/database/restored"))));
+
+        assertEquals("jar", read(permanentDirectory.resolve("extension/repository/ext/1.0/ext-1.0.jar")));
+        assertEquals("attachment", read(permanentDirectory.resolve("store/file/attachment.txt")));
+        assertFalse(permanentDirectory.resolve("cache.lck").toFile().exists());
+        // The database files are renamed after the restored database
+        assertEquals("script", read(tmpDir.resolve("restored/database/restored.script")));
+        assertEquals("properties", read(tmpDir.resolve("restored/database/restored.properties")));
+    }
+
+    @Test
+    void restoreIgnoresASnapshotWhoseChecksumDoesNotMatch() throws Exception
+    {
+        export();
+        write(tmpDir.resolve("snapshot/base.zip.sha256"), Checksums.checksum("other"));
+        Path permanentDirectory = tmpDir.resolve("restored/permanent");
+
+        assertNull(snapshot().restore(permanentDirectory.toFile(),
+            database(tmpDir.resolve("restored/database/xwiki"))));
+        assertFalse(permanentDirectory.toFile().exists());
+
+        // Same without checksum
+        Files.delete(tmpDir.resolve("snapshot/base.zip.sha256"));
+        assertNull(snapshot().restore(permanentDirectory.toFile(),
+            database(tmpDir.resolve("restored/database/xwiki"))));
+    }
+
+    @Test
+    void restoreSkipsAnInstanceAlreadySetUp() throws Exception
+    {
+        export();
+        Path permanentDirectory = tmpDir.resolve("restored/permanent");
+        write(tmpDir.resolve("restored/database/xwiki.script"), "existing");
+
+        assertNull(snapshot().restore(permanentDirectory.toFile(),
+            database(tmpDir.resolve("restored/database/xwiki"))));
+        assertEquals("existing", read(tmpDir.resolve("restored/database/xwiki.script")));
+        assertFalse(permanentDirectory.toFile().exists());
+    }
+
+    @Test
+    void restoreWithoutSnapshot() throws Exception
+    {
+        assertNull(snapshot().restore(tmpDir.resolve("permanent").toFile(),
+            database(tmpDir.resolve("database/xwiki"))));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link Checksums}.
+ *
+ * @version $Id$
+ */
+class ChecksumsTest
+{
+    private static final String ABC_CHECKSUM = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @TempDir
+    Path tmpDir;
+
+    @Test
+    void checksum() throws Exception
+    {
+        Path file = tmpDir.resolve("abc");
+        Files.write(file, "abc".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(ABC_CHECKSUM, Checksums.checksum("abc"));
+        assertEquals(ABC_CHECKSUM, Checksums.checksum("abc".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(ABC_CHECKSUM, Checksums.checksum(file));
+    }
+
+    @Test
+    void toHex()
+    {
+        assertEquals("00017f80ff", Checksums.toHex(new byte[] {0, 1, 127, -128, -1}));
+        assertEquals("", Checksums.toHex(new byte[0]));
+    }
+}
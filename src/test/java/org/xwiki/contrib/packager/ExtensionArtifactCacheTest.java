@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link ExtensionArtifactCache}.
+ *
+ * @version $Id$
+ */
+class ExtensionArtifactCacheTest
+{
+    private static final String DESCRIPTOR = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"
+        + "<extension><id>ext</id><properties>%s<other>value</other></properties></extension>";
+
+    private static final String INSTALLED_PROPERTIES =
+        "<installed.installed>true</installed.installed><installed.namespaces>wiki:xwiki</installed.namespaces>";
+
+    @TempDir
+    Path tmpDir;
+
+    private ExtensionArtifactCache createCache(long maxSize)
+    {
+        return new ExtensionArtifactCache(tmpDir.resolve("cache").toFile(), maxSize, new SystemStreamLog());
+    }
+
+    private Path write(Path file, String content) throws Exception
+    {
+        Files.createDirectories(file.getParent());
+
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(Path file) throws Exception
+    {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private void delete(Path directory) throws Exception
+    {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void removeInstallState() throws Exception
+    {
+        byte[] descriptor = String.format(DESCRIPTOR, INSTALLED_PROPERTIES).getBytes(StandardCharsets.UTF_8);
+
+        String content = new String(ExtensionArtifactCache.removeInstallState(descriptor), StandardCharsets.UTF_8);
+        assertFalse(content.contains("installed."));
+        assertTrue(content.contains("<other>value</other>"));
+
+        // The descriptors without install state are kept as they are
+        byte[] uninstalledDescriptor = String.format(DESCRIPTOR, "").getBytes(StandardCharsets.UTF_8);
+        assertSame(uninstalledDescriptor, ExtensionArtifactCache.removeInstallState(uninstalledDescriptor));
+    }
+
+    @Test
+    void storeThenRestore() throws Exception
+    {
+        Path repository = tmpDir.resolve("repository");
+        Path jar = write(repository.resolve("ext/1.0/ext-1.0.jar"), "jar");
+        Path descriptor = write(repository.resolve("ext/1.0/ext-1.0.xed"), String.format(DESCRIPTOR,
+            INSTALLED_PROPERTIES));
+        ExtensionArtifactCache cache = createCache(Long.MAX_VALUE);
+        cache.store("project", repository.toFile());
+
+        delete(repository);
+        cache.restore("project");
+
+        assertEquals("jar", read(jar));
+        // The extension files are hard linked to the cache
+        assertTrue(Files.isSameFile(jar, tmpDir.resolve("cache/objects/" + Checksums.checksum(jar))));
+        assertFalse(read(descriptor).contains("installed."));
+        assertTrue(read(descriptor).contains("<other>value</other>"));
+    }
+
+    @Test
+    void restoreSkipsAnExistingRepository() throws Exception
+    {
+        Path repository = tmpDir.resolve("repository");
+        write(repository.resolve("ext/1.0/ext-1.0.jar"), "jar");
+        ExtensionArtifactCache cache = createCache(Long.MAX_VALUE);
+        cache.store("project", repository.toFile());
+
+        delete(repository.resolve("ext"));
+        write(repository.resolve("other/1.0/other-1.0.jar"), "other");
+        cache.restore("project");
+
+        assertFalse(Files.exists(repository.resolve("ext/1.0/ext-1.0.jar")));
+    }
+
+    @Test
+    void restoreFileCopiesWhenTheFileCannotBeLinked() throws Exception
+    {
+        File object = write(tmpDir.resolve("object"), "jar").toFile();
+        // Linking fails when the target already exists
+        Path file = write(tmpDir.resolve("repository/ext/1.0/ext-1.0.jar"), "previous");
+
+        createCache(Long.MAX_VALUE).restoreFile(object, file.toFile());
+
+        assertEquals("jar", read(file));
+        assertFalse(Files.isSameFile(file, object.toPath()));
+    }
+
+    @Test
+    void storeEvictsTheLeastRecentlyUsedFiles() throws Exception
+    {
+        Path repository = tmpDir.resolve("repository");
+        Path oldJar = write(repository.resolve("old/1.0/old-1.0.jar"), "old jar");
+        ExtensionArtifactCache cache = createCache(10);
+        cache.store("old", repository.toFile());
+        File oldObject = tmpDir.resolve("cache/objects/" + Checksums.checksum(oldJar)).toFile();
+        assertTrue(oldObject.setLastModified(System.currentTimeMillis() - 60000));
+
+        delete(repository);
+        Path newJar = write(repository.resolve("new/1.0/new-1.0.jar"), "new jar");
+        cache.store("new", repository.toFile());
+
+        assertFalse(oldObject.exists());
+        assertTrue(tmpDir.resolve("cache/objects/" + Checksums.checksum(newJar)).toFile().exists());
+
+        // The extensions whose files were evicted are not restored
+        delete(repository);
+        cache.restore("old");
+        assertFalse(Files.exists(oldJar));
+        cache.restore("new");
+        assertEquals("new jar", read(newJar));
+    }
+}
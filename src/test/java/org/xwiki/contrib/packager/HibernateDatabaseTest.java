@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link HibernateDatabase}.
+ *
+ * @version $Id$
+ */
+class HibernateDatabaseTest
+{
+    @TempDir
+    Path tmpDir;
+
+    private File permanentDirectory()
+    {
+        return tmpDir.resolve("data").toFile();
+    }
+
+    private HibernateDatabase loadUrl(String url) throws Exception
+    {
+        return load(configuration(String.format("    <property name=\"connection.url\">%s</property>", url)));
+    }
+
+    private HibernateDatabase load(String content) throws Exception
+    {
+        File file = tmpDir.resolve("hibernate.cfg.xml").toFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+        return HibernateDatabase.load(file, permanentDirectory());
+    }
+
+    private static String configuration(String... properties)
+    {
+        return "<hibernate-configuration>\n  <session-factory>\n" + String.join("\n", properties)
+            + "\n    <mapping resource=\"xwiki.hbm.xml\"/>\n  </session-factory>\n</hibernate-configuration>\n";
+    }
+
+    @Test
+    void getUrlAndFileOfFileDatabases() throws Exception
+    {
+        HibernateDatabase database =
+            loadUrl("jdbc:hsqldb:file:${environment.permanentDirectory}/database/xwiki_db;shutdown=true");
+        String directory = permanentDirectory().getAbsolutePath();
+
+        assertEquals("jdbc:hsqldb:file:" + directory + "/database/xwiki_db;shutdown=true", database.getUrl());
+        assertEquals(new File(directory + "/database/xwiki_db"), database.getFile());
+
+        assertEquals(new File("/var/db/xwiki"), loadUrl("jdbc:h2:file:/var/db/xwiki;MODE=MySQL").getFile());
+        assertEquals(new File("/var/db/xwiki"), loadUrl("jdbc:h2:/var/db/xwiki").getFile());
+    }
+
+    @Test
+    void getFileOfOtherDatabases() throws Exception
+    {
+        assertNull(loadUrl("jdbc:hsqldb:mem:xwiki").getFile());
+        assertNull(loadUrl("jdbc:h2:mem:xwiki").getFile());
+        assertNull(loadUrl("jdbc:h2:tcp://localhost/xwiki").getFile());
+        assertNull(loadUrl("jdbc:mysql://localhost/xwiki?useSSL=false&amp;useUnicode=true").getFile());
+    }
+
+    @Test
+    void relocate() throws Exception
+    {
+        HibernateDatabase database = load(configuration(
+            "    <property name=\"hibernate.connection.url\">jdbc:h2:file:/var/db/xwiki;MODE=MySQL&amp;X=1</property>",
+            "    <property name=\"connection.username\">sa</property>"));
+        File directory = tmpDir.resolve("shards/0").toFile();
+
+        HibernateDatabase relocatedDatabase = database.relocate(directory);
+
+        assertEquals(new File(directory, "hibernate.cfg.xml"), relocatedDatabase.getConfiguration());
+        String relocatedPath = new File(directory, "xwiki").getAbsolutePath();
+        assertEquals("jdbc:h2:file:" + relocatedPath + ";MODE=MySQL&X=1", relocatedDatabase.getUrl());
+        assertEquals(configuration(
+            "    <property name=\"hibernate.connection.url\">jdbc:h2:file:" + relocatedPath
+                + ";MODE=MySQL&amp;X=1</property>",
+            "    <property name=\"connection.username\">sa</property>"),
+            new String(Files.readAllBytes(relocatedDatabase.getConfiguration().toPath()), StandardCharsets.UTF_8));
+        // The original configuration is left untouched
+        assertEquals("jdbc:h2:file:/var/db/xwiki;MODE=MySQL&X=1", database.getUrl());
+    }
+
+    @Test
+    void relocateRejectsOtherDatabases() throws Exception
+    {
+        HibernateDatabase database = loadUrl("jdbc:hsqldb:mem:xwiki");
+
+        assertThrows(MojoExecutionException.class, () -> database.relocate(tmpDir.toFile()));
+    }
+
+    @Test
+    void configureAddsTheMissingProperties() throws Exception
+    {
+        HibernateDatabase database = load(configuration(
+            "    <property name=\"connection.url\">jdbc:hsqldb:file:/var/db/xwiki</property>",
+            "    <property name=\"jdbc.batch_size\">50</property>"));
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("hibernate.jdbc.batch_size", "100");
+        properties.put("hibernate.order_inserts", "true");
+        properties.put("hibernate.comment", "a & b");
+
+        HibernateDatabase configuredDatabase = database.configure(properties, tmpDir.resolve("bulk").toFile());
+
+        assertEquals(configuration(
+            "    <property name=\"connection.url\">jdbc:hsqldb:file:/var/db/xwiki</property>",
+            "    <property name=\"jdbc.batch_size\">50</property>").replace("  </session-factory>",
+                "    <property name=\"hibernate.order_inserts\">true</property>\n"
+                    + "    <property name=\"hibernate.comment\">a &amp; b</property>\n  </session-factory>"),
+            new String(Files.readAllBytes(configuredDatabase.getConfiguration().toPath()), StandardCharsets.UTF_8)
+                .replace("\r\n", "\n"));
+        assertEquals(database.getUrl(), configuredDatabase.getUrl());
+    }
+
+    @Test
+    void configureInsertsBeforeTheEndOfTheSessionFactoryOnTheSameLine() throws Exception
+    {
+        HibernateDatabase database = load("<hibernate-configuration><session-factory>"
+            + "<property name=\"connection.url\">jdbc:hsqldb:mem:xwiki</property></session-factory>"
+            + "</hibernate-configuration>");
+
+        HibernateDatabase configuredDatabase = database.configure(
+            Collections.singletonMap("hibernate.order_inserts", "true"), tmpDir.resolve("bulk").toFile());
+
+        String content =
+            new String(Files.readAllBytes(configuredDatabase.getConfiguration().toPath()), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("<hibernate-configuration><session-factory>"
+            + "<property name=\"connection.url\">jdbc:hsqldb:mem:xwiki</property>"
+            + "    <property name=\"hibernate.order_inserts\">true</property>",
+            "</session-factory></hibernate-configuration>"), Arrays.asList(content.split("\\R")));
+    }
+
+    @Test
+    void configureRequiresASessionFactory() throws Exception
+    {
+        HibernateDatabase database = load("<hibernate-configuration/>");
+
+        assertThrows(MojoExecutionException.class,
+            () -> database.configure(Collections.singletonMap("hibernate.order_inserts", "true"), tmpDir.toFile()));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.extension.Extension;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.job.plan.ExtensionPlanAction;
+import org.xwiki.extension.job.plan.ExtensionPlanNode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link InstallLayers}.
+ *
+ * @version $Id$
+ */
+class InstallLayersTest
+{
+    private static ExtensionPlanNode node(String id, ExtensionPlanNode... children)
+    {
+        return node(id, "wiki:test", ExtensionPlanAction.Action.INSTALL, children);
+    }
+
+    private static ExtensionPlanNode node(String id, String namespace, ExtensionPlanAction.Action actionType,
+        ExtensionPlanNode... children)
+    {
+        Extension extension = mock(Extension.class);
+        when(extension.getId()).thenReturn(new ExtensionId(id, "1.0"));
+
+        ExtensionPlanAction action = mock(ExtensionPlanAction.class);
+        when(action.getExtension()).thenReturn(extension);
+        when(action.getAction()).thenReturn(actionType);
+        when(action.getNamespace()).thenReturn(namespace);
+
+        ExtensionPlanNode node = mock(ExtensionPlanNode.class);
+        when(node.getAction()).thenReturn(action);
+        when(node.getChildren()).thenReturn(Arrays.asList(children));
+
+        return node;
+    }
+
+    private static List<List<String>> ids(List<List<ExtensionPlanAction>> layers)
+    {
+        return layers.stream().map(layer -> layer.stream()
+            .map(action -> action.getExtension().getId().getId() + '@' + action.getNamespace())
+            .collect(Collectors.toList())).collect(Collectors.toList());
+    }
+
+    @Test
+    void splitInstallsDependenciesInEarlierLayers()
+    {
+        List<ExtensionPlanNode> tree = Arrays.asList(node("a", node("b"), node("c", node("d"))), node("e"));
+
+        assertEquals(Arrays.asList(Arrays.asList("b@wiki:test", "d@wiki:test", "e@wiki:test"),
+            Arrays.asList("c@wiki:test"), Arrays.asList("a@wiki:test")), ids(InstallLayers.split(tree)));
+    }
+
+    @Test
+    void splitInstallsSharedDependenciesOnceBeforeAllTheirDependents()
+    {
+        List<ExtensionPlanNode> tree = Arrays.asList(node("a", node("c")), node("b", node("x", node("c"))));
+
+        assertEquals(Arrays.asList(Arrays.asList("c@wiki:test"), Arrays.asList("a@wiki:test", "x@wiki:test"),
+            Arrays.asList("b@wiki:test")), ids(InstallLayers.split(tree)));
+    }
+
+    @Test
+    void splitSkipsTheExtensionsWithNothingToInstall()
+    {
+        List<ExtensionPlanNode> tree =
+            Arrays.asList(node("a", "wiki:test", ExtensionPlanAction.Action.NONE, node("b")), node("c", node("d")));
+
+        assertEquals(Arrays.asList(Arrays.asList("b@wiki:test", "d@wiki:test"), Arrays.asList("c@wiki:test")),
+            ids(InstallLayers.split(tree)));
+    }
+
+    @Test
+    void splitKeepsTheSameExtensionOnDifferentNamespaces()
+    {
+        List<ExtensionPlanNode> tree = Arrays.asList(node("a", null, ExtensionPlanAction.Action.INSTALL),
+            node("b", node("a")));
+
+        assertEquals(Arrays.asList(Arrays.asList("a@null", "a@wiki:test"), Arrays.asList("b@wiki:test")),
+            ids(InstallLayers.split(tree)));
+    }
+}
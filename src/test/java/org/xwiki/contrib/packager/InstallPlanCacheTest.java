@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.extension.Extension;
+import org.xwiki.extension.ExtensionId;
+import org.xwiki.extension.job.plan.ExtensionPlanAction;
+import org.xwiki.extension.job.plan.ExtensionPlanNode;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link InstallPlanCache}.
+ *
+ * @version $Id$
+ */
+class InstallPlanCacheTest
+{
+    private static ExtensionPlanNode node(String id, String version, String namespace, ExtensionPlanNode... children)
+    {
+        Extension extension = mock(Extension.class);
+        when(extension.getId()).thenReturn(new ExtensionId(id, version));
+
+        ExtensionPlanAction action = mock(ExtensionPlanAction.class);
+        when(action.getExtension()).thenReturn(extension);
+        when(action.getAction()).thenReturn(ExtensionPlanAction.Action.INSTALL);
+        when(action.getNamespace()).thenReturn(namespace);
+
+        ExtensionPlanNode node = mock(ExtensionPlanNode.class);
+        when(node.getAction()).thenReturn(action);
+        when(node.getChildren()).thenReturn(Arrays.asList(children));
+
+        return node;
+    }
+
+    private static Wiki wiki(String id)
+    {
+        Wiki wiki = new Wiki();
+        wiki.setId(id);
+
+        return wiki;
+    }
+
+    private static Map<String, String> extensions(String... idsAndVersions)
+    {
+        Map<String, String> extensions = new LinkedHashMap<>();
+        for (int i = 0; i < idsAndVersions.length; i += 2) {
+            extensions.put(idsAndVersions[i], idsAndVersions[i + 1]);
+        }
+
+        return extensions;
+    }
+
+    private static List<String> ids(List<InstallPlanLock.LockedExtension> lockedExtensions)
+    {
+        return lockedExtensions.stream().map(lockedExtension -> lockedExtension.getLayer() + ":"
+            + lockedExtension.getExtensionId().getId() + '/' + lockedExtension.getExtensionId().getVersion().getValue()
+            + '@' + lockedExtension.getNamespace()).collect(Collectors.toList());
+    }
+
+    @Test
+    void getPlanOfExtensionsResolvedTogether()
+    {
+        InstallPlanCache cache = new InstallPlanCache();
+        Wiki wiki = wiki("sub1");
+        String namespace = cache.getReferenceNamespace(wiki);
+        // The dependency shared by both extensions is resolved once, in the version both of them accept
+        cache.put(wiki, extensions("a", "1.0", "b", "1.0"), Arrays.asList(
+            node("a", "1.0", namespace, node("d", "2.0", namespace)),
+            node("b", "1.0", namespace, node("d", "2.0", namespace))));
+
+        assertEquals(1, cache.size());
+        assertTrue(cache.contains(wiki, extensions("b", "1.0", "a", "1.0")));
+        assertEquals(Arrays.asList("0:d/2.0@wiki:sub1", "1:a/1.0@wiki:sub1", "1:b/1.0@wiki:sub1"),
+            ids(cache.getPlan(wiki, extensions("b", "1.0", "a", "1.0"))));
+    }
+
+    @Test
+    void getPlanMovesTheReferenceNamespaceToTheWikiNamespace()
+    {
+        InstallPlanCache cache = new InstallPlanCache();
+        String namespace = cache.getReferenceNamespace(wiki("sub1"));
+        cache.put(wiki("sub1"), extensions("a", "1.0"),
+            Collections.singletonList(node("a", "1.0", namespace, node("jar", "1.0", null))));
+
+        assertEquals("wiki:sub1", cache.getReferenceNamespace(wiki("sub2")));
+        assertEquals(Arrays.asList("0:jar/1.0@null", "1:a/1.0@wiki:sub2"),
+            ids(cache.getPlan(wiki("sub2"), extensions("a", "1.0"))));
+    }
+
+    @Test
+    void getPlanOfOtherExtensionsIsNotCombined()
+    {
+        InstallPlanCache cache = new InstallPlanCache();
+        Wiki wiki = wiki("sub1");
+        String namespace = cache.getReferenceNamespace(wiki);
+        cache.put(wiki, extensions("a", "1.0"), Collections.singletonList(
+            node("a", "1.0", namespace, node("d", "1.0", namespace))));
+        cache.put(wiki, extensions("b", "1.0"), Collections.singletonList(
+            node("b", "1.0", namespace, node("d", "2.0", namespace))));
+
+        // Combining the plans of a and b would install both versions of d
+        assertFalse(cache.contains(wiki, extensions("a", "1.0", "b", "1.0")));
+        assertNull(cache.getPlan(wiki, extensions("a", "1.0", "b", "1.0")));
+        assertNull(cache.getPlan(wiki, extensions("a", "2.0")));
+    }
+
+    @Test
+    void getPlanOfTheMainWikiIsCachedSeparately()
+    {
+        InstallPlanCache cache = new InstallPlanCache();
+        Wiki mainWiki = wiki(Wiki.MAIN_WIKI_ID);
+        assertEquals("wiki:xwiki", cache.getReferenceNamespace(mainWiki));
+        cache.put(mainWiki, extensions("a", "1.0"),
+            Collections.singletonList(node("a", "1.0", cache.getReferenceNamespace(mainWiki))));
+
+        assertNull(cache.getPlan(wiki("sub1"), extensions("a", "1.0")));
+        assertEquals(Arrays.asList("0:a/1.0@wiki:xwiki"), ids(cache.getPlan(mainWiki, extensions("a", "1.0"))));
+    }
+}
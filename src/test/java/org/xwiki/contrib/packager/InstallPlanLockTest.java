@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for {@link InstallPlanLock}.
+ *
+ * @version $Id$
+ */
+class InstallPlanLockTest
+{
+    @TempDir
+    Path tmpDir;
+
+    private static List<String> describe(List<InstallPlanLock.LockedExtension> lockedExtensions)
+    {
+        return lockedExtensions.stream()
+            .map(extension -> String.format("%d %s %s %s %s", extension.getLayer(), extension.getExtensionId().getId(),
+                extension.getExtensionId().getVersion().getValue(), extension.getNamespace(),
+                extension.isDependency()))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    void writeAndLoad() throws Exception
+    {
+        InstallPlanLock lock = new InstallPlanLock();
+        lock.put("sub", "subFingerprint",
+            Arrays.asList(new InstallPlanLock.LockedExtension(0, "org.xwiki:api", "1.0", null, true),
+                new InstallPlanLock.LockedExtension(1, "org.xwiki:ui", "2.0", "wiki:sub", false)));
+        lock.put(Wiki.MAIN_WIKI_ID, "mainFingerprint",
+            Arrays.asList(new InstallPlanLock.LockedExtension(0, "org.xwiki:ui", "2.1", "wiki:xwiki", false)));
+
+        File file = tmpDir.resolve("locks/wiki-packager.lock").toFile();
+        lock.write(file);
+        InstallPlanLock loadedLock = InstallPlanLock.load(file);
+
+        assertEquals(Arrays.asList("0 org.xwiki:api 1.0 null true", "1 org.xwiki:ui 2.0 wiki:sub false"),
+            describe(loadedLock.get("sub", "subFingerprint")));
+        assertEquals(Arrays.asList("0 org.xwiki:ui 2.1 wiki:xwiki false"),
+            describe(loadedLock.get(Wiki.MAIN_WIKI_ID, "mainFingerprint")));
+        // The plan of a wiki whose configuration changed is not used
+        assertNull(loadedLock.get("sub", "otherFingerprint"));
+        assertNull(loadedLock.get("unknown", "subFingerprint"));
+    }
+
+    @Test
+    void writeAndLoadAWikiWithoutExtensions() throws Exception
+    {
+        InstallPlanLock lock = new InstallPlanLock();
+        lock.put("empty", "fingerprint", Arrays.asList());
+
+        File file = tmpDir.resolve("wiki-packager.lock").toFile();
+        lock.write(file);
+
+        assertEquals(Arrays.asList(), InstallPlanLock.load(file).get("empty", "fingerprint"));
+    }
+
+    @Test
+    void loadRejectsInvalidLines() throws Exception
+    {
+        File file = tmpDir.resolve("wiki-packager.lock").toFile();
+
+        Files.write(file.toPath(), Arrays.asList("0 org.xwiki:api 1.0 - true"), StandardCharsets.UTF_8);
+        assertThrows(MojoExecutionException.class, () -> InstallPlanLock.load(file));
+
+        Files.write(file.toPath(), Arrays.asList("wiki sub fingerprint", "first org.xwiki:api 1.0 - true"),
+            StandardCharsets.UTF_8);
+        assertThrows(MojoExecutionException.class, () -> InstallPlanLock.load(file));
+    }
+
+    @Test
+    void getLayersGroupsTheLockedExtensionsByLayer()
+    {
+        InstallPlanLock.LockedExtension a = new InstallPlanLock.LockedExtension(0, "a", "1.0", null, true);
+        InstallPlanLock.LockedExtension b = new InstallPlanLock.LockedExtension(0, "b", "1.0", "wiki:test", true);
+        InstallPlanLock.LockedExtension c = new InstallPlanLock.LockedExtension(2, "c", "1.0", "wiki:test", false);
+
+        assertEquals(Arrays.asList(Arrays.asList(a, b), Arrays.asList(c)),
+            InstallPlanLock.getLayers(Arrays.asList(a, b, c)));
+    }
+
+    @Test
+    void withVersionAndNamespaceKeepTheOtherFields()
+    {
+        InstallPlanLock.LockedExtension extension =
+            new InstallPlanLock.LockedExtension(2, "org.xwiki:api", "1.0", null, true);
+
+        assertEquals(Arrays.asList("2 org.xwiki:api 1.1 null true", "2 org.xwiki:api 1.0 wiki:sub true"),
+            describe(Arrays.asList(extension.withVersion("1.1"), extension.withNamespace("wiki:sub"))));
+    }
+}
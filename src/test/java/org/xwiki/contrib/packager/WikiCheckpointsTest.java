@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.extension.ExtensionId;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link WikiCheckpoints}.
+ *
+ * @version $Id$
+ */
+class WikiCheckpointsTest
+{
+    @TempDir
+    Path tmpDir;
+
+    private final Set<String> existingWikis = new HashSet<>();
+
+    private final WikiHelper wikiHelper = new WikiHelper()
+    {
+        @Override
+        public boolean isWikiSetUp(String wikiId, Map<String, String> extensions)
+        {
+            return existingWikis.contains(wikiId);
+        }
+
+        @Override
+        public List<ExtensionId> getInstalledExtensions(String wikiId)
+        {
+            return Collections.singletonList(new ExtensionId("a", "1.0"));
+        }
+    };
+
+    private WikiCheckpoints load(boolean incremental, boolean resume) throws Exception
+    {
+        return WikiCheckpoints.load(tmpDir.toFile(), incremental, resume, this.wikiHelper, new SystemStreamLog());
+    }
+
+    private static Wiki wiki(String id)
+    {
+        Wiki wiki = new Wiki();
+        wiki.setId(id);
+
+        return wiki;
+    }
+
+    @Test
+    void checkpointThenReload() throws Exception
+    {
+        Wiki wiki = wiki("wiki");
+        this.existingWikis.add("wiki");
+        load(true, false).checkpoint(wiki, "f1");
+
+        WikiCheckpoints checkpoints = load(true, true);
+        assertTrue(checkpoints.isUpToDate(wiki, "f1", Collections.emptyMap()));
+        assertTrue(checkpoints.isCheckpointed(wiki, "f1"));
+        assertEquals(Collections.singletonMap("a", "1.0"),
+            WikiPackagerState.load(new File(tmpDir.toFile(), WikiCheckpoints.CHECKPOINT_FILE)).getExtensions("wiki"));
+
+        // A new execution ignores the checkpoint of the previous one but not the state of the previous builds
+        checkpoints = load(true, false);
+        assertTrue(checkpoints.isUpToDate(wiki, "f1", Collections.emptyMap()));
+        assertFalse(checkpoints.isCheckpointed(wiki, "f1"));
+        assertFalse(load(false, true).isUpToDate(wiki, "f1", Collections.emptyMap()));
+    }
+
+    @Test
+    void changedFingerprintForcesTheWikiToBeSetUpAgain() throws Exception
+    {
+        Wiki wiki = wiki("wiki");
+        this.existingWikis.add("wiki");
+        load(true, false).checkpoint(wiki, "f1");
+
+        WikiCheckpoints checkpoints = load(true, true);
+        assertFalse(checkpoints.isUpToDate(wiki, "f2", Collections.emptyMap()));
+        assertFalse(checkpoints.isCheckpointed(wiki, "f2"));
+    }
+
+    @Test
+    void deletedWikiIsSetUpAgain() throws Exception
+    {
+        Wiki wiki = wiki("wiki");
+        load(true, false).checkpoint(wiki, "f1");
+
+        WikiCheckpoints checkpoints = load(true, true);
+        assertFalse(checkpoints.isUpToDate(wiki, "f1", Collections.emptyMap()));
+        assertFalse(checkpoints.isCheckpointed(wiki, "f1"));
+    }
+
+    @Test
+    void invalidateForgetsTheWiki() throws Exception
+    {
+        Wiki wiki = wiki("wiki");
+        Wiki otherWiki = wiki("other");
+        this.existingWikis.add("wiki");
+        this.existingWikis.add("other");
+        WikiCheckpoints checkpoints = load(true, false);
+        checkpoints.checkpoint(wiki, "f1");
+        checkpoints.checkpoint(otherWiki, "f2");
+        checkpoints.invalidate("wiki");
+
+        checkpoints = load(true, true);
+        assertFalse(checkpoints.isUpToDate(wiki, "f1", Collections.emptyMap()));
+        assertFalse(checkpoints.isCheckpointed(wiki, "f1"));
+        assertTrue(checkpoints.isUpToDate(otherWiki, "f2", Collections.emptyMap()));
+        assertTrue(checkpoints.isCheckpointed(otherWiki, "f2"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.project.MavenProject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for {@link WikiInstanceCache}.
+ *
+ * @version $Id$
+ */
+class WikiInstanceCacheTest
+{
+    private static final String DATABASE_URL = "jdbc:hsqldb:file:/tmp/xwiki/database/xwiki_db";
+
+    private static final byte[] CONFIGURATION = "<hibernate-configuration/>".getBytes(StandardCharsets.UTF_8);
+
+    private static MavenProject project(String dependencyVersion, String repositoryUrl)
+    {
+        Dependency dependency = new Dependency();
+        dependency.setGroupId("org.xwiki.platform");
+        dependency.setArtifactId("xwiki-platform-oldcore");
+        dependency.setVersion(dependencyVersion);
+
+        ArtifactRepository repository = mock(ArtifactRepository.class);
+        when(repository.getId()).thenReturn("central");
+        when(repository.getUrl()).thenReturn(repositoryUrl);
+
+        MavenProject project = new MavenProject();
+        project.setDependencies(Collections.singletonList(dependency));
+        project.setRemoteArtifactRepositories(Collections.singletonList(repository));
+
+        return project;
+    }
+
+    private static String key(MavenProject project) throws Exception
+    {
+        return key(DATABASE_URL, CONFIGURATION, project);
+    }
+
+    private static String key(String databaseUrl, byte[] configuration, MavenProject project) throws Exception
+    {
+        ClassLoader classLoader = new URLClassLoader(new URL[] {new URL("file:/plugin.jar")}, null);
+
+        return WikiInstanceCache.getKey(databaseUrl, configuration, classLoader, project);
+    }
+
+    @Test
+    void acquireGivesExclusiveAccessToTheRegisteredInstance()
+    {
+        String key = "acquire|" + DATABASE_URL;
+
+        WikiInstanceCache.Instance instance = WikiInstanceCache.register(key, null, null);
+        assertNotNull(instance);
+        // Already registered
+        assertNull(WikiInstanceCache.register(key, null, null));
+        // Used by the execution which registered it
+        assertNull(WikiInstanceCache.acquire(key));
+
+        WikiInstanceCache.release(instance);
+        assertSame(instance, WikiInstanceCache.acquire(key));
+        assertNull(WikiInstanceCache.acquire(key));
+        WikiInstanceCache.release(instance);
+    }
+
+    @Test
+    void acquireWithAnotherKey()
+    {
+        String key = "other|" + DATABASE_URL;
+        WikiInstanceCache.release(WikiInstanceCache.register(key, null, null));
+
+        assertNull(WikiInstanceCache.acquire(key + "|other"));
+    }
+
+    @Test
+    void getKeyOfTheSameConfiguration() throws Exception
+    {
+        assertEquals(key(project("11.10", "https://repo.example.org/")),
+            key(project("11.10", "https://repo.example.org/")));
+    }
+
+    @Test
+    void getKeyDependsOnTheConfigurationAndTheProject() throws Exception
+    {
+        String key = key(project("11.10", "https://repo.example.org/"));
+
+        assertNotEquals(key, key(project("11.10.1", "https://repo.example.org/")));
+        // The extensions are resolved from the repositories of the execution which started the instance
+        assertNotEquals(key, key(project("11.10", "https://mirror.example.org/")));
+        assertNotEquals(key, key(DATABASE_URL + "_2", CONFIGURATION, project("11.10", "https://repo.example.org/")));
+        assertNotEquals(key,
+            key(DATABASE_URL, Arrays.copyOf(CONFIGURATION, 10), project("11.10", "https://repo.example.org/")));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.wiki.user.MembershipType;
+import org.xwiki.wiki.user.UserScope;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link WikiManifest}.
+ *
+ * @version $Id$
+ */
+class WikiManifestTest
+{
+    @TempDir
+    Path tmpDir;
+
+    private final ExtensionSet extensionSet = new ExtensionSet();
+
+    private File write(String... lines) throws IOException
+    {
+        File file = tmpDir.resolve("wikis.csv").toFile();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+
+        return file;
+    }
+
+    private List<Wiki> readAll(File file, String... wikiIds) throws MojoExecutionException, IOException
+    {
+        extensionSet.setId("base");
+        extensionSet.setExtensions(new ArrayList<>());
+        Map<String, ExtensionSet> extensionSets = Collections.singletonMap("base", extensionSet);
+
+        try (WikiManifest manifest = WikiManifest.open(file, extensionSets, Arrays.asList(wikiIds))) {
+            return manifest.readAll();
+        }
+    }
+
+    @Test
+    void readAllParsesTheColumnsOfEachWiki() throws Exception
+    {
+        File file = write("id,prettyName,owner,membership,userScope,template,extensionSets,dependsOn",
+            "# A comment",
+            "",
+            "first,\"First, with a \"\"quoted\"\" comma\",xwiki:XWiki.Admin,request,local_only,true,base,xwiki",
+            "second,,,,,,,first;xwiki");
+
+        List<Wiki> wikis = readAll(file, Wiki.MAIN_WIKI_ID);
+
+        assertEquals(2, wikis.size());
+        Wiki first = wikis.get(0);
+        assertEquals("first", first.getId());
+        assertEquals("First, with a \"quoted\" comma", first.getPrettyName());
+        assertEquals("xwiki:XWiki.Admin", first.getOwner());
+        assertEquals(MembershipType.REQUEST, first.getMembership());
+        assertEquals(UserScope.LOCAL_ONLY, first.getUserScope());
+        assertTrue(first.isTemplate());
+        assertSame(extensionSet.getExtensions(), first.getExtensions());
+        assertEquals(Arrays.asList(Wiki.MAIN_WIKI_ID), first.getDependsOn());
+
+        Wiki second = wikis.get(1);
+        assertEquals("second", second.getPrettyName());
+        assertFalse(second.isTemplate());
+        assertEquals(Arrays.asList("first", Wiki.MAIN_WIKI_ID), second.getDependsOn());
+    }
+
+    @Test
+    void readAllRejectsForwardDependencies() throws Exception
+    {
+        File file = write("id,dependsOn", "first,second", "second");
+
+        MojoExecutionException exception = assertThrows(MojoExecutionException.class, () -> readAll(file));
+        assertTrue(exception.getMessage().contains("line 2"));
+        assertTrue(exception.getCause().getMessage().contains("which is not defined before it"));
+    }
+
+    @Test
+    void readAllRejectsDuplicateAndMainWikis() throws Exception
+    {
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id", "first", "first")));
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id", "first"), "first"));
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id", Wiki.MAIN_WIKI_ID)));
+    }
+
+    @Test
+    void readAllRejectsUnknownExtensionSetsAndInvalidValues() throws Exception
+    {
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id,extensionSets", "first,unknown")));
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id,membership", "first,closed")));
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id,cacheFlushInterval", "first,often")));
+    }
+
+    @Test
+    void openRejectsInvalidColumns() throws Exception
+    {
+        assertThrows(MojoExecutionException.class, () -> readAll(write("id,unknown", "first,value")));
+        assertThrows(MojoExecutionException.class, () -> readAll(write("prettyName", "First")));
+    }
+
+    @Test
+    void checkCountsTheWikis() throws Exception
+    {
+        File file = write("id,cacheFlushInterval", "first,100", "second", "# third");
+
+        assertEquals(2, WikiManifest.check(file, Collections.emptyMap(), Collections.emptyList()));
+    }
+
+    @Test
+    void afterStartsWithTheMainWikiThenTheConfiguredWikis() throws Exception
+    {
+        File file = write("id,dependsOn", "manifest,configured");
+        Wiki configuredWiki = new Wiki();
+        configuredWiki.setId("configured");
+        Wiki mainWiki = new Wiki();
+
+        List<String> wikiIds = new ArrayList<>();
+        try (WikiManifest manifest =
+            WikiManifest.open(file, Collections.emptyMap(), Arrays.asList("configured", Wiki.MAIN_WIKI_ID))) {
+            for (Iterator<Wiki> wikis = manifest.after(Arrays.asList(configuredWiki, mainWiki)); wikis.hasNext();) {
+                wikiIds.add(wikis.next().getId());
+            }
+        }
+
+        assertEquals(Arrays.asList(Wiki.MAIN_WIKI_ID, "configured", "manifest"), wikiIds);
+    }
+}
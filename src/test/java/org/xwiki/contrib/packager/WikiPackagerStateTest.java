@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xwiki.extension.ExtensionId;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link WikiPackagerState}.
+ *
+ * @version $Id$
+ */
+class WikiPackagerStateTest
+{
+    @TempDir
+    Path tmpDir;
+
+    private static Map<String, String> extensions(String... idsAndVersions)
+    {
+        Map<String, String> extensions = new LinkedHashMap<>();
+        for (int i = 0; i < idsAndVersions.length; i += 2) {
+            extensions.put(idsAndVersions[i], idsAndVersions[i + 1]);
+        }
+
+        return extensions;
+    }
+
+    private static Wiki wiki(String id)
+    {
+        Wiki wiki = new Wiki();
+        wiki.setId(id);
+
+        return wiki;
+    }
+
+    @Test
+    void saveAppendsTheChangesAndLoadKeepsTheLastValues() throws Exception
+    {
+        File file = tmpDir.resolve("packager/state.properties").toFile();
+        WikiPackagerState state = new WikiPackagerState(file);
+        state.setExtensions("first", Arrays.asList(new ExtensionId("a", "1.0"), new ExtensionId("b", "2.0")));
+        state.setFingerprint("first", "f1");
+        state.save();
+        long rewrittenLength = file.length();
+
+        state.setFingerprint("second", "f2");
+        state.remove("first");
+        state.save();
+
+        // The second save only appends the changes
+        assertTrue(file.length() > rewrittenLength);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1);
+        // The fingerprints are appended after the other entries
+        assertEquals(Arrays.asList("first.extensions=", "second.fingerprint=f2", "first.fingerprint="),
+            lines.subList(lines.size() - 3, lines.size()));
+
+        WikiPackagerState loadedState = WikiPackagerState.load(file);
+        assertNull(loadedState.getFingerprint("first"));
+        assertEquals(Collections.emptyMap(), loadedState.getExtensions("first"));
+        assertEquals("f2", loadedState.getFingerprint("second"));
+    }
+
+    @Test
+    void loadReadsTheExtensions() throws Exception
+    {
+        File file = tmpDir.resolve("state.properties").toFile();
+        WikiPackagerState state = new WikiPackagerState(file);
+        state.save();
+        state.setExtensions("wiki", Arrays.asList(new ExtensionId("org.xwiki:a", "1.0"), new ExtensionId("b", "2.0")));
+        state.setFingerprint("wiki", "f");
+        state.save();
+
+        WikiPackagerState loadedState = WikiPackagerState.load(file);
+        assertEquals(extensions("org.xwiki:a", "1.0", "b", "2.0"), loadedState.getExtensions("wiki"));
+        assertEquals("f", loadedState.getFingerprint("wiki"));
+    }
+
+    @Test
+    void loadDoesNotValidateAWikiWhoseFingerprintWasTruncated() throws Exception
+    {
+        File file = tmpDir.resolve("state.properties").toFile();
+        WikiPackagerState state = new WikiPackagerState(file);
+        state.setFingerprint("first", "f1");
+        state.save();
+        state.setExtensions("second", Collections.singletonList(new ExtensionId("a", "1.0")));
+        state.setFingerprint("second", "0123456789abcdef");
+        state.save();
+
+        // Simulate a build killed while appending the fingerprint of the second wiki
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - 7));
+        WikiPackagerState loadedState = WikiPackagerState.load(file);
+        assertEquals("f1", loadedState.getFingerprint("first"));
+        assertEquals("0123456789", loadedState.getFingerprint("second"));
+
+        // Or even while appending its key
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - 20));
+        loadedState = WikiPackagerState.load(file);
+        assertEquals("f1", loadedState.getFingerprint("first"));
+        assertNull(loadedState.getFingerprint("second"));
+    }
+
+    @Test
+    void fingerprintChangesWithTheConfiguration()
+    {
+        Wiki wiki = wiki("wiki");
+        String fingerprint = WikiPackagerState.fingerprint(wiki, extensions("a", "1.0"));
+
+        assertEquals(64, fingerprint.length());
+        assertEquals(fingerprint, WikiPackagerState.fingerprint(wiki("wiki"), extensions("a", "1.0")));
+        assertNotEquals(fingerprint, WikiPackagerState.fingerprint(wiki, extensions("a", "1.1")));
+        assertNotEquals(fingerprint, WikiPackagerState.fingerprint(wiki("other"), extensions("a", "1.0")));
+        wiki.setPrettyName("Wiki");
+        assertNotEquals(fingerprint, WikiPackagerState.fingerprint(wiki, extensions("a", "1.0")));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link WikiSetupExecutors}.
+ *
+ * @version $Id$
+ */
+class WikiSetupExecutorsTest
+{
+    @Test
+    void createBlocksTheSubmissionWhenTheQueueIsFull() throws Exception
+    {
+        ExecutorService executor = WikiSetupExecutors.create(false, 1, 1, "setup-%d", new SystemStreamLog());
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(() -> await(release));
+            executor.execute(() -> await(release));
+
+            // The third job doesn't fit in the queue
+            CompletableFuture<String> thirdJobThread = new CompletableFuture<>();
+            CompletableFuture<Void> submission = CompletableFuture.runAsync(
+                () -> executor.execute(() -> thirdJobThread.complete(Thread.currentThread().getName())));
+            Thread.sleep(50);
+            assertFalse(submission.isDone());
+
+            release.countDown();
+            submission.get(10, TimeUnit.SECONDS);
+            // The job was not run by the submitting thread
+            assertEquals("setup-1", thirdJobThread.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+    }
+
+    @Test
+    void createVirtualThreadExecutor() throws Exception
+    {
+        boolean virtualThreads;
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            virtualThreads = true;
+        } catch (NoSuchMethodException e) {
+            virtualThreads = false;
+        }
+
+        ExecutorService executor = WikiSetupExecutors.create(true, 1, 1, "setup-%d", new SystemStreamLog());
+        try {
+            // The virtual threads are not named, the platform threads of the fallback are
+            assertEquals(virtualThreads ? "" : "setup-1",
+                executor.submit(() -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
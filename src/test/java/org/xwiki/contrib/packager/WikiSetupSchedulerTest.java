@@ -0,0 +1,314 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link WikiSetupScheduler}.
+ *
+ * @version $Id$
+ */
+class WikiSetupSchedulerTest
+{
+    private final List<String> startedWikis = new CopyOnWriteArrayList<>();
+
+    private static Wiki wiki(String id, String... dependsOn)
+    {
+        Wiki wiki = new Wiki();
+        wiki.setId(id);
+        wiki.setDependsOn(Arrays.asList(dependsOn));
+
+        return wiki;
+    }
+
+    private WikiSetupScheduler scheduler(int maxConcurrentWikis, long wikiTimeout)
+    {
+        return new WikiSetupScheduler(wiki -> {
+            startedWikis.add(wiki.getId());
+            return CompletableFuture.completedFuture(null);
+        }, maxConcurrentWikis, wikiTimeout, 0, new SystemStreamLog());
+    }
+
+    private static CompletableFuture<Void> failed()
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new Exception("failed"));
+
+        return future;
+    }
+
+    @Test
+    void runStartsMainWikiFirstAndDependenciesBeforeDependents() throws Exception
+    {
+        List<Wiki> wikis = Arrays.asList(wiki("a", "b"), wiki("b"), wiki(Wiki.MAIN_WIKI_ID), wiki("c", "a"));
+        WikiSetupScheduler scheduler = scheduler(1, 0);
+        scheduler.validate(wikis);
+
+        assertEquals(Collections.emptyList(), scheduler.run(wikis));
+        assertEquals(Arrays.asList(Wiki.MAIN_WIKI_ID, "b", "a", "c"), startedWikis);
+        assertEquals(WikiSetupResult.Outcome.SUCCEEDED, scheduler.getResults().get("c").getOutcome());
+    }
+
+    @Test
+    void runWaitsForExtraDependencies() throws Exception
+    {
+        List<Wiki> wikis = Arrays.asList(wiki(Wiki.MAIN_WIKI_ID), wiki("copy"), wiki("template"));
+        WikiSetupScheduler scheduler = scheduler(1, 0);
+        scheduler.addDependency("copy", "template");
+        scheduler.validate(wikis);
+
+        assertEquals(Collections.emptyList(), scheduler.run(wikis));
+        assertEquals(Arrays.asList(Wiki.MAIN_WIKI_ID, "template", "copy"), startedWikis);
+    }
+
+    @Test
+    void runKeepsAtMostMaxConcurrentWikis() throws Exception
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger runningWikis = new AtomicInteger();
+        AtomicInteger maxRunningWikis = new AtomicInteger();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> {
+            maxRunningWikis.accumulateAndGet(runningWikis.incrementAndGet(), Math::max);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            executor.schedule(() -> {
+                runningWikis.decrementAndGet();
+                future.complete(null);
+            }, 20, TimeUnit.MILLISECONDS);
+            return future;
+        }, 2, 0, 0, new SystemStreamLog());
+
+        List<Wiki> wikis = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            wikis.add(wiki("wiki" + i));
+        }
+        try {
+            assertEquals(Collections.emptyList(), scheduler.run(wikis));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(2, maxRunningWikis.get());
+        assertEquals(6, scheduler.getResults().size());
+    }
+
+    @Test
+    void validateRejectsCycles()
+    {
+        List<Wiki> wikis = Arrays.asList(wiki(Wiki.MAIN_WIKI_ID), wiki("a", "c"), wiki("b", "a"), wiki("c", "b"),
+            wiki("d"));
+
+        MojoExecutionException exception =
+            assertThrows(MojoExecutionException.class, () -> scheduler(1, 0).validate(wikis));
+        assertTrue(exception.getMessage().contains("cycle"));
+        assertFalse(exception.getMessage().contains(Wiki.MAIN_WIKI_ID));
+    }
+
+    @Test
+    void validateRejectsCyclesThroughExtraDependencies()
+    {
+        List<Wiki> wikis = Arrays.asList(wiki("a", "b"), wiki("b"));
+        WikiSetupScheduler scheduler = scheduler(1, 0);
+        scheduler.addDependency("b", "a");
+
+        assertThrows(MojoExecutionException.class, () -> scheduler.validate(wikis));
+    }
+
+    @Test
+    void validateRejectsUnknownDependencies()
+    {
+        MojoExecutionException exception = assertThrows(MojoExecutionException.class,
+            () -> scheduler(1, 0).validate(Arrays.asList(wiki("a", "unknown"))));
+        assertEquals("Wiki [a] depends on unknown wiki [unknown]", exception.getMessage());
+    }
+
+    @Test
+    void validateRejectsDependenciesOfTheMainWiki()
+    {
+        assertThrows(MojoExecutionException.class,
+            () -> scheduler(1, 0).validate(Arrays.asList(wiki(Wiki.MAIN_WIKI_ID, "a"), wiki("a"))));
+    }
+
+    @Test
+    void runSkipsTheDependentsOfFailedWikis() throws Exception
+    {
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(
+            wiki -> "a".equals(wiki.getId()) ? failed() : CompletableFuture.completedFuture(null), 1, 0, 0,
+            new SystemStreamLog());
+
+        assertEquals(Arrays.asList("a", "b"), scheduler.run(Arrays.asList(wiki("a"), wiki("b", "a"), wiki("c"))));
+        assertEquals(WikiSetupResult.Outcome.FAILED, scheduler.getResults().get("a").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.SKIPPED, scheduler.getResults().get("b").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.SUCCEEDED, scheduler.getResults().get("c").getOutcome());
+    }
+
+    @Test
+    void runSkipsEveryWikiWhenTheMainWikiFails() throws Exception
+    {
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> null, 2, 0, 0, new SystemStreamLog());
+
+        assertEquals(Arrays.asList(Wiki.MAIN_WIKI_ID, "a"),
+            scheduler.run(Arrays.asList(wiki("a"), wiki(Wiki.MAIN_WIKI_ID))));
+        assertEquals(WikiSetupResult.Outcome.SKIPPED, scheduler.getResults().get("a").getOutcome());
+    }
+
+    @Test
+    void runCancelsTimedOutWikis() throws Exception
+    {
+        List<String> canceledWikis = new ArrayList<>();
+        CompletableFuture<Void> slow = new CompletableFuture<>();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(
+            wiki -> "slow".equals(wiki.getId()) ? slow : CompletableFuture.completedFuture(null), 2, 50, 0,
+            new SystemStreamLog());
+        scheduler.setCanceller(wiki -> {
+            canceledWikis.add(wiki.getId());
+            slow.completeExceptionally(new Exception("canceled"));
+        });
+
+        assertEquals(Arrays.asList("slow", "dependent"),
+            scheduler.run(Arrays.asList(wiki("slow"), wiki("fast"), wiki("dependent", "slow"))));
+        assertEquals(WikiSetupResult.Outcome.TIMED_OUT, scheduler.getResults().get("slow").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.SUCCEEDED, scheduler.getResults().get("fast").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.SKIPPED, scheduler.getResults().get("dependent").getOutcome());
+        assertEquals(Arrays.asList("slow"), canceledWikis);
+    }
+
+    @Test
+    void runWaitsForTheTimedOutWikisToStop() throws Exception
+    {
+        AtomicInteger cancelCount = new AtomicInteger();
+        CompletableFuture<Void> slow = new CompletableFuture<>();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> slow, 1, 20, 0, new SystemStreamLog());
+        // The job ignores the first cancel, like a job in the middle of the install of an extension
+        scheduler.setCanceller(wiki -> {
+            if (cancelCount.incrementAndGet() == 2) {
+                slow.completeExceptionally(new Exception("canceled"));
+            }
+        });
+        scheduler.setCancelInterval(20);
+
+        assertEquals(Arrays.asList("slow", "next"), scheduler.run(Arrays.asList(wiki("slow"), wiki("next", "slow"))));
+        assertTrue(slow.isDone());
+        assertEquals(2, cancelCount.get());
+        assertEquals(WikiSetupResult.Outcome.TIMED_OUT, scheduler.getResults().get("slow").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.SKIPPED, scheduler.getResults().get("next").getOutcome());
+    }
+
+    @Test
+    void runKeepsTheSlotOfTheTimedOutWikisUntilTheyStop() throws Exception
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        CompletableFuture<Void> slow = new CompletableFuture<>();
+        List<Boolean> slowStoppedBeforeOther = new ArrayList<>();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> {
+            if ("slow".equals(wiki.getId())) {
+                return slow;
+            }
+            slowStoppedBeforeOther.add(slow.isDone());
+            return CompletableFuture.completedFuture(null);
+        }, 1, 20, 0, new SystemStreamLog());
+        // The job takes some time to stop after being canceled
+        scheduler.setCanceller(
+            wiki -> executor.schedule(() -> slow.completeExceptionally(new Exception("canceled")), 50,
+                TimeUnit.MILLISECONDS));
+
+        try {
+            assertEquals(Arrays.asList("slow"), scheduler.run(Arrays.asList(wiki("slow"), wiki("other"))));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(Arrays.asList(true), slowStoppedBeforeOther);
+    }
+
+    @Test
+    void runUsesTheTimeoutOfEachWiki() throws Exception
+    {
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> new CompletableFuture<>(), 2, 0, 0,
+            new SystemStreamLog());
+        scheduler.setWikiTimeouts(wiki -> "a".equals(wiki.getId()) ? 20 : 100);
+
+        long startTime = System.currentTimeMillis();
+        assertEquals(Arrays.asList("a", "b"), scheduler.run(Arrays.asList(wiki("a"), wiki("b"))));
+        assertTrue(System.currentTimeMillis() - startTime >= 100);
+        assertTrue(scheduler.getResults().get("a").getDuration() < 100);
+    }
+
+    @Test
+    void runStopsAtTheFirstFailureWithFailFast() throws Exception
+    {
+        CompletableFuture<Void> running = new CompletableFuture<>();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(wiki -> {
+            startedWikis.add(wiki.getId());
+            return "failing".equals(wiki.getId()) ? failed() : running;
+        }, 2, 0, 0, new SystemStreamLog());
+        scheduler.setFailFast(true);
+        scheduler.setCanceller(wiki -> running.completeExceptionally(new Exception("canceled")));
+
+        assertEquals(new HashSet<>(Arrays.asList("failing", "running", "pending")),
+            new HashSet<>(scheduler.run(Arrays.asList(wiki("running"), wiki("failing"), wiki("pending")))));
+        assertEquals(Arrays.asList("running", "failing"), startedWikis);
+        assertEquals(WikiSetupResult.Outcome.FAILED, scheduler.getResults().get("failing").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.CANCELED, scheduler.getResults().get("running").getOutcome());
+        assertEquals(WikiSetupResult.Outcome.SKIPPED, scheduler.getResults().get("pending").getOutcome());
+    }
+
+    @Test
+    void runWaitsForTheJobsCanceledByFailFastToStop() throws Exception
+    {
+        AtomicInteger cancelCount = new AtomicInteger();
+        CompletableFuture<Void> running = new CompletableFuture<>();
+        WikiSetupScheduler scheduler = new WikiSetupScheduler(
+            wiki -> "failing".equals(wiki.getId()) ? failed() : running, 2, 0, 0, new SystemStreamLog());
+        scheduler.setFailFast(true);
+        // The running job is in the middle of the install of an extension when it's first canceled
+        scheduler.setCanceller(wiki -> {
+            if (cancelCount.incrementAndGet() == 2) {
+                running.completeExceptionally(new Exception("canceled"));
+            }
+        });
+        scheduler.setCancelInterval(20);
+
+        assertEquals(new HashSet<>(Arrays.asList("failing", "running")),
+            new HashSet<>(scheduler.run(Arrays.asList(wiki("running"), wiki("failing")))));
+        assertTrue(running.isDone());
+        assertEquals(2, cancelCount.get());
+        assertEquals(WikiSetupResult.Outcome.CANCELED, scheduler.getResults().get("running").getOutcome());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link WikiShards}.
+ *
+ * @version $Id$
+ */
+class WikiShardsTest
+{
+    private static Wiki wiki(String id, String... dependsOn)
+    {
+        Wiki wiki = new Wiki();
+        wiki.setId(id);
+        wiki.setDependsOn(Arrays.asList(dependsOn));
+
+        return wiki;
+    }
+
+    private static List<List<String>> ids(List<List<Wiki>> shards)
+    {
+        return shards.stream().map(shard -> shard.stream().map(Wiki::getId).collect(Collectors.toList()))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    void splitBalancesIndependentWikisAndIgnoresTheMainWiki()
+    {
+        List<Wiki> wikis = Arrays.asList(wiki(Wiki.MAIN_WIKI_ID), wiki("a", Wiki.MAIN_WIKI_ID), wiki("b"), wiki("c"),
+            wiki("d"), wiki("e"));
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "c", "e"), Arrays.asList("b", "d")),
+            ids(WikiShards.split(wikis, 2)));
+    }
+
+    @Test
+    void splitKeepsDependentWikisTogetherWhateverTheirOrder()
+    {
+        // a depends on c which is declared after it, and d depends on a
+        List<Wiki> wikis = Arrays.asList(wiki("a", "c"), wiki("b"), wiki("c"), wiki("d", "a"), wiki("e"));
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "c", "d"), Arrays.asList("b", "e")),
+            ids(WikiShards.split(wikis, 2)));
+    }
+
+    @Test
+    void splitKeepsCopiesWithTheWikiTheyAreCopiedFrom()
+    {
+        List<Wiki> wikis = Arrays.asList(wiki("template"), wiki("other"), wiki("copy"));
+        Map<String, String> templateWikis = Collections.singletonMap("copy", "template");
+
+        assertEquals(Arrays.asList(Arrays.asList("template", "copy"), Arrays.asList("other")),
+            ids(WikiShards.split(wikis, 2, templateWikis)));
+    }
+
+    @Test
+    void selectRemovesTheDependenciesOnTheMainWikiAndTheCopiesOfOtherShards()
+    {
+        List<Wiki> wikis = Arrays.asList(wiki(Wiki.MAIN_WIKI_ID), wiki("template"), wiki("other"),
+            wiki("copy", Wiki.MAIN_WIKI_ID), wiki("otherCopy"));
+        Map<String, String> templateWikis = new HashMap<>();
+        templateWikis.put("copy", "template");
+        templateWikis.put("otherCopy", "other");
+
+        List<Wiki> shardWikis = WikiShards.select(wikis, 2, templateWikis, 0);
+
+        assertEquals(Arrays.asList("template", "copy"),
+            shardWikis.stream().map(Wiki::getId).collect(Collectors.toList()));
+        assertEquals(Collections.emptyList(), shardWikis.get(1).getDependsOn());
+        assertEquals(Collections.singletonMap("copy", "template"), templateWikis);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.packager;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for {@link WikiTimeouts}.
+ *
+ * @version $Id$
+ */
+class WikiTimeoutsTest
+{
+    @TempDir
+    Path tmpDir;
+
+    @Test
+    void getTimeoutOfANewWikiWithoutTimings()
+    {
+        WikiTimeouts timeouts = new WikiTimeouts(tmpDir.resolve("timings.properties").toFile(), 2);
+
+        // 2 minutes per extension before any wiki was timed
+        assertEquals(TimeUnit.MINUTES.toMillis(12), timeouts.getTimeout("new", 3));
+        assertEquals(TimeUnit.MINUTES.toMillis(4), timeouts.getTimeout("new", 0));
+    }
+
+    @Test
+    void getTimeoutFromTheTimings()
+    {
+        WikiTimeouts timeouts = new WikiTimeouts(tmpDir.resolve("timings.properties").toFile(), 2);
+        timeouts.record("timed", 10, TimeUnit.MINUTES.toMillis(10));
+
+        assertEquals(TimeUnit.MINUTES.toMillis(20), timeouts.getTimeout("timed", 10));
+        // The time per extension of the timed wikis is used for the new wikis
+        assertEquals(TimeUnit.MINUTES.toMillis(10), timeouts.getTimeout("new", 5));
+    }
+
+    @Test
+    void getTimeoutIsBounded()
+    {
+        WikiTimeouts timeouts = new WikiTimeouts(tmpDir.resolve("timings.properties").toFile(), 3);
+        timeouts.record("fast", 1, 1000);
+
+        assertEquals(TimeUnit.MINUTES.toMillis(1), timeouts.getTimeout("fast", 1));
+
+        WikiTimeouts boundedTimeouts = new WikiTimeouts(tmpDir.resolve("timings.properties").toFile(), 3);
+        boundedTimeouts.setMaxTimeout(TimeUnit.MINUTES.toMillis(5));
+        assertEquals(TimeUnit.MINUTES.toMillis(5), boundedTimeouts.getTimeout("new", 10));
+    }
+
+    @Test
+    void saveAndLoad() throws Exception
+    {
+        File file = tmpDir.resolve("packager/timings.properties").toFile();
+        WikiTimeouts timeouts = new WikiTimeouts(file, 2);
+        timeouts.record("timed", 4, TimeUnit.MINUTES.toMillis(2));
+        timeouts.save();
+
+        WikiTimeouts loadedTimeouts = WikiTimeouts.load(file, 2);
+        assertEquals(TimeUnit.MINUTES.toMillis(4), loadedTimeouts.getTimeout("timed", 4));
+        assertEquals(TimeUnit.MINUTES.toMillis(2), loadedTimeouts.getTimeout("new", 2));
+    }
+
+    @Test
+    void loadIgnoresInvalidTimings() throws Exception
+    {
+        File file = tmpDir.resolve("timings.properties").toFile();
+        Files.write(file.toPath(), Arrays.asList("broken.duration=soon", "broken.extensions=many",
+            "timed.duration=600000", "timed.extensions=2"), StandardCharsets.UTF_8);
+
+        WikiTimeouts timeouts = WikiTimeouts.load(file, 1);
+        // Estimated from the valid timings only
+        assertEquals(TimeUnit.MINUTES.toMillis(5), timeouts.getTimeout("broken", 1));
+    }
+
+    @Test
+    void loadWithoutFile() throws Exception
+    {
+        WikiTimeouts timeouts = WikiTimeouts.load(tmpDir.resolve("missing.properties").toFile(), 1);
+
+        assertEquals(TimeUnit.MINUTES.toMillis(2), timeouts.getTimeout("new", 1));
+    }
+}